@@ -0,0 +1,334 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.cmd;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdal.dao.Dao;
+import org.jdal.dao.Filter;
+import org.jdal.dao.Page;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Task that executes its commands on every entity matching a filter, in parallel.
+ * <p>
+ * Preprocessors and postprocessors execute once with the task data. The ids of
+ * matching entities are read with {@link Dao#getKeys(Page)} and split in partitions
+ * of <code>partitionSize</code> ids that are processed fork/join style by
+ * <code>parallelism</code> workers. Each partition is loaded with
+ * {@link Dao#getAll(java.util.Collection)} and, if a transaction manager is set,
+ * processed in its own transaction, so each worker uses its own EntityManager or Session.
+ * </p>
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class PartitionedTask<T, PK extends Serializable> extends DefaultTask {
+
+	private static final long serialVersionUID = 1L;
+	private static final Log log = LogFactory.getLog(PartitionedTask.class);
+	public static final int DEFAULT_PARTITION_SIZE = 1000;
+
+	/** dao to read entities from */
+	private transient Dao<T, PK> dao;
+	/** filter to select entities, null for all */
+	private Filter filter;
+	/** number of entities per partition */
+	private int partitionSize = DEFAULT_PARTITION_SIZE;
+	/** number of workers */
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	/** transaction manager to process partitions in transactions, if any */
+	private transient PlatformTransactionManager transactionManager;
+	/** stop on command fault */
+	private boolean stopOnFault = false;
+	private AtomicInteger partitions = new AtomicInteger();
+	private AtomicInteger completedPartitions = new AtomicInteger();
+	private AtomicInteger processed = new AtomicInteger();
+	private AtomicInteger failed = new AtomicInteger();
+
+	public PartitionedTask() {
+	}
+
+	/**
+	 * @param dao dao to read entities from
+	 */
+	public PartitionedTask(Dao<T, PK> dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * Execute preprocessors with data, commands on each entity in parallel and
+	 * postprocessors with data.
+	 * @param data generic command data
+	 * @return true if no command failed
+	 */
+	@Override
+	public boolean execute(Object data) {
+		resetProgress();
+
+		for (Command cmd : getPreProcessors())
+			cmd.execute(data);
+
+		List<PK> keys = getKeys();
+		partitions.set((keys.size() + partitionSize - 1) / partitionSize);
+
+		if (log.isDebugEnabled())
+			log.debug("Processing " + keys.size() + " entities in " + partitions.get() + " partitions");
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+		try {
+			pool.invoke(new PartitionWorker(keys));
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		for (Command cmd : getPostProcessors())
+			cmd.execute(data);
+
+		return failed.get() == 0;
+	}
+
+	/**
+	 * Gets the ids of entities to process
+	 * @return the ids
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<PK> getKeys() {
+		Page<T> page = new Page<T>(Integer.MAX_VALUE);
+		page.setFilter(filter);
+
+		return (List<PK>) (List<?>) dao.getKeys(page);
+	}
+
+	/**
+	 * Process a partition, in a new transaction if there is a transaction manager.
+	 * @param ids partition ids
+	 * @return the number of processed entities
+	 */
+	protected int processPartition(final List<PK> ids) {
+		if (transactionManager == null)
+			return doProcessPartition(ids);
+
+		return new TransactionTemplate(transactionManager).execute(new TransactionCallback<Integer>() {
+
+			public Integer doInTransaction(TransactionStatus status) {
+				return doProcessPartition(ids);
+			}
+		});
+	}
+
+	/**
+	 * Load partition entities and execute commands on them.
+	 * @param ids partition ids
+	 * @return the number of processed entities
+	 */
+	private int doProcessPartition(List<PK> ids) {
+		int count = 0;
+
+		for (T entity : dao.getAll(ids)) {
+			for (Command cmd : getCommands()) {
+				try {
+					cmd.execute(entity);
+				}
+				catch (CommandException ce) {
+					log.error(ce);
+					cmd.onFault(entity);
+					failed.incrementAndGet();
+
+					if (stopOnFault)
+						throw ce;
+				}
+			}
+			count++;
+		}
+
+		processed.addAndGet(count);
+		int completed = completedPartitions.incrementAndGet();
+
+		if (log.isInfoEnabled())
+			log.info("Partition " + completed + " of " + partitions.get() + " completed, " +
+					processed.get() + " entities processed");
+
+		return count;
+	}
+
+	private void resetProgress() {
+		partitions.set(0);
+		completedPartitions.set(0);
+		processed.set(0);
+		failed.set(0);
+	}
+
+	/**
+	 * @return the fraction of completed partitions, from 0 to 1
+	 */
+	public double getProgress() {
+		int total = partitions.get();
+
+		return total == 0 ? 0 : (double) completedPartitions.get() / total;
+	}
+
+	/**
+	 * @return the number of partitions
+	 */
+	public int getPartitions() {
+		return partitions.get();
+	}
+
+	/**
+	 * @return the number of completed partitions
+	 */
+	public int getCompletedPartitions() {
+		return completedPartitions.get();
+	}
+
+	/**
+	 * @return the number of processed entities
+	 */
+	public int getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * @return the number of command faults
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the dao
+	 */
+	public Dao<T, PK> getDao() {
+		return dao;
+	}
+
+	/**
+	 * @param dao the dao to set
+	 */
+	public void setDao(Dao<T, PK> dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * @return the filter
+	 */
+	public Filter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @param filter the filter to set
+	 */
+	public void setFilter(Filter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * @return the partitionSize
+	 */
+	public int getPartitionSize() {
+		return partitionSize;
+	}
+
+	/**
+	 * @param partitionSize the partitionSize to set
+	 */
+	public void setPartitionSize(int partitionSize) {
+		this.partitionSize = partitionSize;
+	}
+
+	/**
+	 * @return the parallelism
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism the parallelism to set
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return the transactionManager
+	 */
+	public PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	/**
+	 * @param transactionManager the transactionManager to set
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	/**
+	 * @return the stopOnFault
+	 */
+	public boolean isStopOnFault() {
+		return stopOnFault;
+	}
+
+	/**
+	 * @param stopOnFault the stopOnFault to set
+	 */
+	public void setStopOnFault(boolean stopOnFault) {
+		this.stopOnFault = stopOnFault;
+	}
+
+	/**
+	 * Split ids in halves until partition size and process them, adding results.
+	 */
+	private class PartitionWorker extends RecursiveTask<Integer> {
+
+		private static final long serialVersionUID = 1L;
+		private List<PK> ids;
+
+		public PartitionWorker(List<PK> ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (ids.size() <= partitionSize)
+				return ids.isEmpty() ? 0 : processPartition(new ArrayList<PK>(ids));
+
+			// split on partition boundaries
+			int half = (ids.size() / partitionSize + 1) / 2 * partitionSize;
+			PartitionWorker left = new PartitionWorker(ids.subList(0, half));
+			PartitionWorker right = new PartitionWorker(ids.subList(half, ids.size()));
+			left.fork();
+
+			return right.compute() + left.join();
+		}
+	}
+}
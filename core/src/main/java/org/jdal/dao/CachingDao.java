@@ -0,0 +1,632 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdal.util.BeanUtils;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Dao decorator that caches page results and entities by id.
+ * Page results are cached by filter name, filter values, sort, order, page and
+ * page size and are evicted on any write through this Dao. Cached entities are
+ * shared between callers, so use it for read mostly data like reference tables.
+ * Register it as listener in the {@link EntityChangeBus} to evict entities written
+ * by other Daos too.
+ * <p>
+ * Written entities are evicted before and after the write and, in a transaction, 
+ * after commit too, so entities read by other threads before commit don't stay in cache.
+ * </p>
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class CachingDao<T, PK extends Serializable> implements Dao<T, PK>, EntityChangeListener {
+
+	private static final Log log = LogFactory.getLog(CachingDao.class);
+	public static final int DEFAULT_PAGE_CACHE_SIZE = 100;
+	public static final int DEFAULT_ENTITY_CACHE_SIZE = 1000;
+
+	/** the decorated dao */
+	private Dao<T, PK> dao;
+	/** cached pages */
+	private Map<PageKey, PageEntry> pageCache;
+	/** cached entities by id */
+	private Map<PK, T> entityCache;
+	private AtomicLong pageHits = new AtomicLong();
+	private AtomicLong pageMisses = new AtomicLong();
+	private AtomicLong entityHits = new AtomicLong();
+	private AtomicLong entityMisses = new AtomicLong();
+	/** id property name of entities */
+	private String idProperty = "id";
+
+	public CachingDao() {
+		this(null);
+	}
+
+	/**
+	 * @param dao dao to decorate
+	 */
+	public CachingDao(Dao<T, PK> dao) {
+		this(dao, DEFAULT_PAGE_CACHE_SIZE, DEFAULT_ENTITY_CACHE_SIZE);
+	}
+
+	/**
+	 * @param dao dao to decorate
+	 * @param pageCacheSize max number of cached pages
+	 * @param entityCacheSize max number of cached entities
+	 */
+	public CachingDao(Dao<T, PK> dao, int pageCacheSize, int entityCacheSize) {
+		this.dao = dao;
+		this.pageCache = Collections.synchronizedMap(new LruMap<PageKey, PageEntry>(pageCacheSize));
+		this.entityCache = Collections.synchronizedMap(new LruMap<PK, T>(entityCacheSize));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	public <K> Page<K> getPage(Page<K> page) {
+		PageKey key = createKey(page);
+		PageEntry entry = key != null ? pageCache.get(key) : null;
+
+		if (entry != null) {
+			pageHits.incrementAndGet();
+			page.setData(new ArrayList<K>((List<K>) entry.data));
+			page.setCount(entry.count);
+			page.setKeyset(entry.keyset);
+		}
+		else {
+			pageMisses.incrementAndGet();
+			dao.getPage(page);
+
+			if (key != null)
+				pageCache.put(key, new PageEntry(new ArrayList<Object>(page.getData()),
+						page.getCount(), page.getKeyset()));
+		}
+
+		page.setPageableDataSource(this);
+
+		return page;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Serializable> getKeys(Page<T> page) {
+		return dao.getKeys(page);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> getAll() {
+		return dao.getAll();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Read from cache only if all entities are cached.
+	 */
+	public List<T> getAll(Collection<PK> ids) {
+		List<T> cached = new ArrayList<T>(ids.size());
+
+		for (PK id : ids) {
+			T entity = entityCache.get(id);
+
+			if (entity == null) {
+				entityMisses.incrementAndGet();
+				return dao.getAll(ids);
+			}
+
+			cached.add(entity);
+		}
+
+		entityHits.addAndGet(cached.size());
+
+		return cached;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T get(PK id) {
+		T entity = entityCache.get(id);
+
+		if (entity != null) {
+			entityHits.incrementAndGet();
+			return entity;
+		}
+
+		entityMisses.incrementAndGet();
+		entity = dao.get(id);
+
+		if (entity != null)
+			entityCache.put(id, entity);
+
+		return entity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean exists(PK id) {
+		return entityCache.containsKey(id) || dao.exists(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Cached ids are not queried.
+	 */
+	public Set<PK> existing(Collection<PK> ids) {
+		Set<PK> existing = new HashSet<PK>();
+		List<PK> missing = new ArrayList<PK>();
+
+		for (PK id : ids) {
+			if (entityCache.containsKey(id))
+				existing.add(id);
+			else
+				missing.add(id);
+		}
+
+		if (!missing.isEmpty())
+			existing.addAll(dao.existing(missing));
+
+		return existing;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T save(T object) {
+		evict(object);
+		T saved = dao.save(object);
+		evictWritten(Collections.singletonList(saved != null ? saved : object));
+		
+		return saved;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void deleteById(PK id) {
+		evictById(id);
+		dao.deleteById(id);
+		evictWrittenIds(Collections.singletonList(id));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void delete(T entity) {
+		evict(entity);
+		dao.delete(entity);
+		evictWritten(Collections.singletonList(entity));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> findByNamedQuery(String queryName, Map<String, Object> queryParams) {
+		return dao.findByNamedQuery(queryName, queryParams);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T initialize(T entity) {
+		return dao.initialize(entity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T initialize(T entity, int depth) {
+		return dao.initialize(entity, depth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> initialize(Collection<T> entities, int depth) {
+		return dao.initialize(entities, depth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> save(Collection<T> collection) {
+		for (T entity : collection)
+			evict(entity);
+
+		Collection<T> saved = dao.save(collection);
+		evictWritten(saved != null ? saved : collection);
+		
+		return saved;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void delete(Collection<T> collection) {
+		for (T entity : collection)
+			evict(entity);
+
+		dao.delete(collection);
+		evictWritten(collection);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void deleteById(Collection<PK> ids) {
+		for (PK id : ids)
+			evictById(id);
+
+		dao.deleteById(ids);
+		evictWrittenIds(ids);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int updateAll(Filter filter, Map<String, Object> assignments) {
+		clear();
+		int count = dao.updateAll(filter, assignments);
+		clearWritten();
+		
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int deleteAll(Filter filter) {
+		clear();
+		int count = dao.deleteAll(filter);
+		clearWritten();
+		
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <E> E get(PK id, Class<E> clazz) {
+		return dao.get(id, clazz);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <E> List<E> getAll(Class<E> clazz) {
+		return dao.getAll(clazz);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Cursor<T> scroll(Page<T> page, int fetchSize) {
+		return dao.scroll(page, fetchSize);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Class<T> getEntityClass() {
+		return dao.getEntityClass();
+	}
+
+	/**
+	 * Remove all cached pages and entities
+	 */
+	public void clear() {
+		pageCache.clear();
+		entityCache.clear();
+	}
+
+	/**
+	 * Evict changed entity by id or clear all on bulk changes.
+	 * @param event the change event
+	 */
+	@SuppressWarnings("unchecked")
+	public void entityChanged(EntityChangeEvent event) {
+		if (event.getSource() == dao)
+			return;	// already evicted on write
+
+		if (event.getId() != null)
+			evictById((PK) event.getId());
+		else
+			clear();
+	}
+
+	/**
+	 * @return the idProperty
+	 */
+	public String getIdProperty() {
+		return idProperty;
+	}
+
+	/**
+	 * @param idProperty the id property name of entities, used to evict written entities
+	 */
+	public void setIdProperty(String idProperty) {
+		this.idProperty = idProperty;
+	}
+
+	/**
+	 * Reset hit and miss counters
+	 */
+	public void resetStatistics() {
+		pageHits.set(0);
+		pageMisses.set(0);
+		entityHits.set(0);
+		entityMisses.set(0);
+	}
+
+	/**
+	 * Evict cached pages and the cached entity with the id of entity, if any.
+	 * @param entity the entity to evict
+	 */
+	@SuppressWarnings("unchecked")
+	protected void evict(T entity) {
+		Object id = entity != null ? BeanUtils.getProperty(entity, idProperty) : null;
+
+		if (id != null)
+			evictById((PK) id);
+		else
+			pageCache.clear();	// new entity, not cached
+	}
+
+	/**
+	 * Evict cached pages and the cached entity with id.
+	 * @param id the entity id
+	 */
+	protected void evictById(PK id) {
+		pageCache.clear();
+		entityCache.remove(id);
+	}
+
+	/**
+	 * Evict written entities now and after commit of current transaction, if any.
+	 * @param entities the written entities
+	 */
+	private void evictWritten(Collection<T> entities) {
+		final List<T> written = new ArrayList<T>(entities);
+		
+		evictAfterWrite(new Runnable() {
+			
+			public void run() {
+				for (T entity : written)
+					evict(entity);
+			}
+		});
+	}
+	
+	/**
+	 * Evict written entities by id now and after commit of current transaction, if any.
+	 * @param ids the written entity ids
+	 */
+	private void evictWrittenIds(Collection<PK> ids) {
+		final List<PK> written = new ArrayList<PK>(ids);
+		
+		evictAfterWrite(new Runnable() {
+			
+			public void run() {
+				for (PK id : written)
+					evictById(id);
+			}
+		});
+	}
+	
+	/**
+	 * Clear the cache now and after commit of current transaction, if any.
+	 */
+	private void clearWritten() {
+		evictAfterWrite(new Runnable() {
+			
+			public void run() {
+				clear();
+			}
+		});
+	}
+	
+	/**
+	 * Run an eviction now and after commit of current transaction, if any, 
+	 * to drop entities cached by concurrent reads before commit.
+	 * @param eviction the eviction to run
+	 */
+	private void evictAfterWrite(final Runnable eviction) {
+		eviction.run();
+		
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				@Override
+				public void afterCommit() {
+					eviction.run();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Create a cache key for page
+	 * @param page the page
+	 * @return the key or null if page filter could not be used as key
+	 */
+	private PageKey createKey(Page<?> page) {
+		Object filter = page.getFilter();
+
+		if (filter != null && !(filter instanceof Filter)) {
+			if (log.isDebugEnabled())
+				log.debug("Cannot cache pages with filters of type: " + filter.getClass().getName());
+
+			return null;
+		}
+
+		Filter f = (Filter) filter;
+
+		return new PageKey(f != null ? f.getFilterName() : null,
+				f != null ? new HashMap<String, Object>(f.getParameterMap()) : null,
+				page.getSortKeys(), page.getOrder(), page.getPage(), page.getPageSize(),
+				page.getCountMode(), new ArrayList<String>(page.getProjection()));
+	}
+
+	/**
+	 * @return the dao
+	 */
+	public Dao<T, PK> getDao() {
+		return dao;
+	}
+
+	/**
+	 * @param dao the dao to set
+	 */
+	public void setDao(Dao<T, PK> dao) {
+		this.dao = dao;
+		clear();
+	}
+
+	/**
+	 * @return the number of pages read from cache
+	 */
+	public long getPageHits() {
+		return pageHits.get();
+	}
+
+	/**
+	 * @return the number of pages read from dao
+	 */
+	public long getPageMisses() {
+		return pageMisses.get();
+	}
+
+	/**
+	 * @return the number of entities read from cache
+	 */
+	public long getEntityHits() {
+		return entityHits.get();
+	}
+
+	/**
+	 * @return the number of entities read from dao
+	 */
+	public long getEntityMisses() {
+		return entityMisses.get();
+	}
+
+	/**
+	 * @return the number of cached pages
+	 */
+	public int getPageCacheSize() {
+		return pageCache.size();
+	}
+
+	/**
+	 * @return the number of cached entities
+	 */
+	public int getEntityCacheSize() {
+		return entityCache.size();
+	}
+
+	/**
+	 * LinkedHashMap in access order that removes the eldest entry when full.
+	 */
+	private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+		private int maxSize;
+
+		public LruMap(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxSize;
+		}
+	}
+
+	/**
+	 * Page cache key
+	 */
+	private static class PageKey {
+		private Object[] values;
+
+		public PageKey(Object... values) {
+			this.values = values;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = 17;
+			for (Object value : values)
+				result = 31 * result + ObjectUtils.hashCode(value);
+
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+
+			if (!(obj instanceof PageKey))
+				return false;
+
+			Object[] other = ((PageKey) obj).values;
+
+			for (int i = 0; i < values.length; i++) {
+				if (!ObjectUtils.equals(values[i], other[i]))
+					return false;
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Page cache entry
+	 */
+	private static class PageEntry {
+		private List<Object> data;
+		private int count;
+		private Keyset keyset;
+
+		public PageEntry(List<Object> data, int count, Keyset keyset) {
+			this.data = data;
+			this.count = count;
+			this.keyset = keyset;
+		}
+	}
+}
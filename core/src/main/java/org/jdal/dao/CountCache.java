@@ -0,0 +1,239 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache of page result counts keyed by entity class, filter name and filter values.
+ * Entries expire after a time to live and could be invalidated by entity class
+ * when a DAO writes.
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class CountCache {
+
+	private static final Log log = LogFactory.getLog(CountCache.class);
+	public static final long DEFAULT_TIME_TO_LIVE = 60000;
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	/** time to live of cached counts in milliseconds */
+	private long timeToLive = DEFAULT_TIME_TO_LIVE;
+	/** max number of cached counts */
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private Map<CountKey, CountEntry> cache = new ConcurrentHashMap<CountKey, CountEntry>();
+
+	public CountCache() {
+	}
+
+	/**
+	 * @param timeToLive time to live of cached counts in milliseconds
+	 */
+	public CountCache(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Gets the cached count for a page
+	 * @param entityClass entity class
+	 * @param page the page
+	 * @return the count or null if none or expired
+	 */
+	public Integer get(Class<?> entityClass, Page<?> page) {
+		CountKey key = createKey(entityClass, page);
+
+		if (key == null)
+			return null;
+
+		CountEntry entry = cache.get(key);
+
+		if (entry == null)
+			return null;
+
+		if (entry.isExpired()) {
+			cache.remove(key);
+			return null;
+		}
+
+		return entry.count;
+	}
+
+	/**
+	 * Store the page count
+	 * @param entityClass entity class
+	 * @param page the page holding the count
+	 */
+	public void put(Class<?> entityClass, Page<?> page) {
+		CountKey key = createKey(entityClass, page);
+
+		if (key == null)
+			return;
+
+		if (cache.size() >= maxSize)
+			purge();
+
+		cache.put(key, new CountEntry(page.getCount(), System.currentTimeMillis() + timeToLive));
+	}
+
+	/**
+	 * Remove all cached counts of entity class
+	 * @param entityClass the entity class
+	 */
+	public void invalidate(Class<?> entityClass) {
+		Iterator<CountKey> iter = cache.keySet().iterator();
+		while (iter.hasNext()) {
+			if (ObjectUtils.equals(entityClass, iter.next().entityClass))
+				iter.remove();
+		}
+	}
+
+	/**
+	 * Remove all cached counts
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Remove expired counts, clear the cache if still full.
+	 */
+	private void purge() {
+		Iterator<CountEntry> iter = cache.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().isExpired())
+				iter.remove();
+		}
+
+		if (cache.size() >= maxSize) {
+			if (log.isDebugEnabled())
+				log.debug("Count cache is full, clearing it");
+
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Create a cache key for page
+	 * @param entityClass entity class
+	 * @param page the page
+	 * @return the key or null if page filter could not be used as key
+	 */
+	private CountKey createKey(Class<?> entityClass, Page<?> page) {
+		Object filter = page.getFilter();
+
+		if (filter == null)
+			return new CountKey(entityClass, null, null);
+
+		if (filter instanceof Filter) {
+			Filter f = (Filter) filter;
+			return new CountKey(entityClass, f.getFilterName(),
+					new HashMap<String, Object>(f.getParameterMap()));
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the timeToLive
+	 */
+	public long getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * @param timeToLive the timeToLive to set
+	 */
+	public void setTimeToLive(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * @return the maxSize
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize the maxSize to set
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Cache key
+	 */
+	private static class CountKey {
+		private Class<?> entityClass;
+		private String filterName;
+		private Map<String, Object> parameters;
+
+		public CountKey(Class<?> entityClass, String filterName, Map<String, Object> parameters) {
+			this.entityClass = entityClass;
+			this.filterName = filterName;
+			this.parameters = parameters;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = 31 + ObjectUtils.hashCode(entityClass);
+			result = 31 * result + ObjectUtils.hashCode(filterName);
+
+			return 31 * result + ObjectUtils.hashCode(parameters);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+
+			if (!(obj instanceof CountKey))
+				return false;
+
+			CountKey other = (CountKey) obj;
+
+			return ObjectUtils.equals(entityClass, other.entityClass) &&
+					ObjectUtils.equals(filterName, other.filterName) &&
+					ObjectUtils.equals(parameters, other.parameters);
+		}
+	}
+
+	/**
+	 * Cache entry
+	 */
+	private static class CountEntry {
+		private int count;
+		private long expires;
+
+		public CountEntry(int count, long expires) {
+			this.count = count;
+			this.expires = expires;
+		}
+
+		public boolean isExpired() {
+			return System.currentTimeMillis() > expires;
+		}
+	}
+}
@@ -19,6 +19,7 @@ import java.io.Serializable;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Generic DAO with pageable datasource interface.
@@ -47,6 +48,13 @@ public interface Dao<T, PK extends Serializable> extends PageableDataSource<T> {
      */
     boolean exists(PK id);
 
+    /**
+     * Gets the ids of existing entities, testing with id only IN queries when possible.
+     * @param ids the ids to test
+     * @return the existing ids
+     */
+    Set<PK> existing(Collection<PK> ids);
+
     /**
 	 * Save or update an object
      * @param object the object to save
@@ -91,6 +99,15 @@ public interface Dao<T, PK extends Serializable> extends PageableDataSource<T> {
      */
 	T initialize(T entity, int depth);
 	
+	/**
+	 * Initialize a collection of entities, loading associations of all 
+	 * entities at the same depth together.
+	 * @param entities entities to initialize
+	 * @param depth to descend.
+	 * @return initialized entities
+	 */
+	Collection<T> initialize(Collection<T> entities, int depth);
+	
 	// Utility methods for collectins
 	
 	/**
@@ -111,13 +128,46 @@ public interface Dao<T, PK extends Serializable> extends PageableDataSource<T> {
 	 * @param ids ids to delete
 	 */
 	void deleteById(Collection<PK> ids);
-	
+
+	/**
+	 * Get entities by id, with IN queries when possible.
+	 * @param ids entity ids
+	 * @return the found entities in ids order
+	 */
+	List<T> getAll(Collection<PK> ids);
+
+	/**
+	 * Update all entities matching a filter with bulk statements. Bulk updates
+	 * skip the persistence context, so loaded entities are not refreshed.
+	 * @param filter the filter, null for all entities
+	 * @param assignments new values by property name
+	 * @return the number of updated entities
+	 */
+	int updateAll(Filter filter, Map<String, Object> assignments);
+
+	/**
+	 * Delete all entities matching a filter, with bulk statements when possible.
+	 * @param filter the filter, null for all entities
+	 * @return the number of deleted entities
+	 */
+	int deleteAll(Filter filter);
+
 	// Non generic get and getAll methods
 	
 	<E> E get(PK id, Class<E> clazz );
 	
 	<E> List<E> getAll(Class<E> clazz);
 	
+	/**
+	 * Scroll over all results of a page definition, filter and sort, ignoring the
+	 * page range. Use it to read large results without loading them in memory.
+	 * The returned Cursor must be closed after use.
+	 * @param page page with filter and sort definition
+	 * @param fetchSize number of rows to fetch from database at once
+	 * @return a Cursor over results
+	 */
+	Cursor<T> scroll(Page<T> page, int fetchSize);
+	
 	/**
 	 * Return the entity class
 	 * @return the entity class handled for this DAO, Maybe Object.class 
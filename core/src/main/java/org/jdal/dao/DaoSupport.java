@@ -20,6 +20,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import org.jdal.dao.EntityChangeEvent.Type;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
 /**
  * Support class for {@link Dao} implementation.
  * 
@@ -29,6 +35,22 @@ import java.util.List;
  */
 public abstract class DaoSupport<T, PK extends Serializable> implements Dao<T, PK>  {
 	
+	public static final int DEFAULT_BATCH_SIZE = 50;
+	public static final int DEFAULT_MAX_IN_PARAMETERS = 1000;
+	
+	/** cache for page counts */
+	private CountCache countCache = new CountCache();
+	/** number of entities to process before flushing on collection operations */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	/** max number of parameters in IN expressions */
+	private int maxInParameters = DEFAULT_MAX_IN_PARAMETERS;
+	/** bus to publish entity changes, if any */
+	private EntityChangeBus changeBus;
+	/** clear the persistence context after each batch of collection writes */
+	private boolean clearOnBatch = false;
+	/** select the entities of filtered bulk statements with a subquery, null to detect */
+	private Boolean bulkSubqueries;
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -60,4 +82,336 @@ public abstract class DaoSupport<T, PK extends Serializable> implements Dao<T, P
 
 	}
 
+	/**
+	 * Resolve the page count without a count query when the page count mode allows it.
+	 * @param page request page
+	 * @return true if the count query must run
+	 */
+	protected boolean isCountRequired(Page<?> page) {
+		switch (page.getCountMode()) {
+			case NONE:
+			case ESTIMATED:
+				return false;
+			case CACHED:
+				Integer count = countCache.get(getEntityClass(), page);
+				if (count != null) {
+					page.setCount(count);
+					return false;
+				}
+				return true;
+			default:
+				return true;
+		}
+	}
+	
+	/**
+	 * Notify that the count query has run, cache the page count if needed.
+	 * @param page the page with the count
+	 */
+	protected void countLoaded(Page<?> page) {
+		if (page.getCountMode() == Page.CountMode.CACHED)
+			countCache.put(getEntityClass(), page);
+	}
+	
+	/**
+	 * Gets the max number of rows to query for a page, one more when 
+	 * count is estimated to know if there is a next page.
+	 * @param page request page
+	 * @return max results
+	 */
+	protected int getMaxResults(Page<?> page) {
+		return page.getCountMode() == Page.CountMode.ESTIMATED ? 
+				page.getPageSize() + 1 : page.getPageSize();
+	}
+	
+	/**
+	 * Set estimated count on page when needed and remove the look-ahead row.
+	 * @param page request page
+	 * @param data query results
+	 * @return page data
+	 */
+	protected <K> List<K> estimateCount(Page<K> page, List<K> data) {
+		if (page.getCountMode() != Page.CountMode.ESTIMATED)
+			return data;
+		
+		boolean hasNext = data.size() > page.getPageSize();
+		
+		if (hasNext)
+			data = new ArrayList<K>(data.subList(0, page.getPageSize()));
+		
+		page.setCount(page.getStartIndex() + data.size() + (hasNext ? 1 : 0));
+		
+		return data;
+	}
+	
+	/**
+	 * Create new, unmanaged entity instances from projection rows.
+	 * @param rows projection rows, an Object[] or a single value per row
+	 * @param properties property paths of row columns
+	 * @return list of entities with only projected properties set
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<T> createProjectionRows(List<?> rows, List<String> properties) {
+		List<T> entities = new ArrayList<T>(rows.size());
+		
+		for (Object row : rows) {
+			Object[] values = row instanceof Object[] ? (Object[]) row : new Object[] { row };
+			BeanWrapper wrapper = new BeanWrapperImpl(getEntityClass());
+			wrapper.setAutoGrowNestedPaths(true);
+			
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null)
+					wrapper.setPropertyValue(properties.get(i), values[i]);
+			}
+			
+			entities.add((T) wrapper.getWrappedInstance());
+		}
+		
+		return entities;
+	}
+	
+	/**
+	 * Gets the ids of all entities matching a filter. Used by filtered bulk statements
+	 * when the filter could not be used as subquery.
+	 * @param filter the filter, null for all entities
+	 * @return the entity ids
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<PK> getFilterKeys(Filter filter) {
+		Page<T> page = new Page<T>(Integer.MAX_VALUE);
+		page.setFilter(filter);
+
+		return (List<PK>) (List<?>) getKeys(page);
+	}
+
+	/**
+	 * Drop cached counts of entity class, should be called on writes.
+	 */
+	protected void invalidateCount() {
+		countCache.invalidate(getEntityClass());
+	}
+
+	/**
+	 * Publish changes of entities to the change bus, after commit if there is a transaction.
+	 * @param type the change type
+	 * @param entities the changed entities
+	 */
+	protected void fireEntityChanges(final Type type, Collection<?> entities) {
+		if (changeBus == null || entities.isEmpty())
+			return;
+
+		final List<Object> changed = new ArrayList<Object>(entities);
+
+		afterCommit(new Runnable() {
+
+			public void run() {
+				for (Object entity : changed) {
+					changeBus.publish(new EntityChangeEvent(DaoSupport.this, entity.getClass(), type,
+							getEntityId(entity), getEntityVersion(entity), entity));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Publish changes of entities by id to the change bus, after commit if there is a transaction.
+	 * @param type the change type
+	 * @param ids the changed entity ids
+	 */
+	protected void fireIdChanges(final Type type, Collection<? extends Serializable> ids) {
+		if (changeBus == null || ids.isEmpty())
+			return;
+
+		final List<Serializable> changed = new ArrayList<Serializable>(ids);
+
+		afterCommit(new Runnable() {
+
+			public void run() {
+				for (Serializable id : changed) {
+					changeBus.publish(new EntityChangeEvent(DaoSupport.this, getEntityClass(), type,
+							id, null, null));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Publish a bulk change of unknown entities to the change bus, after commit if
+	 * there is a transaction.
+	 */
+	protected void fireBulkChange() {
+		if (changeBus == null)
+			return;
+
+		afterCommit(new Runnable() {
+
+			public void run() {
+				changeBus.publish(new EntityChangeEvent(DaoSupport.this, getEntityClass(), Type.BULK,
+						null, null, null));
+			}
+		});
+	}
+
+	/**
+	 * Run a task after commit of current transaction, or now if there is none.
+	 * @param task the task to run
+	 */
+	private void afterCommit(final Runnable task) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			task.run();
+			return;
+		}
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+			@Override
+			public void afterCommit() {
+				task.run();
+			}
+		});
+	}
+
+	/**
+	 * Gets the id of an entity, used to publish entity changes.
+	 * @param entity the entity
+	 * @return the entity id or null if unknown
+	 */
+	protected Serializable getEntityId(Object entity) {
+		return null;
+	}
+
+	/**
+	 * Gets the version of an entity, used to publish entity changes.
+	 * @param entity the entity
+	 * @return the entity version or null if not versioned
+	 */
+	protected Object getEntityVersion(Object entity) {
+		return null;
+	}
+
+	/**
+	 * Split a collection in lists of max size.
+	 * @param collection collection to split
+	 * @param size max list size
+	 * @return a List of Lists
+	 */
+	protected static <E> List<List<E>> partition(Collection<E> collection, int size) {
+		List<List<E>> partitions = new ArrayList<List<E>>();
+		List<E> partition = new ArrayList<E>(Math.min(size, collection.size()));
+		
+		for (E e : collection) {
+			partition.add(e);
+			if (partition.size() == size) {
+				partitions.add(partition);
+				partition = new ArrayList<E>(Math.min(size, collection.size()));
+			}
+		}
+		
+		if (!partition.isEmpty())
+			partitions.add(partition);
+		
+		return partitions;
+	}
+
+	/**
+	 * @return the countCache
+	 */
+	public CountCache getCountCache() {
+		return countCache;
+	}
+
+	/**
+	 * @param countCache the countCache to set
+	 */
+	public void setCountCache(CountCache countCache) {
+		this.countCache = countCache;
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize the batchSize to set
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the clearOnBatch
+	 */
+	public boolean isClearOnBatch() {
+		return clearOnBatch;
+	}
+
+	/**
+	 * Sets if the persistence context is cleared after each batch of collection writes, 
+	 * to keep memory bounded on imports. Note that clearing detaches all entities 
+	 * of the persistence context, not only the written ones.
+	 * @param clearOnBatch true to clear after each batch
+	 */
+	public void setClearOnBatch(boolean clearOnBatch) {
+		this.clearOnBatch = clearOnBatch;
+	}
+
+	/**
+	 * @return the maxInParameters
+	 */
+	public int getMaxInParameters() {
+		return maxInParameters;
+	}
+
+	/**
+	 * @param maxInParameters the maxInParameters to set
+	 */
+	public void setMaxInParameters(int maxInParameters) {
+		this.maxInParameters = maxInParameters;
+	}
+
+	/**
+	 * @return the bulkSubqueries, detected with {@link #isBulkSubquerySupported()} if not set
+	 */
+	public boolean isBulkSubqueries() {
+		if (bulkSubqueries == null)
+			bulkSubqueries = isBulkSubquerySupported();
+		
+		return bulkSubqueries;
+	}
+
+	/**
+	 * Sets if filtered bulk updates and deletes select the entities with a subquery 
+	 * in a single statement. Otherwise, the ids are loaded first and modified by chunks 
+	 * of maxInParameters. By default, subqueries are used if the database supports them.
+	 * @param bulkSubqueries true to use subqueries
+	 */
+	public void setBulkSubqueries(boolean bulkSubqueries) {
+		this.bulkSubqueries = bulkSubqueries;
+	}
+
+	/**
+	 * Test if the database allows to select from the modified table in a subquery of 
+	 * bulk statements, MySQL doesn't. Subclasses should detect it, false by default.
+	 * @return true if bulk statements could use subqueries
+	 */
+	protected boolean isBulkSubquerySupported() {
+		return false;
+	}
+
+	/**
+	 * @return the changeBus
+	 */
+	public EntityChangeBus getChangeBus() {
+		return changeBus;
+	}
+
+	/**
+	 * @param changeBus the changeBus to set
+	 */
+	public void setChangeBus(EntityChangeBus changeBus) {
+		this.changeBus = changeBus;
+	}
 }
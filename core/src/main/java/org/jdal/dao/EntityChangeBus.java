@@ -0,0 +1,186 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdal.util.concurrent.DispatcherQueue;
+
+/**
+ * Deliver {@link EntityChangeEvent}s published by Daos to listeners subscribed by
+ * entity class. Listeners of a class receive the events of its subclasses too.
+ * <p>
+ * Events are delivered in the publisher thread or, if <code>async</code> is true,
+ * by a dispatcher thread reading a bounded queue of <code>queueCapacity</code> events.
+ * Publishers wait when the queue is full. Async buses must be started with {@link #init()}.
+ * </p>
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class EntityChangeBus {
+
+	private static final Log log = LogFactory.getLog(EntityChangeBus.class);
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+	/** listeners by entity class */
+	private Map<Class<?>, List<EntityChangeListener>> listeners =
+			new ConcurrentHashMap<Class<?>, List<EntityChangeListener>>();
+	/** deliver events in a dispatcher thread */
+	private boolean async = false;
+	/** max number of queued events when async */
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private DispatcherQueue<EntityChangeEvent> queue;
+
+	/**
+	 * Start the dispatcher thread if async
+	 */
+	public void init() {
+		if (!async || queue != null)
+			return;
+
+		queue = new DispatcherQueue<EntityChangeEvent>(new DispatcherQueue.Dispatcher<EntityChangeEvent>() {
+
+			public void dispatch(EntityChangeEvent event) {
+				deliver(event);
+			}
+		});
+		queue.setQueue(new ArrayBlockingQueue<EntityChangeEvent>(queueCapacity));
+		queue.start();
+	}
+
+	/**
+	 * Stop the dispatcher thread, if any.
+	 */
+	public void destroy() {
+		if (queue != null) {
+			queue.stop();
+			queue = null;
+		}
+	}
+
+	/**
+	 * Publish an event
+	 * @param event the event to publish
+	 */
+	public void publish(EntityChangeEvent event) {
+		if (queue != null)
+			queue.put(event);
+		else
+			deliver(event);
+	}
+
+	/**
+	 * Subscribe a listener to changes of entity class and subclasses
+	 * @param entityClass the entity class
+	 * @param listener the listener
+	 */
+	public synchronized void addListener(Class<?> entityClass, EntityChangeListener listener) {
+		List<EntityChangeListener> list = listeners.get(entityClass);
+
+		if (list == null) {
+			list = new CopyOnWriteArrayList<EntityChangeListener>();
+			listeners.put(entityClass, list);
+		}
+
+		list.add(listener);
+	}
+
+	/**
+	 * Subscribe a listener to changes of all entities
+	 * @param listener the listener
+	 */
+	public void addListener(EntityChangeListener listener) {
+		addListener(Object.class, listener);
+	}
+
+	/**
+	 * Unsubscribe a listener from an entity class
+	 * @param entityClass the entity class
+	 * @param listener the listener
+	 */
+	public void removeListener(Class<?> entityClass, EntityChangeListener listener) {
+		List<EntityChangeListener> list = listeners.get(entityClass);
+
+		if (list != null)
+			list.remove(listener);
+	}
+
+	/**
+	 * Unsubscribe a listener from all entities
+	 * @param listener the listener
+	 */
+	public void removeListener(EntityChangeListener listener) {
+		removeListener(Object.class, listener);
+	}
+
+	/**
+	 * Deliver an event to listeners of event entity class and superclasses.
+	 * @param event the event
+	 */
+	protected void deliver(EntityChangeEvent event) {
+		if (log.isDebugEnabled())
+			log.debug("Delivering " + event);
+
+		for (Map.Entry<Class<?>, List<EntityChangeListener>> entry : listeners.entrySet()) {
+			if (!entry.getKey().isAssignableFrom(event.getEntityClass()))
+				continue;
+
+			for (EntityChangeListener listener : entry.getValue()) {
+				try {
+					listener.entityChanged(event);
+				}
+				catch (RuntimeException re) {
+					log.error("Listener failed on " + event, re);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the async
+	 */
+	public boolean isAsync() {
+		return async;
+	}
+
+	/**
+	 * @param async the async to set
+	 */
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	/**
+	 * @return the queueCapacity
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity the queueCapacity to set
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+}
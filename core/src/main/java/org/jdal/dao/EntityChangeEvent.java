@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.io.Serializable;
+import java.util.EventObject;
+
+/**
+ * Event to notify {@link EntityChangeListener}s that an entity was written by a Dao.
+ * 
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class EntityChangeEvent extends EventObject {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Change types */
+	public enum Type {
+		/** entity was inserted */
+		CREATED,
+		/** entity was updated */
+		UPDATED,
+		/** entity was deleted */
+		DELETED,
+		/** unknown entities were changed by a bulk statement, refresh all */
+		BULK
+	}
+
+	/** the entity class */
+	private Class<?> entityClass;
+	/** the entity id, null on bulk changes */
+	private Serializable id;
+	/** the change type */
+	private Type type;
+	/** the entity version, if any */
+	private Object version;
+	/** the changed entity, null if changed by id */
+	private transient Object entity;
+
+	/**
+	 * @param source the dao
+	 * @param entityClass the entity class
+	 * @param type the change type
+	 * @param id the entity id
+	 * @param version the entity version
+	 * @param entity the changed entity
+	 */
+	public EntityChangeEvent(Object source, Class<?> entityClass, Type type, Serializable id,
+			Object version, Object entity) {
+		super(source);
+		this.entityClass = entityClass;
+		this.type = type;
+		this.id = id;
+		this.version = version;
+		this.entity = entity;
+	}
+
+	/**
+	 * @return the entityClass
+	 */
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	/**
+	 * @return the id
+	 */
+	public Serializable getId() {
+		return id;
+	}
+
+	/**
+	 * @return the type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the version
+	 */
+	public Object getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the entity
+	 */
+	public Object getEntity() {
+		return entity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "EntityChangeEvent[" + type + " " + entityClass.getName() + "#" + id + "]";
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.util.EventListener;
+
+/**
+ * Listener for entity changes published on a {@link EntityChangeBus}.
+ * 
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public interface EntityChangeListener extends EventListener {
+
+	/**
+	 * Notify an entity change
+	 * @param event the change event
+	 */
+	void entityChanged(EntityChangeEvent event);
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * Boundary keys of a loaded {@link Page}: sort value and id of first and last rows.
+ * Used by PageableDataSources to seek adjacent pages instead of using an offset.
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class Keyset implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** page number that holds the keys */
+	private int page;
+	/** page size when the keys were taken */
+	private int pageSize;
+	/** sort property name when the keys were taken */
+	private String sortName;
+	/** sort order when the keys were taken */
+	private Page.Order order;
+	/** filter class when the keys were taken */
+	private Class<?> filterClass;
+	/** filter name when the keys were taken */
+	private String filterName;
+	/** filter values when the keys were taken */
+	private Map<String, Object> filterValues;
+	/** sort value of first row */
+	private Object firstValue;
+	/** id of first row */
+	private Object firstId;
+	/** sort value of last row */
+	private Object lastValue;
+	/** id of last row */
+	private Object lastId;
+
+	/**
+	 * Create a Keyset for a loaded page.
+	 * @param page the loaded page
+	 * @param firstValue sort value of first row
+	 * @param firstId id of first row
+	 * @param lastValue sort value of last row
+	 * @param lastId id of last row
+	 */
+	public Keyset(Page<?> page, Object firstValue, Object firstId, Object lastValue, Object lastId) {
+		this.page = page.getPage();
+		this.pageSize = page.getPageSize();
+		this.sortName = page.getSortName();
+		this.order = page.getOrder();
+		this.filterClass = getFilterClass(page);
+		this.filterName = getFilterName(page);
+		this.filterValues = getFilterValues(page);
+		this.firstValue = firstValue;
+		this.firstId = firstId;
+		this.lastValue = lastValue;
+		this.lastId = lastId;
+	}
+
+	/**
+	 * Test if this keyset was taken with the same page definition, so
+	 * it could be used to seek adjacent pages.
+	 * @param p page to test
+	 * @return true if keyset is valid for page
+	 */
+	public boolean matches(Page<?> p) {
+		return pageSize == p.getPageSize() &&
+				order == p.getOrder() &&
+				ObjectUtils.equals(sortName, p.getSortName()) &&
+				filterClass == getFilterClass(p) &&
+				ObjectUtils.equals(filterName, getFilterName(p)) &&
+				ObjectUtils.equals(filterValues, getFilterValues(p));
+	}
+
+	/**
+	 * Gets the filter class from page
+	 * @param p the page
+	 * @return the filter class or null if page has no filter
+	 */
+	private Class<?> getFilterClass(Page<?> p) {
+		return p.getFilter() != null ? p.getFilter().getClass() : null;
+	}
+
+	/**
+	 * Gets the filter name from page
+	 * @param p the page
+	 * @return the filter name or null if page has no Filter
+	 */
+	private String getFilterName(Page<?> p) {
+		return p.getFilter() instanceof Filter ? ((Filter) p.getFilter()).getFilterName() : null;
+	}
+
+	/**
+	 * Gets a copy of filter values from page
+	 * @param p the page
+	 * @return filter values or null if page has no Filter
+	 */
+	private Map<String, Object> getFilterValues(Page<?> p) {
+		if (p.getFilter() instanceof Filter) {
+			Filter filter = (Filter) p.getFilter();
+			return new HashMap<String, Object>(filter.getParameterMap());
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the page
+	 */
+	public int getPage() {
+		return page;
+	}
+
+	/**
+	 * @return the firstValue
+	 */
+	public Object getFirstValue() {
+		return firstValue;
+	}
+
+	/**
+	 * @return the firstId
+	 */
+	public Object getFirstId() {
+		return firstId;
+	}
+
+	/**
+	 * @return the lastValue
+	 */
+	public Object getLastValue() {
+		return lastValue;
+	}
+
+	/**
+	 * @return the lastId
+	 */
+	public Object getLastId() {
+		return lastId;
+	}
+}
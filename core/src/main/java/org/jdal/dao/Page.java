@@ -35,6 +35,16 @@ public class Page<T> implements Paginator, Cloneable, Serializable {
 
 	private static final Log log = LogFactory.getLog(Page.class);
 	public static enum Order { ASC, DESC };
+	/** Direction to seek from a stored keyset */
+	public static enum Seek { NONE, NEXT, PREVIOUS };
+	/** 
+	 * How PageableDataSources compute the result count: 
+	 * run a count query on every load, cache it, estimate it from a look-ahead row
+	 * on the data query, or do not count at all.
+	 */
+	public static enum CountMode { EXACT, CACHED, ESTIMATED, NONE };
+	/** Pessimistic lock to acquire on loaded rows */
+	public static enum LockMode { NONE, READ, WRITE };
 	/** List of results */
 	private List<T> data = new ArrayList<T>();
 	/** Result count, Not the page size, the count of all result if not paginated */
@@ -45,6 +55,8 @@ public class Page<T> implements Paginator, Cloneable, Serializable {
 	private String sortName;
 	/** sort order */
 	private Order order;
+	/** sort keys after sortName, to sort by many properties */
+	private ArrayList<SortKey> thenBy = new ArrayList<SortKey>();
 	/** a Object used as filter */
 	private Object filter;
 	/** page number  */
@@ -55,6 +67,24 @@ public class Page<T> implements Paginator, Cloneable, Serializable {
 	private ArrayList<PaginatorListener> listeners = new ArrayList<PaginatorListener>();
 	/** if true, autoload data in page property changes */
 	private boolean autoload = true;
+	/** if true, use keyset (seek) pagination when moving to adjacent pages */
+	private boolean keysetPaging = false;
+	/** boundary keys of last loaded page */
+	private Keyset keyset;
+	/** how to compute the result count */
+	private CountMode countMode = CountMode.EXACT;
+	/** property paths to load, load full objects if empty */
+	private List<String> projection = new ArrayList<String>();
+	/** if true, loaded entities are read only and not dirty checked */
+	private boolean readOnly = false;
+	/** number of rows to fetch from database at once, 0 for driver default */
+	private int fetchSize = 0;
+	/** query timeout in millis, 0 for none */
+	private int timeout = 0;
+	/** if true, use the query cache */
+	private boolean cacheable = false;
+	/** lock to acquire on loaded rows */
+	private LockMode lockMode = LockMode.NONE;
 	
 	public Page(int pageSize, int page, String sortName, Order order) {
 	
@@ -112,10 +142,66 @@ public class Page<T> implements Paginator, Cloneable, Serializable {
 	}
 
 	/**
+	 * Sort by a single property, removing other sort keys.
 	 * @param sortName the sortName to set
 	 */
 	public void setSortName(String sortName) {
 		this.sortName = sortName;
+		this.thenBy.clear();
+	}
+	
+	/**
+	 * Gets all sort keys, the sortName and order first.
+	 * @return the sort keys, empty if not sorted
+	 */
+	public List<SortKey> getSortKeys() {
+		List<SortKey> sortKeys = new ArrayList<SortKey>(thenBy.size() + 1);
+		
+		if (sortName != null) 
+			sortKeys.add(new SortKey(sortName, order));
+		
+		sortKeys.addAll(thenBy);
+		
+		return sortKeys;
+	}
+	
+	/**
+	 * Sort by many properties, the first sort key sets sortName and order.
+	 * @param sortKeys the sort keys, in priority order
+	 */
+	public void setSortKeys(List<SortKey> sortKeys) {
+		this.thenBy.clear();
+		
+		if (sortKeys == null || sortKeys.isEmpty()) {
+			this.sortName = null;
+			return;
+		}
+		
+		this.sortName = sortKeys.get(0).getSortName();
+		this.order = sortKeys.get(0).getOrder();
+		this.thenBy.addAll(sortKeys.subList(1, sortKeys.size()));
+	}
+	
+	/**
+	 * Add a sort key with lower priority than current ones.
+	 * @param sortName property to sort by
+	 * @param order sort order
+	 */
+	public void addSortKey(String sortName, Order order) {
+		if (this.sortName == null) {
+			this.sortName = sortName;
+			this.order = order;
+		}
+		else {
+			thenBy.add(new SortKey(sortName, order));
+		}
+	}
+	
+	/**
+	 * @return true if sorted by more than one property
+	 */
+	public boolean isMultiSort() {
+		return sortName != null && !thenBy.isEmpty();
 	}
 
 	/**
@@ -155,16 +241,21 @@ public class Page<T> implements Paginator, Cloneable, Serializable {
 	}
 
 	/**
+	 * Sets the filter, stored keysets are dropped as they were taken with other filter.
 	 * @param filter the filter to set
 	 */
 	public void setFilter(Object filter) {
 		this.filter = filter;
+		this.keyset = null;
 	}
 
 	
 	public Page<T> clone() {
 		try {
-			return (Page<T>) super.clone();
+			Page<T> clone = (Page<T>) super.clone();
+			clone.thenBy = (ArrayList<SortKey>) thenBy.clone();
+			
+			return clone;
 		} catch (CloneNotSupportedException e) {
 			log.error(e);
 			return null;
@@ -353,4 +444,223 @@ public class Page<T> implements Paginator, Cloneable, Serializable {
 		this.autoload = autoload;
 	}
 
+	/**
+	 * Gets the seek direction from the stored keyset to current page. 
+	 * Random page jumps or changes in page definition return {@link Seek#NONE}, 
+	 * so the PageableDataSource should fall back to offset pagination.
+	 * @return the seek direction
+	 */
+	public Seek getSeek() {
+		if (!keysetPaging || keyset == null || !keyset.matches(this))
+			return Seek.NONE;
+		
+		if (page == keyset.getPage() + 1)
+			return Seek.NEXT;
+		
+		if (page == keyset.getPage() - 1)
+			return Seek.PREVIOUS;
+		
+		return Seek.NONE;
+	}
+
+	/**
+	 * @return the keysetPaging
+	 */
+	public boolean isKeysetPaging() {
+		return keysetPaging;
+	}
+
+	/**
+	 * @param keysetPaging the keysetPaging to set
+	 */
+	public void setKeysetPaging(boolean keysetPaging) {
+		this.keysetPaging = keysetPaging;
+		
+		if (!keysetPaging)
+			this.keyset = null;
+	}
+
+	/**
+	 * @return the keyset
+	 */
+	public Keyset getKeyset() {
+		return keyset;
+	}
+
+	/**
+	 * @param keyset the keyset to set
+	 */
+	public void setKeyset(Keyset keyset) {
+		this.keyset = keyset;
+	}
+
+	/**
+	 * @return the countMode
+	 */
+	public CountMode getCountMode() {
+		return countMode;
+	}
+
+	/**
+	 * @param countMode the countMode to set
+	 */
+	public void setCountMode(CountMode countMode) {
+		this.countMode = countMode;
+	}
+
+	/**
+	 * Gets the property paths to load. When not empty, DAOs may load only these 
+	 * properties (plus id and sort property) into new, unmanaged instances.
+	 * @return the projection
+	 */
+	public List<String> getProjection() {
+		return projection;
+	}
+
+	/**
+	 * @param projection the projection to set
+	 */
+	public void setProjection(List<String> projection) {
+		this.projection = projection != null ? projection : new ArrayList<String>();
+	}
+	
+	/**
+	 * @return true if page has a projection
+	 */
+	public boolean isProjection() {
+		return !projection.isEmpty();
+	}
+
+	/**
+	 * @return the readOnly
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Load entities in read only mode, skipping dirty checking snapshots. Changes 
+	 * on read only entities are not flushed to database.
+	 * @param readOnly the readOnly to set
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * @return the fetchSize
+	 */
+	public int getFetchSize() {
+		return fetchSize;
+	}
+
+	/**
+	 * @param fetchSize the fetchSize to set
+	 */
+	public void setFetchSize(int fetchSize) {
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * @return the timeout
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param timeout the timeout to set
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return the cacheable
+	 */
+	public boolean isCacheable() {
+		return cacheable;
+	}
+
+	/**
+	 * @param cacheable the cacheable to set
+	 */
+	public void setCacheable(boolean cacheable) {
+		this.cacheable = cacheable;
+	}
+
+	/**
+	 * @return the lockMode
+	 */
+	public LockMode getLockMode() {
+		return lockMode;
+	}
+
+	/**
+	 * @param lockMode the lockMode to set
+	 */
+	public void setLockMode(LockMode lockMode) {
+		this.lockMode = lockMode != null ? lockMode : LockMode.NONE;
+	}
+	
+	/**
+	 * Copy query hints from other page
+	 * @param other the page to copy from
+	 */
+	public void copyHints(Page<?> other) {
+		this.readOnly = other.readOnly;
+		this.fetchSize = other.fetchSize;
+		this.timeout = other.timeout;
+		this.cacheable = other.cacheable;
+		this.lockMode = other.lockMode;
+	}
+
+	/**
+	 * A property to sort by and its order.
+	 */
+	public static class SortKey implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		private String sortName;
+		private Order order;
+		
+		public SortKey(String sortName, Order order) {
+			this.sortName = sortName;
+			this.order = order;
+		}
+		
+		/**
+		 * @return the sortName
+		 */
+		public String getSortName() {
+			return sortName;
+		}
+		
+		/**
+		 * @return the order
+		 */
+		public Order getOrder() {
+			return order;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof SortKey))
+				return false;
+			
+			SortKey other = (SortKey) obj;
+			
+			return sortName.equals(other.sortName) && order == other.order;
+		}
+		
+		@Override
+		public int hashCode() {
+			return sortName.hashCode() * 31 + (order != null ? order.hashCode() : 0);
+		}
+		
+		@Override
+		public String toString() {
+			return sortName + " " + order;
+		}
+	}
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link Cursor} that reads a {@link PageableDataSource} page by page. 
+ * Uses keyset paging, so reading deep pages don't need to skip rows when the 
+ * PageableDataSource support it.
+ * 
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class PageCursor<T> implements Cursor<T> {
+	
+	private PageableDataSource<T> dataSource;
+	private Page<T> page;
+	private Iterator<T> iterator;
+	private boolean closed = false;
+	
+	/**
+	 * Create a new PageCursor
+	 * @param dataSource the PageableDataSource to read from
+	 * @param page page with filter and sort definition
+	 * @param fetchSize number of rows to read on each page
+	 */
+	public PageCursor(PageableDataSource<T> dataSource, Page<T> page, int fetchSize) {
+		this.dataSource = dataSource;
+		this.page = new Page<T>(fetchSize, 1, page.getSortName(), page.getOrder());
+		this.page.setSortKeys(page.getSortKeys());
+		this.page.setFilter(page.getFilter());
+		this.page.copyHints(page);
+		this.page.setAutoload(false);
+		this.page.setKeysetPaging(true);
+		this.page.setCountMode(Page.CountMode.NONE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean hasNext() {
+		if (closed)
+			return false;
+		
+		if (iterator == null) {
+			load();
+		}
+		else if (!iterator.hasNext() && page.getData().size() >= page.getPageSize()) {
+			pageRead(page);
+			page.setPage(page.getPage() + 1);
+			load();
+		}
+		
+		return iterator.hasNext();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		
+		return iterator.next();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void close() {
+		closed = true;
+		iterator = null;
+	}
+	
+	/**
+	 * Load current page
+	 */
+	private void load() {
+		dataSource.getPage(page);
+		iterator = page.getData().iterator();
+	}
+	
+	/**
+	 * Called when all rows of a page were read, before loading the next one. 
+	 * Subclasses could override it to release resources held by the page rows.
+	 * @param page the page read
+	 */
+	protected void pageRead(Page<T> page) {
+		
+	}
+}
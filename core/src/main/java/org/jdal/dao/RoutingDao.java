@@ -0,0 +1,487 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ClassUtils;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * Dao that sends writes to a primary Dao and reads to a pool of replica Daos,
+ * ie JpaDaos or HibernateDaos configured with the EntityManager or SessionFactory
+ * of read only databases. Replicas are selected round robin.
+ * <p>
+ * After a write, reads of all RoutingDaos go to their primary until the end of the 
+ * current transaction, and, if <code>stickyTime</code> is set, reads of RoutingDaos 
+ * with the same name go to the primary in the current web session for 
+ * <code>stickyTime</code> millis, so users read their own writes.
+ * </p>
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class RoutingDao<T, PK extends Serializable> implements Dao<T, PK> {
+
+	private static final Log log = LogFactory.getLog(RoutingDao.class);
+	/** key of the write mark in transaction resources and prefix of session attributes */
+	private static final String WRITE_KEY = RoutingDao.class.getName() + ".WRITE";
+	private static final boolean webPresent = ClassUtils.isPresent(
+			"org.springframework.web.context.request.RequestContextHolder", RoutingDao.class.getClassLoader());
+
+	/** the primary dao */
+	private Dao<T, PK> primary;
+	/** read only replica daos */
+	private List<Dao<T, PK>> replicas = new ArrayList<Dao<T, PK>>();
+	/** millis to read from primary after a write in the same web session, 0 to disable */
+	private long stickyTime = 0;
+	/** read from primary when a replica fails */
+	private boolean failover = true;
+	private AtomicInteger next = new AtomicInteger();
+	/** name of the last write mark in web sessions, the entity class name if null */
+	private String name;
+
+	public RoutingDao() {
+	}
+
+	/**
+	 * @param primary the primary dao
+	 * @param replicas the replica daos
+	 */
+	public RoutingDao(Dao<T, PK> primary, List<Dao<T, PK>> replicas) {
+		this.primary = primary;
+		setReplicas(replicas);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <K> Page<K> getPage(Page<K> page) {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			dao.getPage(page);
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			readFailed(dao, darfe).getPage(page);
+		}
+
+		page.setPageableDataSource(this);
+
+		return page;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Serializable> getKeys(Page<T> page) {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			return dao.getKeys(page);
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			return readFailed(dao, darfe).getKeys(page);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> getAll() {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			return dao.getAll();
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			return readFailed(dao, darfe).getAll();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> getAll(Collection<PK> ids) {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			return dao.getAll(ids);
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			return readFailed(dao, darfe).getAll(ids);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T get(PK id) {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			return dao.get(id);
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			return readFailed(dao, darfe).get(id);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean exists(PK id) {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			return dao.exists(id);
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			return readFailed(dao, darfe).exists(id);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<PK> existing(Collection<PK> ids) {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			return dao.existing(ids);
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			return readFailed(dao, darfe).existing(ids);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> findByNamedQuery(String queryName, Map<String, Object> queryParams) {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			return dao.findByNamedQuery(queryName, queryParams);
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			return readFailed(dao, darfe).findByNamedQuery(queryName, queryParams);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <E> E get(PK id, Class<E> clazz) {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			return dao.get(id, clazz);
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			return readFailed(dao, darfe).get(id, clazz);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <E> List<E> getAll(Class<E> clazz) {
+		Dao<T, PK> dao = getReadDao();
+
+		try {
+			return dao.getAll(clazz);
+		}
+		catch (DataAccessResourceFailureException darfe) {
+			return readFailed(dao, darfe).getAll(clazz);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Cursor<T> scroll(Page<T> page, int fetchSize) {
+		return getReadDao().scroll(page, fetchSize);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T initialize(T entity) {
+		return getReadDao().initialize(entity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T initialize(T entity, int depth) {
+		return getReadDao().initialize(entity, depth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> initialize(Collection<T> entities, int depth) {
+		return getReadDao().initialize(entities, depth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T save(T entity) {
+		written();
+		return primary.save(entity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void deleteById(PK id) {
+		written();
+		primary.deleteById(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void delete(T entity) {
+		written();
+		primary.delete(entity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> save(Collection<T> collection) {
+		written();
+		return primary.save(collection);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void delete(Collection<T> collection) {
+		written();
+		primary.delete(collection);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void deleteById(Collection<PK> ids) {
+		written();
+		primary.deleteById(ids);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int updateAll(Filter filter, Map<String, Object> assignments) {
+		written();
+		return primary.updateAll(filter, assignments);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int deleteAll(Filter filter) {
+		written();
+		return primary.deleteAll(filter);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Class<T> getEntityClass() {
+		return primary.getEntityClass();
+	}
+
+	/**
+	 * Gets the dao to read from, the primary one if there are no replicas or
+	 * reads must see previous writes, otherwise the next replica.
+	 * @return the dao to read from
+	 */
+	protected Dao<T, PK> getReadDao() {
+		int size = replicas.size();
+
+		if (size == 0 || isWritten())
+			return primary;
+
+		return replicas.get((next.getAndIncrement() & Integer.MAX_VALUE) % size);
+	}
+
+	/**
+	 * Handle a replica failure, rethrow the exception if failover is disabled.
+	 * @param dao the failed dao
+	 * @param darfe the exception
+	 * @return the dao to retry with
+	 */
+	protected Dao<T, PK> readFailed(Dao<T, PK> dao, DataAccessResourceFailureException darfe) {
+		if (!failover || dao == primary)
+			throw darfe;
+
+		log.warn("Read failed on replica, retrying on primary: " + darfe.getMessage());
+
+		return primary;
+	}
+
+	/**
+	 * Mark a write in current transaction and web session, if any.
+	 */
+	protected void written() {
+		if (TransactionSynchronizationManager.isSynchronizationActive() &&
+				!TransactionSynchronizationManager.hasResource(WRITE_KEY)) {
+			TransactionSynchronizationManager.bindResource(WRITE_KEY, Boolean.TRUE);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+				@Override
+				public void afterCompletion(int status) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(WRITE_KEY);
+				}
+			});
+		}
+
+		if (stickyTime > 0 && webPresent)
+			SessionSupport.written(getSessionKey());
+	}
+
+	/**
+	 * Test if there was a write in current transaction or, in the
+	 * current web session, less than stickyTime millis ago.
+	 * @return true if reads must go to primary
+	 */
+	protected boolean isWritten() {
+		if (TransactionSynchronizationManager.hasResource(WRITE_KEY))
+			return true;
+
+		return stickyTime > 0 && webPresent && SessionSupport.isWritten(getSessionKey(), stickyTime);
+	}
+
+	/**
+	 * @return the session attribute name of the last write mark
+	 */
+	private String getSessionKey() {
+		return WRITE_KEY + "." + (name != null ? name : getEntityClass().getName());
+	}
+
+	/**
+	 * @return the primary dao
+	 */
+	public Dao<T, PK> getPrimary() {
+		return primary;
+	}
+
+	/**
+	 * @param primary the primary dao to set
+	 */
+	public void setPrimary(Dao<T, PK> primary) {
+		this.primary = primary;
+	}
+
+	/**
+	 * @return the replicas
+	 */
+	public List<Dao<T, PK>> getReplicas() {
+		return replicas;
+	}
+
+	/**
+	 * @param replicas the replicas to set
+	 */
+	public void setReplicas(List<Dao<T, PK>> replicas) {
+		this.replicas = replicas != null ? new ArrayList<Dao<T, PK>>(replicas) : new ArrayList<Dao<T, PK>>();
+	}
+
+	/**
+	 * @return the stickyTime
+	 */
+	public long getStickyTime() {
+		return stickyTime;
+	}
+
+	/**
+	 * @param stickyTime the stickyTime to set
+	 */
+	public void setStickyTime(long stickyTime) {
+		this.stickyTime = stickyTime;
+	}
+
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Sets the name of the last write mark in web sessions. RoutingDaos with the same 
+	 * name share the mark. Defaults to the entity class name.
+	 * @param name the name to set
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the failover
+	 */
+	public boolean isFailover() {
+		return failover;
+	}
+
+	/**
+	 * @param failover the failover to set
+	 */
+	public void setFailover(boolean failover) {
+		this.failover = failover;
+	}
+
+	/**
+	 * Keep last write time in web session, isolated to not require spring-web.
+	 */
+	private static class SessionSupport {
+
+		public static void written(String key) {
+			RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+
+			if (attributes != null)
+				attributes.setAttribute(key, System.currentTimeMillis(), RequestAttributes.SCOPE_SESSION);
+		}
+
+		public static boolean isWritten(String key, long stickyTime) {
+			RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+
+			if (attributes == null)
+				return false;
+
+			Long time = (Long) attributes.getAttribute(key, RequestAttributes.SCOPE_SESSION);
+
+			return time != null && System.currentTimeMillis() - time < stickyTime;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.io.Serializable;
+
+/**
+ * Resolve the shard of entities for {@link ShardedDao}.
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public interface ShardResolver<T, PK extends Serializable> {
+
+	/**
+	 * Gets the shard of an entity
+	 * @param entity the entity
+	 * @param shards number of shards
+	 * @return the shard index
+	 */
+	int getShard(T entity, int shards);
+
+	/**
+	 * Gets the shard of an entity id
+	 * @param id the entity id
+	 * @param shards number of shards
+	 * @return the shard index or -1 if unknown, then all shards will be queried
+	 */
+	int getShard(PK id, int shards);
+}
@@ -0,0 +1,789 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang.StringUtils;
+import org.jdal.util.BeanUtils;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.orm.ObjectRetrievalFailureException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Dao over entities split in shards, each one with its own Dao.
+ * <p>
+ * Pages are read from all shards in parallel, asking each shard for the first
+ * <code>startIndex + pageSize</code> rows in page order, and merged by the sort
+ * property values. Counts are summed. Sort values are compared in Java, so string
+ * order could differ from database collation.
+ * </p>
+ * <p>
+ * Writes are routed with a {@link ShardResolver}. Reads by id use the resolver if it
+ * knows the shard of the id, otherwise query all shards. Note that shard queries run
+ * in executor threads, out of the caller transaction. If no executor is set, a
+ * bounded pool of <code>poolSize</code> daemon threads is used.
+ * </p>
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class ShardedDao<T, PK extends Serializable> implements Dao<T, PK> {
+
+	public static final int DEFAULT_POOL_SIZE = 8;
+
+	/** shard daos */
+	private List<Dao<T, PK>> shards = new ArrayList<Dao<T, PK>>();
+	/** resolve shards of entities and ids */
+	private ShardResolver<T, PK> shardResolver;
+	/** executor for shard queries */
+	private volatile AsyncTaskExecutor executor;
+	/** bounded executor created when none is set */
+	private ThreadPoolTaskExecutor defaultExecutor;
+	/** max threads of the default executor */
+	private int poolSize = DEFAULT_POOL_SIZE;
+	/** id property name of entities */
+	private String idProperty = "id";
+
+	public ShardedDao() {
+	}
+
+	/**
+	 * @param shards shard daos
+	 * @param shardResolver the shard resolver
+	 */
+	public ShardedDao(List<Dao<T, PK>> shards, ShardResolver<T, PK> shardResolver) {
+		setShards(shards);
+		this.shardResolver = shardResolver;
+	}
+
+	/**
+	 * Create the default bounded executor if no executor was set.
+	 */
+	public synchronized void init() {
+		if (executor != null)
+			return;
+
+		ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+		pool.setThreadNamePrefix("ShardedDao-");
+		pool.setCorePoolSize(poolSize);
+		pool.setMaxPoolSize(poolSize);
+		pool.setAllowCoreThreadTimeOut(true);
+		pool.setDaemon(true);
+		pool.initialize();
+		defaultExecutor = pool;
+		executor = pool;
+	}
+
+	/**
+	 * Shutdown the default executor, if created.
+	 */
+	public synchronized void destroy() {
+		if (defaultExecutor != null) {
+			defaultExecutor.shutdown();
+
+			if (executor == defaultExecutor)
+				executor = null;
+
+			defaultExecutor = null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <K> Page<K> getPage(final Page<K> page) {
+		final int size = (int) Math.min((long) page.getStartIndex() + page.getPageSize(), Integer.MAX_VALUE);
+		List<Callable<Page<K>>> tasks = new ArrayList<Callable<Page<K>>>(shards.size());
+
+		for (final Dao<T, PK> shard : shards) {
+			tasks.add(new Callable<Page<K>>() {
+				public Page<K> call() {
+					return shard.getPage(createShardPage(page, size));
+				}
+			});
+		}
+
+		int count = 0;
+		List<List<K>> results = new ArrayList<List<K>>(shards.size());
+
+		for (Page<K> shardPage : invokeAll(tasks)) {
+			count += shardPage.getCount();
+			results.add(shardPage.getData());
+		}
+
+		List<K> merged = merge(results, getComparator(page), size);
+		page.setData(new ArrayList<K>(merged.subList(Math.min(page.getStartIndex(), merged.size()),
+				merged.size())));
+		page.setCount(count);
+		page.setPageableDataSource(this);
+
+		return page;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Keys of sorted pages are merged by the sort values, read from shards with a
+	 * projection page that holds the ids. Keys of unsorted pages are ordered by shard.
+	 */
+	public List<Serializable> getKeys(final Page<T> page) {
+		final int size = (int) Math.min((long) page.getStartIndex() + page.getPageSize(), Integer.MAX_VALUE);
+		final Comparator<Object> comparator = getComparator(page);
+		List<Callable<List<SortedKey>>> tasks = new ArrayList<Callable<List<SortedKey>>>(shards.size());
+
+		for (final Dao<T, PK> shard : shards) {
+			tasks.add(new Callable<List<SortedKey>>() {
+				public List<SortedKey> call() {
+					return getSortedKeys(shard, page, size, comparator != null);
+				}
+			});
+		}
+
+		Comparator<Object> keyComparator = comparator == null ? null : new Comparator<Object>() {
+			public int compare(Object o1, Object o2) {
+				return comparator.compare(((SortedKey) o1).row, ((SortedKey) o2).row);
+			}
+		};
+
+		List<SortedKey> merged = merge(invokeAll(tasks), keyComparator, size);
+		List<Serializable> keys = new ArrayList<Serializable>();
+
+		for (int i = page.getStartIndex(); i < merged.size(); i++)
+			keys.add(merged.get(i).key);
+
+		return keys;
+	}
+
+	/**
+	 * Gets the first size keys of a shard, with the rows holding the sort values if sorted.
+	 * Sorted keys are read from the id of projection rows, in a single query.
+	 * @param shard the shard dao
+	 * @param page the requested page
+	 * @param size number of keys
+	 * @param sorted true if the page is sorted
+	 * @return the shard keys
+	 */
+	private List<SortedKey> getSortedKeys(Dao<T, PK> shard, Page<T> page, int size, boolean sorted) {
+		Page<T> shardPage = createShardPage(page, size);
+		List<SortedKey> sortedKeys = new ArrayList<SortedKey>();
+
+		if (!sorted) {
+			for (Serializable key : shard.getKeys(shardPage))
+				sortedKeys.add(new SortedKey(key, null));
+
+			return sortedKeys;
+		}
+
+		List<String> projection = new ArrayList<String>();
+
+		for (Page.SortKey sortKey : page.getSortKeys())
+			projection.add(sortKey.getSortName());
+
+		shardPage.setProjection(projection);
+		shardPage.setCountMode(Page.CountMode.NONE);
+
+		for (T row : shard.getPage(shardPage).getData())
+			sortedKeys.add(new SortedKey((Serializable) BeanUtils.getProperty(row, idProperty), row));
+
+		return sortedKeys;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> getAll() {
+		List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>(shards.size());
+
+		for (final Dao<T, PK> shard : shards) {
+			tasks.add(new Callable<List<T>>() {
+				public List<T> call() {
+					return shard.getAll();
+				}
+			});
+		}
+
+		return concat(invokeAll(tasks));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Entities are ordered by shard.
+	 */
+	public List<T> getAll(final Collection<PK> ids) {
+		List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>(shards.size());
+
+		for (final Dao<T, PK> shard : shards) {
+			tasks.add(new Callable<List<T>>() {
+				public List<T> call() {
+					return shard.getAll(ids);
+				}
+			});
+		}
+
+		return concat(invokeAll(tasks));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T get(PK id) {
+		return get(id, getEntityClass());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <E> E get(final PK id, final Class<E> clazz) {
+		int index = shardResolver != null ? shardResolver.getShard(id, shards.size()) : -1;
+
+		if (index >= 0)
+			return shards.get(index).get(id, clazz);
+
+		List<Callable<E>> tasks = new ArrayList<Callable<E>>(shards.size());
+
+		for (final Dao<T, PK> shard : shards) {
+			tasks.add(new Callable<E>() {
+				public E call() {
+					try {
+						return shard.get(id, clazz);
+					}
+					catch (ObjectRetrievalFailureException orfe) {
+						return null;
+					}
+				}
+			});
+		}
+
+		for (E entity : invokeAll(tasks)) {
+			if (entity != null)
+				return entity;
+		}
+
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean exists(PK id) {
+		return findShard(id) != null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<PK> existing(final Collection<PK> ids) {
+		List<Callable<Set<PK>>> tasks = new ArrayList<Callable<Set<PK>>>(shards.size());
+
+		for (final Dao<T, PK> shard : shards) {
+			tasks.add(new Callable<Set<PK>>() {
+				public Set<PK> call() {
+					return shard.existing(ids);
+				}
+			});
+		}
+
+		Set<PK> existing = new HashSet<PK>();
+
+		for (Set<PK> shardExisting : invokeAll(tasks))
+			existing.addAll(shardExisting);
+
+		return existing;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T save(T entity) {
+		return getShard(entity).save(entity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void deleteById(PK id) {
+		Dao<T, PK> shard = findShard(id);
+
+		if (shard != null)
+			shard.deleteById(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void delete(T entity) {
+		getShard(entity).delete(entity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> findByNamedQuery(final String queryName, final Map<String, Object> queryParams) {
+		List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>(shards.size());
+
+		for (final Dao<T, PK> shard : shards) {
+			tasks.add(new Callable<List<T>>() {
+				public List<T> call() {
+					return shard.findByNamedQuery(queryName, queryParams);
+				}
+			});
+		}
+
+		return concat(invokeAll(tasks));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T initialize(T entity) {
+		return getShard(entity).initialize(entity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T initialize(T entity, int depth) {
+		return getShard(entity).initialize(entity, depth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> initialize(Collection<T> entities, int depth) {
+		Map<Dao<T, PK>, List<T>> byShard = groupByShard(entities);
+
+		for (Dao<T, PK> shard : byShard.keySet())
+			shard.initialize(byShard.get(shard), depth);
+
+		return entities;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> save(Collection<T> collection) {
+		Map<Dao<T, PK>, List<T>> byShard = groupByShard(collection);
+		List<T> saved = new ArrayList<T>(collection.size());
+
+		for (Dao<T, PK> shard : byShard.keySet())
+			saved.addAll(shard.save(byShard.get(shard)));
+
+		return saved;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void delete(Collection<T> collection) {
+		Map<Dao<T, PK>, List<T>> byShard = groupByShard(collection);
+
+		for (Dao<T, PK> shard : byShard.keySet())
+			shard.delete(byShard.get(shard));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Ids are deleted on all shards.
+	 */
+	public void deleteById(Collection<PK> ids) {
+		for (Dao<T, PK> shard : shards)
+			shard.deleteById(ids);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int updateAll(Filter filter, Map<String, Object> assignments) {
+		int count = 0;
+
+		for (Dao<T, PK> shard : shards)
+			count += shard.updateAll(filter, assignments);
+
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int deleteAll(Filter filter) {
+		int count = 0;
+
+		for (Dao<T, PK> shard : shards)
+			count += shard.deleteAll(filter);
+
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <E> List<E> getAll(final Class<E> clazz) {
+		List<Callable<List<E>>> tasks = new ArrayList<Callable<List<E>>>(shards.size());
+
+		for (final Dao<T, PK> shard : shards) {
+			tasks.add(new Callable<List<E>>() {
+				public List<E> call() {
+					return shard.getAll(clazz);
+				}
+			});
+		}
+
+		return concat(invokeAll(tasks));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Cursor<T> scroll(Page<T> page, int fetchSize) {
+		return new PageCursor<T>(this, page, fetchSize);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Class<T> getEntityClass() {
+		return shards.isEmpty() ? null : shards.get(0).getEntityClass();
+	}
+
+	/**
+	 * Gets the shard of an entity
+	 * @param entity the entity
+	 * @return the shard dao
+	 */
+	protected Dao<T, PK> getShard(T entity) {
+		if (shardResolver == null)
+			throw new InvalidDataAccessApiUsageException("ShardedDao needs a ShardResolver to route entities");
+
+		return shards.get(shardResolver.getShard(entity, shards.size()));
+	}
+
+	/**
+	 * Gets the shard of an id, querying all shards if the resolver doesn't know it.
+	 * @param id the entity id
+	 * @return the shard dao or null if the id doesn't exist
+	 */
+	protected Dao<T, PK> findShard(final PK id) {
+		int index = shardResolver != null ? shardResolver.getShard(id, shards.size()) : -1;
+
+		if (index >= 0)
+			return shards.get(index).exists(id) ? shards.get(index) : null;
+
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(shards.size());
+
+		for (final Dao<T, PK> shard : shards) {
+			tasks.add(new Callable<Boolean>() {
+				public Boolean call() {
+					return shard.exists(id);
+				}
+			});
+		}
+
+		List<Boolean> exists = invokeAll(tasks);
+
+		for (int i = 0; i < exists.size(); i++) {
+			if (exists.get(i))
+				return shards.get(i);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the comparator used to merge shard pages.
+	 * @param page the page
+	 * @return the comparator or null if page is not sorted
+	 */
+	protected Comparator<Object> getComparator(Page<?> page) {
+		if (StringUtils.isEmpty(page.getSortName()))
+			return null;
+
+		return new SortComparator(page.getSortKeys());
+	}
+
+	/**
+	 * Merge sorted shard results, up to size elements.
+	 * @param results shard results
+	 * @param comparator comparator of the sort order or null if not sorted
+	 * @param size max number of elements
+	 * @return merged results
+	 */
+	private <K> List<K> merge(List<List<K>> results, final Comparator<Object> comparator, int size) {
+		if (comparator == null) {
+			List<K> merged = concat(results);
+			return merged.size() > size ? merged.subList(0, size) : merged;
+		}
+
+		PriorityQueue<Head<K>> queue = new PriorityQueue<Head<K>>(Math.max(1, results.size()),
+				new Comparator<Head<K>>() {
+			public int compare(Head<K> o1, Head<K> o2) {
+				return comparator.compare(o1.current(), o2.current());
+			}
+		});
+
+		for (List<K> result : results) {
+			if (!result.isEmpty())
+				queue.add(new Head<K>(result));
+		}
+
+		List<K> merged = new ArrayList<K>();
+
+		while (merged.size() < size && !queue.isEmpty()) {
+			Head<K> head = queue.poll();
+			merged.add(head.current());
+
+			if (head.next())
+				queue.add(head);
+		}
+
+		return merged;
+	}
+
+	/**
+	 * Create a page for shards with the first size rows of page.
+	 */
+	private <K> Page<K> createShardPage(Page<K> page, int size) {
+		Page<K> shardPage = new Page<K>(size, 1, page.getSortName(), page.getOrder());
+		shardPage.setSortKeys(page.getSortKeys());
+		shardPage.setFilter(page.getFilter());
+		shardPage.setCountMode(page.getCountMode());
+		shardPage.setProjection(page.getProjection());
+		shardPage.copyHints(page);
+
+		return shardPage;
+	}
+
+	/**
+	 * Group entities by shard
+	 * @param entities entities to group
+	 * @return a map of entity lists by shard dao
+	 */
+	private Map<Dao<T, PK>, List<T>> groupByShard(Collection<T> entities) {
+		Map<Dao<T, PK>, List<T>> byShard = new LinkedHashMap<Dao<T, PK>, List<T>>();
+
+		for (T entity : entities) {
+			Dao<T, PK> shard = getShard(entity);
+			List<T> list = byShard.get(shard);
+
+			if (list == null) {
+				list = new ArrayList<T>();
+				byShard.put(shard, list);
+			}
+
+			list.add(entity);
+		}
+
+		return byShard;
+	}
+
+	/**
+	 * Run tasks with executor and wait for results
+	 * @param tasks tasks to run
+	 * @return task results in task order
+	 */
+	private <R> List<R> invokeAll(List<Callable<R>> tasks) {
+		List<Future<R>> futures = new ArrayList<Future<R>>(tasks.size());
+		AsyncTaskExecutor executor = getExecutor();
+
+		for (Callable<R> task : tasks)
+			futures.add(executor.submit(task));
+
+		List<R> results = new ArrayList<R>(tasks.size());
+
+		try {
+			for (Future<R> future : futures)
+				results.add(future.get());
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new DataRetrievalFailureException("Interrupted while waiting for shards", ie);
+		}
+		catch (ExecutionException ee) {
+			if (ee.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ee.getCause();
+
+			throw new DataRetrievalFailureException("Shard query failed", ee.getCause());
+		}
+		finally {
+			for (Future<R> future : futures)
+				future.cancel(true);
+		}
+
+		return results;
+	}
+
+	private static <E> List<E> concat(List<? extends Collection<E>> lists) {
+		List<E> result = new ArrayList<E>();
+
+		for (Collection<E> list : lists)
+			result.addAll(list);
+
+		return result;
+	}
+
+	/**
+	 * @return the shards
+	 */
+	public List<Dao<T, PK>> getShards() {
+		return Collections.unmodifiableList(shards);
+	}
+
+	/**
+	 * @param shards the shards to set
+	 */
+	public void setShards(List<Dao<T, PK>> shards) {
+		this.shards = new ArrayList<Dao<T, PK>>(shards);
+	}
+
+	/**
+	 * @return the shardResolver
+	 */
+	public ShardResolver<T, PK> getShardResolver() {
+		return shardResolver;
+	}
+
+	/**
+	 * @param shardResolver the shardResolver to set
+	 */
+	public void setShardResolver(ShardResolver<T, PK> shardResolver) {
+		this.shardResolver = shardResolver;
+	}
+
+	/**
+	 * @return the executor, the default one is created if none was set
+	 */
+	public AsyncTaskExecutor getExecutor() {
+		if (executor == null)
+			init();
+
+		return executor;
+	}
+
+	/**
+	 * @param executor the executor to set
+	 */
+	public void setExecutor(AsyncTaskExecutor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the max threads of the default executor
+	 */
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * @param poolSize the max threads of the default executor
+	 */
+	public void setPoolSize(int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * @return the id property name
+	 */
+	public String getIdProperty() {
+		return idProperty;
+	}
+
+	/**
+	 * @param idProperty the id property name of entities, used to read keys from projection rows
+	 */
+	public void setIdProperty(String idProperty) {
+		this.idProperty = idProperty;
+	}
+
+	/**
+	 * Current position on a sorted shard result.
+	 */
+	private static class Head<K> {
+		private List<K> list;
+		private int index;
+
+		public Head(List<K> list) {
+			this.list = list;
+		}
+
+		public K current() {
+			return list.get(index);
+		}
+
+		public boolean next() {
+			return ++index < list.size();
+		}
+	}
+
+	/**
+	 * Key of a shard row with the row holding its sort values.
+	 */
+	private static class SortedKey {
+		private Serializable key;
+		private Object row;
+
+		public SortedKey(Serializable key, Object row) {
+			this.key = key;
+			this.row = row;
+		}
+	}
+
+	/**
+	 * Compare beans by a property value, nulls first.
+	 */
+	private static class SortComparator implements Comparator<Object> {
+		private List<Page.SortKey> sortKeys;
+
+		public SortComparator(List<Page.SortKey> sortKeys) {
+			this.sortKeys = sortKeys;
+		}
+
+		public int compare(Object o1, Object o2) {
+			for (Page.SortKey sortKey : sortKeys) {
+				int result = compareValues(BeanUtils.getProperty(o1, sortKey.getSortName()),
+						BeanUtils.getProperty(o2, sortKey.getSortName()));
+
+				if (result != 0)
+					return sortKey.getOrder() == Page.Order.DESC ? -result : result;
+			}
+
+			return 0;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private int compareValues(Object v1, Object v2) {
+			if (v1 == null || v2 == null)
+				return v1 == v2 ? 0 : (v1 == null ? -1 : 1);
+			else if (v1 instanceof Comparable)
+				return ((Comparable) v1).compareTo(v2);
+			else
+				return v1.toString().compareTo(v2.toString());
+		}
+	}
+}
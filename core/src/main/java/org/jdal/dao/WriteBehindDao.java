@@ -0,0 +1,738 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Dao decorator that buffers saved entities and writes them later in batches,
+ * trading durability for throughput on high ingest entities.
+ * <p>
+ * Saves return at once. Repeated saves of an entity with the same id are coalesced
+ * and the buffer is flushed with {@link Dao#save(Collection)} in batches of
+ * <code>flushSize</code> entities, in a transaction per batch if a transaction manager
+ * is set, when it holds <code>flushSize</code> entities or every <code>flushInterval</code>
+ * millis. Saves block when the buffer holds <code>capacity</code> entities.
+ * Failed batches are passed to {@link WriteFailureHandler}s.
+ * </p>
+ * <p>
+ * {@link #get(Serializable)}, {@link #getAll(Collection)} and {@link #exists(Serializable)}
+ * read through unflushed entities, other reads only see flushed entities.
+ * Other writes flush the buffer before running, to keep write order.
+ * Call {@link #init()} to start the flush thread, otherwise flushes run in the saving thread.
+ * </p>
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class WriteBehindDao<T, PK extends Serializable> implements Dao<T, PK> {
+
+	private static final Log log = LogFactory.getLog(WriteBehindDao.class);
+	public static final int DEFAULT_CAPACITY = 10000;
+	public static final int DEFAULT_FLUSH_SIZE = 500;
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	/** the decorated dao */
+	private Dao<T, PK> dao;
+	/** transaction manager to write batches in transactions, if any */
+	private PlatformTransactionManager transactionManager;
+	/** max number of buffered entities */
+	private int capacity = DEFAULT_CAPACITY;
+	/** number of buffered entities that triggers a flush, and batch size */
+	private int flushSize = DEFAULT_FLUSH_SIZE;
+	/** millis between flushes, 0 to flush on size only */
+	private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+	/** max millis to wait for buffer space on save, 0 to wait forever */
+	private long saveTimeout = 0;
+	/** name of the id property, used to coalesce saves */
+	private String idProperty = "id";
+	private List<WriteFailureHandler<T>> failureHandlers = new CopyOnWriteArrayList<WriteFailureHandler<T>>();
+	/** entities waiting for flush, by id */
+	private Map<Object, T> pending = new LinkedHashMap<Object, T>();
+	/** entities being flushed, by id */
+	private Map<Object, T> flushing = Collections.emptyMap();
+	/** guards pending and flushing */
+	private final Object lock = new Object();
+	/** serializes flushes */
+	private final Object flushLock = new Object();
+	private AtomicBoolean flushRequested = new AtomicBoolean();
+	private volatile ScheduledExecutorService executor;
+
+	public WriteBehindDao() {
+	}
+
+	/**
+	 * @param dao dao to decorate
+	 */
+	public WriteBehindDao(Dao<T, PK> dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * Start the flush thread
+	 */
+	public void init() {
+		if (executor != null)
+			return;
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("WriteBehindDao-");
+		threadFactory.setDaemon(true);
+		executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+		if (flushInterval > 0) {
+			executor.scheduleWithFixedDelay(new Runnable() {
+
+				public void run() {
+					flushQuietly();
+				}
+			}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Flush buffered entities and stop the flush thread.
+	 */
+	public void destroy() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+
+		flush();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Buffer the entity and return it, waiting for space if the buffer is full.
+	 */
+	public T save(T entity) {
+		Object key = getKey(entity);
+		long deadline = System.currentTimeMillis() + saveTimeout;
+		boolean full;
+
+		while (!offer(key, entity, deadline)) {
+			// buffer full and no flush thread
+			flush();
+		}
+
+		synchronized (lock) {
+			full = pending.size() >= flushSize;
+		}
+
+		if (full)
+			requestFlush();
+
+		return entity;
+	}
+
+	/**
+	 * Put an entity in the buffer, waiting for space until deadline if there is a flush thread.
+	 * @param key the buffer key
+	 * @param entity the entity
+	 * @param deadline time to give up waiting when saveTimeout is set
+	 * @return false if the buffer is full and must be flushed by the caller
+	 */
+	private boolean offer(Object key, T entity, long deadline) {
+		synchronized (lock) {
+			while (!pending.containsKey(key) && pending.size() >= capacity) {
+				if (executor == null)
+					return false;
+
+				requestFlush();
+				long wait = saveTimeout > 0 ? deadline - System.currentTimeMillis() : 0;
+
+				if (saveTimeout > 0 && wait <= 0)
+					throw new TransientDataAccessResourceException("Write behind buffer is full");
+
+				try {
+					lock.wait(wait);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new TransientDataAccessResourceException("Interrupted waiting for buffer space", ie);
+				}
+			}
+
+			pending.put(key, entity);
+
+			return true;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> save(Collection<T> collection) {
+		for (T entity : collection)
+			save(entity);
+
+		return collection;
+	}
+
+	/**
+	 * Write all buffered entities now, in the calling thread.
+	 * @return the number of written entities
+	 */
+	public int flush() {
+		synchronized (flushLock) {
+			flushRequested.set(false);
+			List<T> entities;
+
+			synchronized (lock) {
+				if (pending.isEmpty())
+					return 0;
+
+				flushing = pending;
+				pending = new LinkedHashMap<Object, T>();
+				entities = new ArrayList<T>(flushing.values());
+				lock.notifyAll();
+			}
+
+			if (log.isDebugEnabled())
+				log.debug("Flushing " + entities.size() + " entities");
+
+			int count = 0;
+
+			try {
+				for (int i = 0; i < entities.size(); i += flushSize) {
+					List<T> batch = entities.subList(i, Math.min(i + flushSize, entities.size()));
+
+					try {
+						write(batch);
+						count += batch.size();
+					}
+					catch (RuntimeException re) {
+						writeFailed(new ArrayList<T>(batch), re);
+					}
+				}
+			}
+			finally {
+				synchronized (lock) {
+					flushing = Collections.emptyMap();
+					lock.notifyAll();
+				}
+			}
+
+			return count;
+		}
+	}
+
+	/**
+	 * Wait until all buffered entities are written, requesting a flush.
+	 * @param timeout max millis to wait, 0 to wait forever
+	 * @return true if the buffer is empty, false on timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean await(long timeout) throws InterruptedException {
+		requestFlush();
+		long deadline = System.currentTimeMillis() + timeout;
+
+		synchronized (lock) {
+			while (!pending.isEmpty() || !flushing.isEmpty()) {
+				long wait = timeout > 0 ? deadline - System.currentTimeMillis() : 0;
+
+				if (timeout > 0 && wait <= 0)
+					return false;
+
+				lock.wait(wait);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the number of buffered entities
+	 */
+	public int getBufferSize() {
+		synchronized (lock) {
+			return pending.size() + flushing.size();
+		}
+	}
+
+	/**
+	 * Request a flush to the flush thread or flush now if not started.
+	 */
+	protected void requestFlush() {
+		ScheduledExecutorService executor = this.executor;
+
+		if (executor == null)
+			flush();
+		else if (flushRequested.compareAndSet(false, true)) {
+			executor.execute(new Runnable() {
+
+				public void run() {
+					flushQuietly();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Write a batch of entities, in a new transaction if there is a transaction manager.
+	 * @param batch entities to write
+	 */
+	protected void write(final List<T> batch) {
+		if (transactionManager == null) {
+			dao.save(batch);
+			return;
+		}
+
+		new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				dao.save(batch);
+			}
+		});
+	}
+
+	/**
+	 * Notify failure handlers of a failed batch
+	 * @param batch the failed entities
+	 * @param exception the write exception
+	 */
+	protected void writeFailed(List<T> batch, RuntimeException exception) {
+		if (failureHandlers.isEmpty()) {
+			log.error("Failed to write " + batch.size() + " entities", exception);
+			return;
+		}
+
+		for (WriteFailureHandler<T> handler : failureHandlers) {
+			try {
+				handler.writeFailed(batch, exception);
+			}
+			catch (RuntimeException re) {
+				log.error("Write failure handler failed", re);
+			}
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		}
+		catch (RuntimeException re) {
+			log.error("Flush failed", re);
+		}
+	}
+
+	/**
+	 * Gets the buffer key of an entity, the id or the entity identity for entities 
+	 * without id, so repeated saves of the same instance are coalesced.
+	 * @param entity the entity
+	 * @return the buffer key
+	 */
+	protected Object getKey(T entity) {
+		Object id = getId(entity);
+
+		return id != null ? id : new IdentityKey(entity);
+	}
+
+	/**
+	 * Gets the id of an entity
+	 * @param entity the entity
+	 * @return the id value
+	 */
+	protected Object getId(T entity) {
+		return new BeanWrapperImpl(entity).getPropertyValue(idProperty);
+	}
+
+	/**
+	 * Gets a buffered entity
+	 * @param id the entity id
+	 * @return the buffered entity or null if none
+	 */
+	private T getBuffered(PK id) {
+		synchronized (lock) {
+			T entity = pending.get(id);
+
+			return entity != null ? entity : flushing.get(id);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Read through unflushed entities.
+	 */
+	public T get(PK id) {
+		T entity = getBuffered(id);
+
+		return entity != null ? entity : dao.get(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Read through unflushed entities.
+	 */
+	public List<T> getAll(Collection<PK> ids) {
+		Map<Object, T> found = new HashMap<Object, T>();
+		List<PK> missing = new ArrayList<PK>();
+
+		for (PK id : ids) {
+			T entity = getBuffered(id);
+
+			if (entity != null)
+				found.put(id, entity);
+			else
+				missing.add(id);
+		}
+
+		if (!missing.isEmpty()) {
+			for (T entity : dao.getAll(missing))
+				found.put(getId(entity), entity);
+		}
+
+		List<T> entities = new ArrayList<T>(found.size());
+
+		for (PK id : ids) {
+			T entity = found.get(id);
+
+			if (entity != null)
+				entities.add(entity);
+		}
+
+		return entities;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Read through unflushed entities.
+	 */
+	public boolean exists(PK id) {
+		return getBuffered(id) != null || dao.exists(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Read through unflushed entities.
+	 */
+	public Set<PK> existing(Collection<PK> ids) {
+		Set<PK> existing = new HashSet<PK>();
+		List<PK> missing = new ArrayList<PK>();
+
+		for (PK id : ids) {
+			if (getBuffered(id) != null)
+				existing.add(id);
+			else
+				missing.add(id);
+		}
+
+		if (!missing.isEmpty())
+			existing.addAll(dao.existing(missing));
+
+		return existing;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <K> Page<K> getPage(Page<K> page) {
+		dao.getPage(page);
+		page.setPageableDataSource(this);
+
+		return page;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Serializable> getKeys(Page<T> page) {
+		return dao.getKeys(page);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> getAll() {
+		return dao.getAll();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> findByNamedQuery(String queryName, Map<String, Object> queryParams) {
+		return dao.findByNamedQuery(queryName, queryParams);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <E> E get(PK id, Class<E> clazz) {
+		return dao.get(id, clazz);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <E> List<E> getAll(Class<E> clazz) {
+		return dao.getAll(clazz);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Cursor<T> scroll(Page<T> page, int fetchSize) {
+		return dao.scroll(page, fetchSize);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T initialize(T entity) {
+		return dao.initialize(entity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T initialize(T entity, int depth) {
+		return dao.initialize(entity, depth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> initialize(Collection<T> entities, int depth) {
+		return dao.initialize(entities, depth);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void deleteById(PK id) {
+		flush();
+		dao.deleteById(id);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void delete(T entity) {
+		flush();
+		dao.delete(entity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void delete(Collection<T> collection) {
+		flush();
+		dao.delete(collection);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void deleteById(Collection<PK> ids) {
+		flush();
+		dao.deleteById(ids);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int updateAll(Filter filter, Map<String, Object> assignments) {
+		flush();
+		return dao.updateAll(filter, assignments);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int deleteAll(Filter filter) {
+		flush();
+		return dao.deleteAll(filter);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Class<T> getEntityClass() {
+		return dao.getEntityClass();
+	}
+
+	/**
+	 * @param handler the failure handler to add
+	 */
+	public void addFailureHandler(WriteFailureHandler<T> handler) {
+		failureHandlers.add(handler);
+	}
+
+	/**
+	 * @param handler the failure handler to remove
+	 */
+	public void removeFailureHandler(WriteFailureHandler<T> handler) {
+		failureHandlers.remove(handler);
+	}
+
+	/**
+	 * @return the dao
+	 */
+	public Dao<T, PK> getDao() {
+		return dao;
+	}
+
+	/**
+	 * @param dao the dao to set
+	 */
+	public void setDao(Dao<T, PK> dao) {
+		this.dao = dao;
+	}
+
+	/**
+	 * @return the transactionManager
+	 */
+	public PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	/**
+	 * @param transactionManager the transactionManager to set
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	/**
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param capacity the capacity to set
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the flushSize
+	 */
+	public int getFlushSize() {
+		return flushSize;
+	}
+
+	/**
+	 * @param flushSize the flushSize to set
+	 */
+	public void setFlushSize(int flushSize) {
+		this.flushSize = flushSize;
+	}
+
+	/**
+	 * @return the flushInterval
+	 */
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * @param flushInterval the flushInterval to set
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * @return the saveTimeout
+	 */
+	public long getSaveTimeout() {
+		return saveTimeout;
+	}
+
+	/**
+	 * @param saveTimeout the saveTimeout to set
+	 */
+	public void setSaveTimeout(long saveTimeout) {
+		this.saveTimeout = saveTimeout;
+	}
+
+	/**
+	 * @return the idProperty
+	 */
+	public String getIdProperty() {
+		return idProperty;
+	}
+
+	/**
+	 * @param idProperty the idProperty to set
+	 */
+	public void setIdProperty(String idProperty) {
+		this.idProperty = idProperty;
+	}
+
+	/**
+	 * @return the failureHandlers
+	 */
+	public List<WriteFailureHandler<T>> getFailureHandlers() {
+		return failureHandlers;
+	}
+
+	/**
+	 * @param failureHandlers the failureHandlers to set
+	 */
+	public void setFailureHandlers(List<WriteFailureHandler<T>> failureHandlers) {
+		this.failureHandlers = new CopyOnWriteArrayList<WriteFailureHandler<T>>(failureHandlers);
+	}
+
+	/**
+	 * Buffer key of entities without id, equal only for the same instance.
+	 */
+	private static class IdentityKey {
+		private Object entity;
+
+		public IdentityKey(Object entity) {
+			this.entity = entity;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(entity);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && ((IdentityKey) obj).entity == entity;
+		}
+	}
+}
@@ -18,35 +18,64 @@ package org.jdal.dao.hibernate;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.EntityMode;
 import org.hibernate.HibernateException;
+import org.hibernate.LockMode;
 import org.hibernate.LockOptions;
 import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.CriteriaSpecification;
 import org.hibernate.criterion.Example;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projection;
 import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.CascadeStyle;
+import org.hibernate.engine.CascadingAction;
+import org.hibernate.engine.QueryParameters;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
 import org.hibernate.impl.CriteriaImpl;
+import org.hibernate.loader.criteria.CriteriaJoinWalker;
+import org.hibernate.loader.criteria.CriteriaQueryTranslator;
 import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.OuterJoinLoadable;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.proxy.HibernateProxyHelper;
 import org.hibernate.transform.ResultTransformer;
+import org.hibernate.type.OneToOneType;
 import org.hibernate.type.Type;
 import org.jdal.beans.PropertyUtils;
+import org.jdal.dao.Cursor;
 import org.jdal.dao.DaoSupport;
+import org.jdal.dao.EntityChangeEvent;
 import org.jdal.dao.Filter;
 import org.jdal.dao.Page;
 import org.jdal.hibernate.HibernateUtils;
 import org.springframework.beans.PropertyAccessor;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
 import org.springframework.orm.ObjectRetrievalFailureException;
 import org.springframework.orm.hibernate3.HibernateTemplate;
 import org.springframework.util.ClassUtils;
@@ -66,12 +95,15 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 	private Class<T> entityClass;
 	private boolean cachePageQueries = false;
 	private HibernateTemplate hibernateTemplate;
+	private volatile Boolean bulkDeleteSupported;
 	
 	/** 
 	 * Synchronized map with CriteriaBuilders by name
 	 */
 	private Map<String, CriteriaBuilder> criteriaBuilderMap = 
 		Collections.synchronizedMap(new HashMap<String, CriteriaBuilder>());
+	/** resolved sort paths by property path */
+	private Map<String, String> sortPaths = new ConcurrentHashMap<String, String>();
 	
 
 	public HibernateDao() {
@@ -97,27 +129,40 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 		// try named query
 		Query query = getQuery(page);
 		if (query != null) {
+			applyHints(query, page, true);
 			data = query.list();
 		}
 		else {
 			// try filter, example and criteria builders
 			Criteria criteria = getCriteria(page);
-			ResultTransformer rt = ((CriteriaImpl) criteria).getResultTransformer(); 
-			criteria.setProjection(Projections.rowCount());
-			 page.setCount(((Long) criteria.uniqueResult()).intValue());
-			// reset criteria
-			criteria.setProjection(null);
-			criteria.setResultTransformer(rt);
+			applyHints(criteria, page);
+			if (isCountRequired(page)) {
+				ResultTransformer rt = ((CriteriaImpl) criteria).getResultTransformer(); 
+				criteria.setProjection(Projections.rowCount());
+				page.setCount(((Long) criteria.uniqueResult()).intValue());
+				countLoaded(page);
+				// reset criteria
+				criteria.setProjection(null);
+				criteria.setResultTransformer(rt);
+			}
 			// set start index and page size
 			criteria.setFirstResult(page.getStartIndex())
-				.setMaxResults(page.getPageSize());
+				.setMaxResults(getMaxResults(page));
 			applyOrder(page, criteria);
+			List<String> projection = applyProjection(page, criteria);
 			// run it
-			criteria.setCacheable(cachePageQueries);
+			criteria.setCacheable(cachePageQueries || page.isCacheable());
+			
+			if (page.getLockMode() != Page.LockMode.NONE)
+				criteria.setLockMode(getLockMode(page));
+			
 			data = criteria.list();
+			
+			if (projection != null)
+				data = createProjectionRows(data, projection);
 		}
 		
-		page.setData(data);
+		page.setData(estimateCount(page, data));
 		
 		return page;
 	}
@@ -129,24 +174,125 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 	 * @return Hibernate named Query.
 	 */
 	private Query getQuery(Page<?> page) {
-		Object filter = page.getFilter();
+		Query query = getNamedQuery(page.getFilter());
+		
+		if (query != null) {
+			query.setMaxResults(getMaxResults(page));
+			query.setFirstResult(page.getStartIndex());
+
+			if (isCountRequired(page)) {
+				Query countQuery = getSession().createQuery(query.getQueryString().replaceFirst("select", "count"));
+				applyHints(countQuery, page, false);
+				page.setCount((Integer) countQuery.uniqueResult());
+				countLoaded(page);
+			}
+		}
+		
+		return query;
+	}
+	
+	/**
+	 * Apply page query hints to a query.
+	 * @param query the query
+	 * @param page the request page
+	 * @param data true on data queries, lock mode only applies to them
+	 */
+	private void applyHints(Query query, Page<?> page, boolean data) {
+		if (page.isReadOnly())
+			query.setReadOnly(true);
+		
+		if (page.isCacheable())
+			query.setCacheable(true);
+		
+		if (page.getFetchSize() > 0)
+			query.setFetchSize(page.getFetchSize());
+		
+		if (page.getTimeout() > 0)
+			query.setTimeout(getTimeoutSeconds(page));
+		
+		if (data && page.getLockMode() != Page.LockMode.NONE)
+			query.setLockOptions(new LockOptions(getLockMode(page)));
+	}
+	
+	/**
+	 * Apply page query hints to a criteria, but lock mode and cacheable that 
+	 * only apply to data queries.
+	 * @param criteria the criteria
+	 * @param page the request page
+	 */
+	private void applyHints(Criteria criteria, Page<?> page) {
+		if (page.isReadOnly())
+			criteria.setReadOnly(true);
 		
+		if (page.getFetchSize() > 0)
+			criteria.setFetchSize(page.getFetchSize());
+		
+		if (page.getTimeout() > 0)
+			criteria.setTimeout(getTimeoutSeconds(page));
+	}
+	
+	/**
+	 * @param page the request page
+	 * @return the page timeout in seconds, rounded up
+	 */
+	private int getTimeoutSeconds(Page<?> page) {
+		return (page.getTimeout() + 999) / 1000;
+	}
+	
+	/**
+	 * @param page the request page
+	 * @return the Hibernate LockMode for the page lock mode
+	 */
+	private LockMode getLockMode(Page<?> page) {
+		switch (page.getLockMode()) {
+			case READ:
+				return LockMode.PESSIMISTIC_READ;
+			case WRITE:
+				return LockMode.PESSIMISTIC_WRITE;
+			default:
+				return LockMode.NONE;
+		}
+	}
+	
+	/**
+	 * Get Hibernate named Query for filter and set the filter parameters.
+	 * @param filter the filter
+	 * @return Hibernate named Query or null if none
+	 */
+	private Query getNamedQuery(Object filter) {
 		try {
 			if (filter instanceof Filter) {
 				Filter f = (Filter) filter;
 				Query query = getSession().getNamedQuery(f.getFilterName());
-				Query countQuery = getSession().createQuery(query.getQueryString().replaceFirst("select", "count"));
 				query.setProperties(f.getParameterMap());
-				query.setMaxResults(page.getPageSize());
-				query.setFirstResult(page.getStartIndex());
-				page.setCount((Integer) countQuery.uniqueResult());
-
+				
 				return query;
 			}
 		}
 		catch (HibernateException e) {}
 		return null;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Use a forward only ScrollableResults, the session is flushed and cleared
+	 * every fetchSize rows. Must be used inside a transaction.
+	 */
+	public Cursor<T> scroll(Page<T> page, int fetchSize) {
+		ScrollableResults results = null;
+		Query query = getNamedQuery(page.getFilter());
+		
+		if (query != null) {
+			results = query.setFetchSize(fetchSize).scroll(ScrollMode.FORWARD_ONLY);
+		}
+		else {
+			Criteria criteria = getCriteria(page);
+			applyOrder(page, criteria);
+			results = criteria.setFetchSize(fetchSize).scroll(ScrollMode.FORWARD_ONLY);
+		}
+		
+		return new ScrollableResultsCursor<T>(results, getSession(), fetchSize);
+	}
 
 	/**
 	 * Create a Criteria from filter. If filter is a entity class instance, 
@@ -208,6 +354,81 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 		return executableCriteria;
 	}
 
+	/**
+	 * Set a projection with page projection properties, plus id and sort property.
+	 * Associations are left joined once per path.
+	 * @param page the page
+	 * @param criteria the criteria
+	 * @return the projected property paths or null if the projection was not applied
+	 */
+	private List<String> applyProjection(Page<?> page, Criteria criteria) {
+		if (!page.isProjection() || ((CriteriaImpl) criteria).getProjection() != null)
+			return null;
+		
+		Set<String> properties = new LinkedHashSet<String>();
+		properties.add(getClassMetadata().getIdentifierPropertyName());
+		
+		if (page.getSortName() != null)
+			properties.add(page.getSortName());
+		
+		properties.addAll(page.getProjection());
+		ProjectionList projections = Projections.projectionList();
+		
+		for (String property : properties) {
+			String path = getProjectionPath(criteria, property);
+			if (path == null) {
+				if (log.isDebugEnabled())
+					log.debug("Cannot project property [" + property + "], loading full entities");
+				
+				return null;
+			}
+			projections.add(Projections.property(path));
+		}
+		
+		criteria.setProjection(projections);
+		
+		return new ArrayList<String>(properties);
+	}
+	
+	/**
+	 * Gets the criteria path for a property path, creating aliases for associations.
+	 * @param criteria the criteria
+	 * @param propertyPath the property path
+	 * @return the path or null if the property path is unknown or has collections
+	 */
+	private String getProjectionPath(Criteria criteria, String propertyPath) {
+		ClassMetadata metadata = getClassMetadata();
+		String[] names = PropertyUtils.split(propertyPath);
+		String alias = null;
+		String path = null;
+		
+		for (int i = 0; i < names.length; i++) {
+			path = path == null ? names[i] : path + PropertyUtils.PROPERTY_SEPARATOR + names[i];
+			Type type;
+			try {
+				type = metadata.getPropertyType(path);
+			}
+			catch (HibernateException he) {
+				return null;
+			}
+			
+			if (type.isCollectionType())
+				return null;
+			
+			if (type.isEntityType() && i < names.length - 1) {
+				String associationPath = alias == null ? path : alias + PropertyUtils.PROPERTY_SEPARATOR + path;
+				alias = HibernateUtils.getOrCreateAlias(criteria, associationPath, names[i]);
+				metadata = getClassMetadata(type.getReturnedClass());
+				path = null;
+				
+				if (metadata == null)
+					return null;
+			}
+		}
+		
+		return alias == null ? path : alias + PropertyUtils.PROPERTY_SEPARATOR + path;
+	}
+
 	/**
 	 * Enable predefined filter in current session
 	 * @param f Filter with filter name and parameters
@@ -244,18 +465,52 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 	}
 	
 	/**
-	 * Apply Order to Criteria
+	 * Apply page sort keys to Criteria, with the id as tie-breaker if not grouped.
 	 * @param page the page
 	 * @param criteria the criteria
 	 */
 	protected void applyOrder(Page<?> page, Criteria criteria) {
-		Order order = createOrder(criteria, page.getSortName(), Page.Order.ASC.equals(page.getOrder()));
-		if (order != null) 
-			criteria.addOrder(order);
+		if (page.getSortName() == null) {
+			Order order = createOrder(criteria, null, true);
+			if (order != null)
+				criteria.addOrder(order);
+			
+			return;
+		}
+		
+		ClassMetadata metadata = getClassMetadata();
+		String id = metadata != null ? metadata.getIdentifierPropertyName() : null;
+		boolean sortedById = false;
+		
+		for (Page.SortKey sortKey : page.getSortKeys()) {
+			Order order = createOrder(criteria, sortKey.getSortName(), 
+					Page.Order.ASC.equals(sortKey.getOrder()));
+			if (order != null) 
+				criteria.addOrder(order);
+			
+			sortedById |= sortKey.getSortName().equals(id);
+		}
+		
+		// add id as tie-breaker to get stable pages
+		if (id != null && !sortedById && !isGrouped(criteria))
+			criteria.addOrder(Order.asc(id));
+	}
+	
+	/**
+	 * Test if criteria has a grouping projection
+	 * @param criteria the criteria
+	 * @return true if grouped
+	 */
+	private boolean isGrouped(Criteria criteria) {
+		Projection projection = criteria instanceof CriteriaImpl ? 
+				((CriteriaImpl) criteria).getProjection() : null;
+		
+		return projection != null && projection.isGrouped();
 	}
 
 	/** 
-	 * Create Order from criteria and property path
+	 * Create Order from criteria and property path, reusing existing aliases and 
+	 * left joining missing associations.
 	 * @param criteria the hibernate criteria to apply order on
 	 * @param propertyPath the property path
 	 * @return Order 
@@ -264,27 +519,15 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 		Order order = null;
 		
 		if (propertyPath != null) {
-			String sortProperty = PropertyUtils.getPropertyName(propertyPath);
+			String sortPath = propertyPath;
 			try {
-				if (PropertyUtils.isNested(propertyPath)) {
-					String alias = PropertyUtils.getPropertyName(PropertyUtils.getPath(propertyPath));
-					// Need to create alias?
-					// String alias = HibernateUtils.findAliasForPropertyPath(criteria, propertyPath);
-					HibernateUtils.createAlias(criteria, PropertyUtils.getPath(propertyPath));
-					sortProperty = alias + PropertyUtils.PROPERTY_SEPARATOR + sortProperty;
-				}
-				else { // test if property is an entity class
-					Type sortType = getClassMetadata().getPropertyType(propertyPath);
-					if (sortType.isEntityType()) { // is entity, look for 'name' property
-						String[] propertyNames = getClassMetadata(sortType.getReturnedClass()).getPropertyNames();
-						for (String name : propertyNames) {
-							if ("name".equals(name)) {
-								log.info("Found property name on persistent class: " + sortType.getName());
-								String newPath = propertyPath + PropertyAccessor.NESTED_PROPERTY_SEPARATOR + "name";
-								return createOrder(criteria, newPath, ascending);
-							}
-						}
-					}
+				sortPath = getSortPath(propertyPath);
+				String sortProperty = sortPath;
+				
+				if (PropertyUtils.isNested(sortPath)) {
+					String alias = HibernateUtils.createAlias(criteria, PropertyUtils.getPath(sortPath),
+							CriteriaSpecification.LEFT_JOIN);
+					sortProperty = alias + PropertyUtils.PROPERTY_SEPARATOR + PropertyUtils.getPropertyName(sortPath);
 				}
 
 				if (log.isDebugEnabled())
@@ -293,7 +536,7 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 				order = ascending ? Order.asc(sortProperty) : Order.desc(sortProperty);
 			}
 			catch(HibernateException he) {
-				log.error("Cannot to create Order for property: " + sortProperty + " for " +
+				log.error("Cannot to create Order for property: " + sortPath + " for " +
 						getEntityClass().getSimpleName(), he);
 			}
 		}
@@ -308,6 +551,39 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 		
 	}
 	
+	/**
+	 * Gets the property path to sort by, the 'name' property of the entity if
+	 * property path is an entity with 'name' property. Sort paths are cached.
+	 * @param propertyPath the property path
+	 * @return the sort path
+	 */
+	protected String getSortPath(String propertyPath) {
+		String sortPath = sortPaths.get(propertyPath);
+		
+		if (sortPath != null)
+			return sortPath;
+		
+		sortPath = propertyPath;
+		
+		if (!PropertyUtils.isNested(propertyPath)) { // test if property is an entity class
+			Type sortType = getClassMetadata().getPropertyType(propertyPath);
+			if (sortType.isEntityType()) { // is entity, look for 'name' property
+				String[] propertyNames = getClassMetadata(sortType.getReturnedClass()).getPropertyNames();
+				for (String name : propertyNames) {
+					if ("name".equals(name)) {
+						log.info("Found property name on persistent class: " + sortType.getName());
+						sortPath = propertyPath + PropertyAccessor.NESTED_PROPERTY_SEPARATOR + "name";
+						break;
+					}
+				}
+			}
+		}
+		
+		sortPaths.put(propertyPath, sortPath);
+		
+		return sortPath;
+	}
+	
 	/**
 	 * @return the entityClass
 	 */
@@ -328,12 +604,55 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 	 */
 	public void delete(T entity) {
 		getHibernateTemplate().delete(entity);
+		invalidateCount();
+		fireEntityChanges(EntityChangeEvent.Type.DELETED, Collections.singletonList(entity));
 	}
 	
 	public T save(T entity) {
+		boolean created = isTransient(entity);
 		getHibernateTemplate().saveOrUpdate(entity);
+		invalidateCount();
+		fireEntityChanges(created ? EntityChangeEvent.Type.CREATED : EntityChangeEvent.Type.UPDATED, 
+				Collections.singletonList(entity));
+		
 		return entity;
 	}
+	
+	/**
+	 * Test if an entity is transient, ie will be inserted on save.
+	 * @param entity the entity
+	 * @return true if the entity is transient
+	 */
+	private boolean isTransient(T entity) {
+		SessionImplementor session = (SessionImplementor) getSession();
+		
+		if (((Session) session).contains(entity))
+			return false;
+		
+		EntityPersister persister = session.getEntityPersister(null, entity);
+		
+		return Boolean.TRUE.equals(persister.isTransient(entity, session));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Serializable getEntityId(Object entity) {
+		ClassMetadata metadata = getClassMetadata(HibernateProxyHelper.getClassWithoutInitializingProxy(entity));
+		
+		return metadata != null ? metadata.getIdentifier(entity, EntityMode.POJO) : null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Object getEntityVersion(Object entity) {
+		ClassMetadata metadata = getClassMetadata(HibernateProxyHelper.getClassWithoutInitializingProxy(entity));
+		
+		return metadata != null && metadata.isVersioned() ? metadata.getVersion(entity, EntityMode.POJO) : null;
+	}
 
 	
 	@SuppressWarnings("unchecked")
@@ -344,7 +663,378 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 	}
 
 	public void deleteById(PK id) {
-		getSession().delete(get(id));
+		T entity = get(id);
+		getSession().delete(entity);
+		invalidateCount();
+		fireEntityChanges(EntityChangeEvent.Type.DELETED, Collections.singletonList(entity));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Entities are saved in batches of batchSize, the session is flushed after each 
+	 * batch to use JDBC batching, and cleared if clearOnBatch is set.
+	 */
+	@Override
+	public Collection<T> save(Collection<T> collection) {
+		Session session = getSession();
+		List<T> created = new ArrayList<T>();
+		List<T> updated = new ArrayList<T>();
+		
+		for (List<T> batch : partition(collection, getBatchSize())) {
+			for (T entity : batch) {
+				if (isTransient(entity))
+					created.add(entity);
+				else
+					updated.add(entity);
+				
+				session.saveOrUpdate(entity);
+			}
+			
+			session.flush();
+			
+			if (isClearOnBatch())
+				session.clear();
+		}
+		
+		invalidateCount();
+		fireEntityChanges(EntityChangeEvent.Type.CREATED, created);
+		fireEntityChanges(EntityChangeEvent.Type.UPDATED, updated);
+		
+		return collection;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Entities are deleted in batches of batchSize, the session is flushed after each 
+	 * batch to use JDBC batching, and cleared if clearOnBatch is set.
+	 */
+	@Override
+	public void delete(Collection<T> collection) {
+		Session session = getSession();
+		
+		for (List<T> batch : partition(collection, getBatchSize())) {
+			for (T entity : batch)
+				session.delete(entity);
+			
+			session.flush();
+			
+			if (isClearOnBatch())
+				session.clear();
+		}
+		
+		invalidateCount();
+		fireEntityChanges(EntityChangeEvent.Type.DELETED, collection);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Use a bulk delete statement by chunks of maxInParameters ids when removing the entities 
+	 * don't need to cascade. Note that bulk deletes skip the session.
+	 * Otherwise, load and delete the entities in batches.
+	 */
+	@Override
+	public void deleteById(Collection<PK> ids) {
+		deleteByIds(ids);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * HQL bulk statements don't accept criteria subqueries, so the filter criteria is rendered 
+	 * to a SQL subquery of a single native update when possible. Otherwise, the ids of matching 
+	 * entities are selected with the filter criteria, so hibernate filters apply, and updated 
+	 * with a HQL bulk update by chunks of maxInParameters ids. Versioned entities use a 
+	 * versioned update.
+	 */
+	public int updateAll(Filter filter, Map<String, Object> assignments) {
+		if (assignments.isEmpty())
+			return 0;
+		
+		ClassMetadata metadata = getClassMetadata();
+		List<String> properties = Arrays.asList(metadata.getPropertyNames());
+		StringBuilder sb = new StringBuilder("update ");
+		
+		if (metadata.isVersioned() && 
+				!assignments.containsKey(properties.get(metadata.getVersionProperty())))
+			sb.append("versioned ");
+		
+		sb.append(metadata.getEntityName()).append(" set ");
+		List<String> names = new ArrayList<String>(assignments.keySet());
+		
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			if (!properties.contains(name) || metadata.getPropertyType(name).isCollectionType())
+				throw new InvalidDataAccessApiUsageException("Cannot update property [" + name + 
+						"] of entity [" + metadata.getEntityName() + "] with a bulk update");
+			
+			sb.append(i > 0 ? ", " : "").append(name).append(" = :value").append(i);
+		}
+		
+		int count = 0;
+		SQLQuery subqueryUpdate = filter != null ? createSubqueryUpdate(filter, names, assignments) : null;
+		
+		if (filter == null) {
+			count = executeUpdate(sb.toString(), names, assignments, null);
+			fireBulkChange();
+		}
+		else if (subqueryUpdate != null) {
+			count = subqueryUpdate.executeUpdate();
+			fireBulkChange();
+		}
+		else {
+			sb.append(" where ").append(metadata.getIdentifierPropertyName()).append(" in (:ids)");
+			
+			for (List<PK> chunk : partition(getFilterKeys(filter), getMaxInParameters())) {
+				count += executeUpdate(sb.toString(), names, assignments, chunk);
+				fireIdChanges(EntityChangeEvent.Type.UPDATED, chunk);
+			}
+		}
+		
+		invalidateCount();
+		
+		return count;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Use a single bulk delete statement when bulk deletes are safe and the filter is null
+	 * or the filter criteria could be rendered to a SQL subquery. Otherwise delete the ids 
+	 * selected with the filter criteria.
+	 */
+	public int deleteAll(Filter filter) {
+		if (isBulkDeleteSupported()) {
+			Query query = null;
+			
+			if (filter == null) {
+				query = getSession().createQuery("delete from " + getClassMetadata().getEntityName());
+			}
+			else {
+				SingleTableEntityPersister persister = getSingleTablePersister();
+				if (persister != null) {
+					query = createSubqueryStatement("delete from " + persister.getTableName(), filter,
+							new ArrayList<Object>(), new ArrayList<Type>());
+				}
+			}
+			
+			if (query != null) {
+				int count = query.executeUpdate();
+				invalidateCount();
+				fireBulkChange();
+				
+				return count;
+			}
+		}
+		
+		return deleteByIds(getFilterKeys(filter));
+	}
+	
+	/**
+	 * Create a native update statement of the entities matching the filter criteria.
+	 * Numeric versions are incremented.
+	 * @param filter the filter
+	 * @param names updated property names
+	 * @param assignments new values by property name
+	 * @return the update statement or null if the update could not use a subquery
+	 */
+	private SQLQuery createSubqueryUpdate(Filter filter, List<String> names, Map<String, Object> assignments) {
+		SingleTableEntityPersister persister = getSingleTablePersister();
+		
+		if (persister == null)
+			return null;
+		
+		StringBuilder sb = new StringBuilder("update ").append(persister.getTableName()).append(" set ");
+		List<Object> values = new ArrayList<Object>(names.size());
+		List<Type> types = new ArrayList<Type>(names.size());
+		
+		for (String name : names) {
+			String[] columns = persister.getPropertyColumnNames(name);
+			
+			if (columns.length != 1 || !persister.getTableName().equals(persister.getPropertyTableName(name)))
+				return null;
+			
+			sb.append(values.isEmpty() ? "" : ", ").append(columns[0]).append(" = ?");
+			values.add(assignments.get(name));
+			types.add(persister.getPropertyType(name));
+		}
+		
+		if (persister.isVersioned() && !names.contains(
+				persister.getPropertyNames()[persister.getVersionProperty()])) {
+			if (!Number.class.isAssignableFrom(persister.getVersionType().getReturnedClass()))
+				return null;
+			
+			String version = persister.getVersionColumnName();
+			sb.append(", ").append(version).append(" = ").append(version).append(" + 1");
+		}
+		
+		return createSubqueryStatement(sb.toString(), filter, values, types);
+	}
+	
+	/**
+	 * Create a native bulk statement on the entities selected by a SQL subquery rendered 
+	 * from the filter criteria.
+	 * @param statement the statement without the where clause
+	 * @param filter the filter
+	 * @param values values of the statement parameters
+	 * @param types types of the statement parameters
+	 * @return the statement or null if the filter criteria could not be used as subquery
+	 */
+	private SQLQuery createSubqueryStatement(String statement, Filter filter, List<Object> values, 
+			List<Type> types) {
+		if (!isBulkSubqueries())
+			return null;
+		
+		Page<T> page = new Page<T>(Integer.MAX_VALUE);
+		page.setFilter(filter);
+		Session session = getSession();
+		Criteria criteria = getCriteria(page);
+		SessionImplementor si = (SessionImplementor) session;
+		
+		// hibernate filters are not rendered by the criteria translator
+		if (!(criteria instanceof CriteriaImpl) || si.getLoadQueryInfluencers().hasEnabledFilters())
+			return null;
+		
+		CriteriaImpl impl = (CriteriaImpl) criteria;
+		impl.setProjection(Projections.id());
+		
+		for (Iterator<?> iter = impl.iterateOrderings(); iter.hasNext(); ) {
+			iter.next();
+			iter.remove();
+		}
+		
+		String entityName = impl.getEntityOrClassName();
+		CriteriaQueryTranslator translator = new CriteriaQueryTranslator(si.getFactory(), impl, 
+				entityName, CriteriaQueryTranslator.ROOT_SQL_ALIAS);
+		CriteriaJoinWalker walker = new CriteriaJoinWalker(
+				(OuterJoinLoadable) si.getFactory().getEntityPersister(entityName), 
+				translator, si.getFactory(), impl, entityName, si.getLoadQueryInfluencers());
+		
+		QueryParameters parameters = translator.getQueryParameters();
+		SQLQuery query = session.createSQLQuery(statement + " where " + 
+				getSingleTablePersister().getIdentifierColumnNames()[0] + " in (" + walker.getSQLString() + ")");
+		query.addSynchronizedEntityClass(getEntityClass());
+		
+		values.addAll(Arrays.asList(parameters.getPositionalParameterValues()));
+		types.addAll(Arrays.asList(parameters.getPositionalParameterTypes()));
+		
+		for (int i = 0; i < values.size(); i++)
+			query.setParameter(i, values.get(i), types.get(i));
+		
+		return query;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Subqueries are not used with MySQL dialects.
+	 */
+	@Override
+	protected boolean isBulkSubquerySupported() {
+		return !(((SessionFactoryImplementor) getSessionFactory()).getDialect() instanceof MySQLDialect);
+	}
+	
+	/**
+	 * @return the entity persister if the entity is mapped to a single table with 
+	 * a single column id, null otherwise.
+	 */
+	private SingleTableEntityPersister getSingleTablePersister() {
+		ClassMetadata metadata = getClassMetadata();
+		
+		if (!(metadata instanceof SingleTableEntityPersister))
+			return null;
+		
+		SingleTableEntityPersister persister = (SingleTableEntityPersister) metadata;
+		
+		return persister.isMultiTable() || persister.getIdentifierColumnNames().length != 1 ? 
+				null : persister;
+	}
+	
+	/**
+	 * Execute a bulk update query
+	 * @param queryString HQL update statement
+	 * @param names updated property names, in parameter order
+	 * @param assignments new values by property name
+	 * @param ids values for the ids parameter, if any
+	 * @return the number of updated entities
+	 */
+	private int executeUpdate(String queryString, List<String> names, Map<String, Object> assignments, 
+			List<PK> ids) {
+		ClassMetadata metadata = getClassMetadata();
+		Query query = getSession().createQuery(queryString);
+		
+		for (int i = 0; i < names.size(); i++) 
+			query.setParameter("value" + i, assignments.get(names.get(i)), 
+					metadata.getPropertyType(names.get(i)));
+		
+		if (ids != null)
+			query.setParameterList("ids", ids);
+		
+		return query.executeUpdate();
+	}
+	
+	/**
+	 * Delete entities by id, with bulk delete statements if supported.
+	 * @param ids entity ids
+	 * @return the number of deleted entities
+	 */
+	@SuppressWarnings("unchecked")
+	private int deleteByIds(Collection<PK> ids) {
+		Session session = getSession();
+		int count = 0;
+		String idName = getClassMetadata().getIdentifierPropertyName();
+		
+		if (isBulkDeleteSupported()) {
+			String queryString = "delete from " + getClassMetadata().getEntityName() + 
+					" where " + idName + " in (:ids)";
+			
+			for (List<PK> chunk : partition(ids, getMaxInParameters())) {
+				count += session.createQuery(queryString).setParameterList("ids", chunk).executeUpdate();
+			}
+			
+			fireIdChanges(EntityChangeEvent.Type.DELETED, ids);
+		}
+		else {
+			for (List<PK> batch : partition(ids, getBatchSize())) {
+				List<T> entities = session.createCriteria(getEntityClass())
+						.add(Restrictions.in(idName, batch)).list();
+				
+				for (T entity : entities) 
+					session.delete(entity);
+				
+				fireEntityChanges(EntityChangeEvent.Type.DELETED, entities);
+				count += entities.size();
+				session.flush();
+				
+				if (isClearOnBatch())
+					session.clear();
+			}
+		}
+		
+		invalidateCount();
+		
+		return count;
+	}
+	
+	/**
+	 * Test if entities could be removed with a bulk delete statement, ie
+	 * there are no collections, one to one associations nor delete cascades.
+	 * @return true if bulk delete is safe.
+	 */
+	private boolean isBulkDeleteSupported() {
+		if (bulkDeleteSupported == null) {
+			boolean supported = true;
+			ClassMetadata metadata = getClassMetadata();
+			Type[] types = metadata.getPropertyTypes();
+			CascadeStyle[] cascadeStyles = ((EntityPersister) metadata).getPropertyCascadeStyles();
+			
+			for (int i = 0; i < types.length; i++) {
+				if (types[i].isCollectionType() || types[i] instanceof OneToOneType ||
+						(cascadeStyles != null && cascadeStyles[i].doCascade(CascadingAction.DELETE))) {
+					supported = false;
+					break;
+				}
+			}
+			bulkDeleteSupported = supported;
+		}
+		
+		return bulkDeleteSupported;
 	}
 	
 	public  T initialize(T entity) {
@@ -359,6 +1049,20 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
 
 		return entity;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> initialize(Collection<T> entities, int depth) {
+		Session session = getSession();
+		
+		for (T entity : entities) 
+			session.buildLockRequest(LockOptions.NONE).lock(entity);
+		
+		HibernateUtils.initialize(getSessionFactory(), entities, depth);
+		
+		return entities;
+	}
 
 	/**
 	 * @return the criteriaBuilderMap
@@ -383,6 +1087,33 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
         return new ArrayList<T>(getHibernateTemplate().loadAll(this.entityClass));
     }
     
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> getAll(Collection<PK> ids) {
+		Map<Serializable, T> entities = new HashMap<Serializable, T>();
+		ClassMetadata metadata = getClassMetadata();
+		
+		for (List<PK> chunk : partition(ids, getMaxInParameters())) {
+			List<T> result = getSession().createCriteria(getEntityClass())
+					.add(Restrictions.in(metadata.getIdentifierPropertyName(), chunk)).list();
+			
+			for (T entity : result)
+				entities.put(getSession().getIdentifier(entity), entity);
+		}
+		
+		List<T> found = new ArrayList<T>(entities.size());
+		
+		for (PK id : ids) {
+			T entity = entities.get(id);
+			if (entity != null)
+				found.add(entity);
+		}
+		
+		return found;
+	}
+	
     public List<T> getAllDistinct() {
         Collection<T> result = new LinkedHashSet<T>(getAll());
         return new ArrayList<T>(result);
@@ -428,8 +1159,34 @@ public class HibernateDao<T, PK extends Serializable> extends DaoSupport<T, PK>{
      * {@inheritDoc}
      */
     public boolean exists(PK id) {
-      return getHibernateTemplate().get(this.entityClass, id) != null;
+        if (id == null)
+            return false;
+
+        return getSession().createCriteria(entityClass)
+                .add(Restrictions.idEq(id))
+                .setProjection(Projections.id())
+                .setMaxResults(1)
+                .uniqueResult() != null;
     }
+    
+	/**
+	 * {@inheritDoc}
+	 * Ids are tested with id only IN queries of maxInParameters ids.
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<PK> existing(Collection<PK> ids) {
+		Set<PK> existing = new HashSet<PK>();
+		String idName = getClassMetadata().getIdentifierPropertyName();
+		
+		for (List<PK> chunk : partition(ids, getMaxInParameters())) {
+			existing.addAll(getSession().createCriteria(entityClass)
+					.add(Restrictions.in(idName, chunk))
+					.setProjection(Projections.id())
+					.list());
+		}
+		
+		return existing;
+	}
 
     /**
      * Count rows
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao.hibernate;
+
+import java.util.NoSuchElementException;
+
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.jdal.dao.Cursor;
+
+/**
+ * {@link Cursor} over Hibernate {@link ScrollableResults}. Clears the session 
+ * every <code>clearInterval</code> rows to keep the persistence context small.
+ * 
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class ScrollableResultsCursor<T> implements Cursor<T> {
+	
+	private ScrollableResults results;
+	private Session session;
+	private int clearInterval;
+	private int count = 0;
+	/** true if next row was already read */
+	private boolean fetched = false;
+	/** true if there is a row available */
+	private boolean available = false;
+	private boolean closed = false;
+	
+	/**
+	 * Create a new ScrollableResultsCursor
+	 * @param results the ScrollableResults to iterate over
+	 * @param session the session that created the results
+	 * @param clearInterval number of rows to read before clearing the session.
+	 */
+	public ScrollableResultsCursor(ScrollableResults results, Session session, int clearInterval) {
+		this.results = results;
+		this.session = session;
+		this.clearInterval = clearInterval;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean hasNext() {
+		if (closed)
+			return false;
+		
+		if (!fetched) {
+			if (clearInterval > 0 && count > 0 && count % clearInterval == 0) {
+				session.flush();
+				session.clear();
+			}
+			
+			available = results.next();
+			fetched = true;
+		}
+		
+		return available;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		
+		fetched = false;
+		count++;
+		
+		return (T) results.get(0);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void close() {
+		if (!closed) {
+			closed = true;
+			results.close();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao.jpa;
+
+import java.util.List;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+
+import org.jdal.dao.Filter;
+
+/**
+ * Support class for JpaCriteriaBuilders without locking. Subclasses implement 
+ * {@link #doBuild(CriteriaQuery, JpaCriteriaContext)} and keep per invocation 
+ * state in the context, so the builder could be used by many threads at once.
+ * 
+ * @author Jose Luis Martin
+ * @since 2.1
+ * @see JpaCriteriaBuilderSupport
+ * 
+ * @param <T> CriteriaQuery Type
+ * @param <K> Entity Type
+ */
+public abstract class ConcurrentJpaCriteriaBuilderSupport<T, K> implements JpaCriteriaBuilder<T> {
+
+	protected Class<K> entityClass;
+
+	public ConcurrentJpaCriteriaBuilderSupport(Class<K> entityClass) {
+		this.entityClass = entityClass;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public CriteriaQuery<T> build(CriteriaQuery<T> criteria, CriteriaBuilder cb, Filter filter) {
+		doBuild(criteria, new JpaCriteriaContext<K>(filter, criteria.from(entityClass), cb));
+		
+		return criteria;
+	}
+	
+	/**
+	 * Build criteria
+	 * @param criteria criteria to build
+	 * @param context per invocation context with filter, root and criteria builder
+	 */
+	protected abstract void doBuild(CriteriaQuery<T> criteria, JpaCriteriaContext<K> context);
+	
+	/**
+	 * Add where expression to criteria with AND.
+	 * @param criteria criteria
+	 * @param cb Criteria Builder
+	 * @param predicates predicates to add
+	 */
+	protected <Y> void addAndWhere(CriteriaQuery<Y> criteria, CriteriaBuilder cb, List<Predicate> predicates) {
+		if (predicates.size() > 0)
+			criteria.where(cb.and(predicates.toArray(new Predicate[] {})));
+	}
+	
+	/**
+	 * return property path
+	 * @param path root path
+	 * @param name property name
+	 * @return the path for property
+	 */
+	protected <Y> Path<Y> getPath(Path<?> path, String name) {
+		return JpaUtils.getPath(path, name);
+	}
+	
+	protected void addPredicateIfNotNull(List<Predicate> predicates, Predicate predicate) {
+		if (predicate != null)
+			predicates.add(predicate);
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao.jpa;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.persistence.criteria.Subquery;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Create cheap count queries from CriteriaQueries.
+ * <p>
+ * Fetches are never copied. Left joins that don't change the row count, ie joins on
+ * single valued associations or on collections of distinct queries, are dropped when
+ * not referenced by the restriction, the group by or the having clause. The count
+ * uses <code>countDistinct</code> only if the query is distinct and a collection join remains.
+ * </p>
+ * <p>
+ * Criteria predicates don't expose their paths, so references are found walking the
+ * provider expression objects. When that is not possible, ie on subqueries, all joins
+ * are kept. Count plans are cached by plan key, usually the filter name, and joins
+ * structure.
+ * </p>
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class CountQueryOptimizer {
+
+	private static final Log log = LogFactory.getLog(CountQueryOptimizer.class);
+	/** reference holding fields by expression class */
+	private static final Map<Class<?>, List<Field>> expressionFields =
+			new ConcurrentHashMap<Class<?>, List<Field>>();
+
+	/** count plans by plan key and joins signature */
+	private Map<String, CountPlan> plans = new ConcurrentHashMap<String, CountPlan>();
+
+	/**
+	 * Create a count criteria from a criteria, without its selection, order and fetches.
+	 * @param em entity manager
+	 * @param criteria source criteria
+	 * @param rootClass class of root to count, the first root if not found
+	 * @param planKey key to cache the count plan, null to not cache it
+	 * @param distinct count distinct roots even if the criteria is not distinct
+	 * @return the count criteria
+	 */
+	public CriteriaQuery<Long> countCriteria(EntityManager em, CriteriaQuery<?> criteria, Class<?> rootClass,
+			String planKey, boolean distinct) {
+		CriteriaBuilder cb = em.getCriteriaBuilder();
+		CriteriaQuery<Long> countCriteria = cb.createQuery(Long.class);
+		distinct = distinct || criteria.isDistinct();
+		CountPlan plan = getPlan(criteria, planKey, distinct);
+		Root<?> countRoot = null;
+
+		if (plan != null) {
+			for (Root<?> root : criteria.getRoots()) {
+				Root<?> dest = countCriteria.from(root.getJavaType());
+				dest.alias(JpaUtils.getOrCreateAlias(root));
+				copyJoins(root, dest, "", plan.joins);
+
+				if (countRoot == null || root.getJavaType().equals(rootClass))
+					countRoot = dest;
+			}
+		}
+		else {
+			JpaUtils.copyCriteriaWithoutFetches(criteria, countCriteria);
+			countRoot = JpaUtils.findRoot(countCriteria, rootClass);
+
+			if (countRoot == null && !countCriteria.getRoots().isEmpty())
+				countRoot = countCriteria.getRoots().iterator().next();
+		}
+
+		countCriteria.groupBy(criteria.getGroupList());
+
+		if (criteria.getGroupRestriction() != null)
+			countCriteria.having(criteria.getGroupRestriction());
+
+		if (criteria.getRestriction() != null)
+			countCriteria.where(criteria.getRestriction());
+
+		boolean countDistinct = plan != null ? plan.countDistinct : distinct;
+		countCriteria.distinct(false);
+
+		return countCriteria.select(countDistinct ? cb.countDistinct(countRoot) : cb.count(countRoot));
+	}
+
+	/**
+	 * Gets the count plan for a criteria, from cache if possible
+	 * @param criteria the criteria
+	 * @param planKey cache key, null to skip cache
+	 * @param distinct if count must be distinct
+	 * @return the plan or null if the criteria could not be analyzed
+	 */
+	private CountPlan getPlan(CriteriaQuery<?> criteria, String planKey, boolean distinct) {
+		if (JpaUtils.isEclipseLink(criteria) && criteria.getRestriction() != null)
+			return null;	// EclipseLink adds roots from predicate paths, don't copy roots
+
+		Set<Object> references = findReferences(criteria);
+
+		if (references == null)
+			return null;
+
+		StringBuilder signature = new StringBuilder(planKey != null ? planKey : "").append('|').append(distinct);
+
+		for (Root<?> root : criteria.getRoots()) {
+			signature.append('|').append(root.getJavaType().getName());
+			appendSignature(root, references, signature);
+		}
+
+		String key = signature.toString();
+		CountPlan plan = planKey != null ? plans.get(key) : null;
+
+		if (plan == null) {
+			plan = createPlan(criteria, references, distinct);
+
+			if (planKey != null)
+				plans.put(key, plan);
+
+			if (log.isDebugEnabled())
+				log.debug("Count plan for [" + key + "]: joins " + plan.joins +
+						(plan.countDistinct ? ", count distinct" : ""));
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Append join types, attributes and references to a plan signature
+	 * @param from the from with joins
+	 * @param references referenced froms
+	 * @param signature signature to append to
+	 */
+	private void appendSignature(From<?, ?> from, Set<Object> references, StringBuilder signature) {
+		signature.append('(');
+
+		for (Join<?, ?> join : from.getJoins()) {
+			signature.append(join.getAttribute().getName()).append(':').append(join.getJoinType());
+
+			if (references.contains(join))
+				signature.append('!');
+
+			appendSignature(join, references, signature);
+		}
+
+		signature.append(')');
+	}
+
+	/**
+	 * Decide the joins to keep and the count function
+	 * @param criteria the criteria
+	 * @param references referenced froms
+	 * @param distinct if count must be distinct
+	 * @return new count plan
+	 */
+	private CountPlan createPlan(CriteriaQuery<?> criteria, Set<Object> references, boolean distinct) {
+		CountPlan plan = new CountPlan();
+		plan.countDistinct = distinct && criteria.getRoots().size() > 1;
+
+		for (Root<?> root : criteria.getRoots())
+			keepJoins(root, "", references, distinct, plan);
+
+		return plan;
+	}
+
+	/**
+	 * Add joins to keep to plan
+	 * @param from the from with joins
+	 * @param path path of from
+	 * @param references referenced froms
+	 * @param distinct if count must be distinct
+	 * @param plan the plan
+	 * @return true if any join was kept
+	 */
+	private boolean keepJoins(From<?, ?> from, String path, Set<Object> references, boolean distinct,
+			CountPlan plan) {
+		boolean kept = false;
+		int index = 0;
+
+		for (Join<?, ?> join : from.getJoins()) {
+			String joinPath = getJoinPath(path, join, index++);
+			boolean collection = join.getAttribute().isCollection();
+			boolean keep = keepJoins(join, joinPath, references, distinct, plan) ||
+					references.contains(join) || join.getJoinType() != JoinType.LEFT ||
+					(collection && !distinct);
+
+			if (keep) {
+				plan.joins.add(joinPath);
+				plan.countDistinct |= distinct && collection;
+				kept = true;
+			}
+		}
+
+		return kept;
+	}
+
+	/**
+	 * Copy joins in plan
+	 * @param from source from
+	 * @param to destination from
+	 * @param path path of source from
+	 * @param joins join paths to copy
+	 */
+	private void copyJoins(From<?, ?> from, From<?, ?> to, String path, Set<String> joins) {
+		int index = 0;
+
+		for (Join<?, ?> join : from.getJoins()) {
+			String joinPath = getJoinPath(path, join, index++);
+
+			if (joins.contains(joinPath)) {
+				Join<?, ?> toJoin = to.join(join.getAttribute().getName(), join.getJoinType());
+				toJoin.alias(JpaUtils.getOrCreateAlias(join));
+				copyJoins(join, toJoin, joinPath, joins);
+			}
+		}
+	}
+
+	private String getJoinPath(String path, Join<?, ?> join, int index) {
+		return path + "/" + index + ":" + join.getAttribute().getName();
+	}
+
+	/**
+	 * Find the froms referenced by criteria restriction, group by and having.
+	 * @param criteria the criteria
+	 * @return referenced froms or null if they could not be found
+	 */
+	private Set<Object> findReferences(CriteriaQuery<?> criteria) {
+		Set<Object> references = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+		try {
+			collectReferences(criteria.getRestriction(), visited, references);
+			collectReferences(criteria.getGroupList(), visited, references);
+			collectReferences(criteria.getGroupRestriction(), visited, references);
+		}
+		catch (UnsupportedExpressionException uee) {
+			if (log.isDebugEnabled())
+				log.debug("Cannot optimize count query: " + uee.getMessage());
+
+			return null;
+		}
+
+		return references;
+	}
+
+	/**
+	 * Walk an expression tree collecting referenced froms.
+	 * @param value the expression, a collection or array of expressions or other value
+	 * @param visited visited objects
+	 * @param references referenced froms
+	 */
+	private void collectReferences(Object value, Set<Object> visited, Set<Object> references) {
+		if (value == null || !visited.add(value))
+			return;
+
+		if (value instanceof Subquery)
+			throw new UnsupportedExpressionException("subqueries");
+
+		if (value instanceof From) {
+			From<?, ?> from = (From<?, ?>) value;
+			references.add(from);
+
+			if (from.isCorrelated())
+				references.add(from.getCorrelationParent());
+
+			return;
+		}
+
+		if (value instanceof Path) {
+			collectReferences(((Path<?>) value).getParentPath(), visited, references);
+			return;
+		}
+
+		if (value instanceof Collection) {
+			for (Object o : (Collection<?>) value)
+				collectReferences(o, visited, references);
+
+			return;
+		}
+
+		if (value instanceof Object[]) {
+			for (Object o : (Object[]) value)
+				collectReferences(o, visited, references);
+
+			return;
+		}
+
+		if (!(value instanceof Selection))
+			return;
+
+		for (Field field : getExpressionFields(value.getClass())) {
+			try {
+				collectReferences(field.get(value), visited, references);
+			}
+			catch (IllegalAccessException iae) {
+				throw new UnsupportedExpressionException(iae.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Gets the fields of an expression class that could hold other expressions.
+	 * @param clazz expression class
+	 * @return the fields
+	 */
+	private List<Field> getExpressionFields(Class<?> clazz) {
+		List<Field> fields = expressionFields.get(clazz);
+
+		if (fields != null)
+			return fields;
+
+		fields = new ArrayList<Field>();
+
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (!Modifier.isStatic(field.getModifiers()) && isExpressionHolder(field.getType())) {
+					try {
+						field.setAccessible(true);
+					}
+					catch (SecurityException se) {
+						throw new UnsupportedExpressionException(se.getMessage());
+					}
+
+					fields.add(field);
+				}
+			}
+		}
+
+		expressionFields.put(clazz, fields);
+
+		return fields;
+	}
+
+	/**
+	 * Test if a field type could hold an expression
+	 * @param type field type
+	 * @return true if could hold an expression
+	 */
+	private boolean isExpressionHolder(Class<?> type) {
+		return type == Object.class || Selection.class.isAssignableFrom(type) ||
+				Expression.class.isAssignableFrom(type) || Collection.class.isAssignableFrom(type) ||
+				(type.isArray() && !type.getComponentType().isPrimitive()) ||
+				(type.isInterface() && !type.getName().startsWith("java."));
+	}
+
+	/**
+	 * Remove cached plans
+	 */
+	public void clear() {
+		plans.clear();
+	}
+
+	/**
+	 * Joins to copy and count function of count queries.
+	 */
+	private static class CountPlan {
+		Set<String> joins = new HashSet<String>();
+		boolean countDistinct;
+	}
+
+	/**
+	 * Thrown when references of an expression could not be found.
+	 */
+	private static class UnsupportedExpressionException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public UnsupportedExpressionException(String message) {
+			super(message);
+		}
+	}
+}
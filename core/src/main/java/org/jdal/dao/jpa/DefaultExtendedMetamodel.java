@@ -0,0 +1,266 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao.jpa;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.EmbeddableType;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdal.dao.jpa.query.MetamodelQueryFinder;
+
+/**
+ * {@link ExtendedMetamodel} that wraps a JPA Metamodel and caches the named queries,
+ * entity descriptors, id attributes, mappedBy associations and property path attributes.
+ * <p>
+ * Metadata is computed on first use by entity class. Call {@link #init()} to index
+ * all entities at startup, so the first requests don't pay for annotation scanning.
+ * Instances are thread safe and are intended to be shared by all Daos of a
+ * persistence unit.
+ * </p>
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class DefaultExtendedMetamodel implements ExtendedMetamodel {
+
+	private static final Log log = LogFactory.getLog(DefaultExtendedMetamodel.class);
+
+	private Metamodel metamodel;
+	private volatile Map<String, String> namedQueries;
+	private Map<Class<?>, EntityDescriptor> descriptors = new ConcurrentHashMap<Class<?>, EntityDescriptor>();
+	private Map<Class<?>, SingularAttribute<?, ?>> idAttributes = new ConcurrentHashMap<Class<?>, SingularAttribute<?, ?>>();
+	private Map<Class<?>, Map<String, String>> mappedBy = new ConcurrentHashMap<Class<?>, Map<String, String>>();
+	private Map<String, List<Attribute<?, ?>>> pathAttributes = new ConcurrentHashMap<String, List<Attribute<?, ?>>>();
+
+	/**
+	 * @param metamodel the JPA metamodel to wrap
+	 */
+	public DefaultExtendedMetamodel(Metamodel metamodel) {
+		this.metamodel = metamodel;
+	}
+
+	/**
+	 * Index the named queries and the metadata of all entities.
+	 */
+	public void init() {
+		getNamedQueries();
+
+		for (EntityType<?> type : metamodel.getEntities()) {
+			Class<?> clazz = type.getJavaType();
+			getIdAttribute(clazz);
+			getDescriptor(clazz);
+			getMappedBy(clazz);
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Indexed " + metamodel.getEntities().size() + " entities and " +
+					namedQueries.size() + " named queries");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, String> getNamedQueries() {
+		if (namedQueries == null)
+			namedQueries = Collections.unmodifiableMap(new MetamodelQueryFinder(metamodel).find());
+
+		return namedQueries;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String findNamedQuery(String name) {
+		return getNamedQueries().get(name);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@SuppressWarnings("unchecked")
+	public <X> SingularAttribute<? super X, ?> getIdAttribute(Class<X> clazz) {
+		SingularAttribute<? super X, ?> id = (SingularAttribute<? super X, ?>) idAttributes.get(clazz);
+
+		if (id == null) {
+			EntityType<X> type = metamodel.entity(clazz);
+			id = type.getId(type.getIdType().getJavaType());
+			idAttributes.put(clazz, id);
+		}
+
+		return id;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public EntityDescriptor getDescriptor(Class<?> clazz) {
+		EntityDescriptor descriptor = descriptors.get(clazz);
+
+		if (descriptor == null) {
+			Class<?> entityClass = clazz;
+			while (!isEntity(entityClass) && entityClass.getSuperclass() != null)
+				entityClass = entityClass.getSuperclass();
+
+			descriptor = new EntityDescriptor(metamodel.entity(entityClass));
+			descriptors.put(clazz, descriptor);
+		}
+
+		return descriptor;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, String> getMappedBy(Class<?> clazz) {
+		Map<String, String> references = mappedBy.get(clazz);
+
+		if (references == null) {
+			references = Collections.unmodifiableMap(findMappedBy(metamodel.entity(clazz)));
+			mappedBy.put(clazz, references);
+		}
+
+		return references;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Attribute<?, ?>> getPathAttributes(ManagedType<?> type, String propertyPath) {
+		String key = type.getJavaType().getName() + "#" + propertyPath;
+		List<Attribute<?, ?>> attributes = pathAttributes.get(key);
+
+		if (attributes == null) {
+			attributes = JpaUtils.getPathAttributes(type, propertyPath);
+
+			if (attributes != null) {
+				attributes = Collections.unmodifiableList(attributes);
+				pathAttributes.put(key, attributes);
+			}
+		}
+
+		return attributes;
+	}
+
+	/**
+	 * Find the associations of an entity type mapped by a to one attribute, 
+	 * skipping the ones that cascade remove or remove orphans.
+	 * @param type the entity type
+	 * @return the mappedBy attribute names by association name
+	 */
+	private Map<String, String> findMappedBy(EntityType<?> type) {
+		Map<String, String> references = new LinkedHashMap<String, String>();
+
+		for (Attribute<?, ?> a : type.getAttributes()) {
+			if (PersistentAttributeType.ONE_TO_MANY != a.getPersistentAttributeType() &&
+					PersistentAttributeType.ONE_TO_ONE != a.getPersistentAttributeType())
+				continue;
+
+			String mappedBy = JpaUtils.getMappedBy(a);
+
+			// removed by cascade, must be loaded with the reference in place
+			if (mappedBy == null || JpaUtils.isCascadeRemove(a))
+				continue;
+
+			EntityType<?> associationType = metamodel.entity(a.isCollection() ?
+					((PluralAttribute<?, ?, ?>) a).getBindableJavaType() : a.getJavaType());
+			Attribute<?, ?> aa = associationType.getAttribute(mappedBy);
+
+			if (PersistentAttributeType.MANY_TO_ONE == aa.getPersistentAttributeType() ||
+					PersistentAttributeType.ONE_TO_ONE == aa.getPersistentAttributeType())
+				references.put(a.getName(), mappedBy);
+		}
+
+		return references;
+	}
+
+	/**
+	 * Test if a class is an entity
+	 * @param clazz class to test
+	 * @return true if is an entity
+	 */
+	private boolean isEntity(Class<?> clazz) {
+		try {
+			metamodel.entity(clazz);
+			return true;
+		}
+		catch (IllegalArgumentException iae) {
+			return false;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <X> EntityType<X> entity(Class<X> clazz) {
+		return metamodel.entity(clazz);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <X> ManagedType<X> managedType(Class<X> clazz) {
+		return metamodel.managedType(clazz);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public <X> EmbeddableType<X> embeddable(Class<X> clazz) {
+		return metamodel.embeddable(clazz);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<ManagedType<?>> getManagedTypes() {
+		return metamodel.getManagedTypes();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<EntityType<?>> getEntities() {
+		return metamodel.getEntities();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<EmbeddableType<?>> getEmbeddables() {
+		return metamodel.getEmbeddables();
+	}
+
+	/**
+	 * @return the wrapped metamodel
+	 */
+	public Metamodel getMetamodel() {
+		return metamodel;
+	}
+}
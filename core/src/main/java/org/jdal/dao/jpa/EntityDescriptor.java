@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao.jpa;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Cached id and version accessors of an entity type, used to read ids and
+ * to detect new entities without querying the database.
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class EntityDescriptor {
+
+	private String idName;
+	private Member idMember;
+	private boolean generatedId;
+	private boolean primitiveId;
+	private String versionName;
+	private Member versionMember;
+	private boolean primitiveVersion;
+
+	/**
+	 * Create a descriptor for an entity type
+	 * @param type the entity type
+	 */
+	public EntityDescriptor(EntityType<?> type) {
+		SingularAttribute<?, ?> id = type.getId(type.getIdType().getJavaType());
+		this.idName = id.getName();
+		this.idMember = makeAccessible(id.getJavaMember());
+		this.generatedId = JpaUtils.isGeneratedId(id);
+		this.primitiveId = id.getJavaType().isPrimitive();
+
+		if (type.hasVersionAttribute()) {
+			for (SingularAttribute<?, ?> attribute : type.getSingularAttributes()) {
+				if (attribute.isVersion()) {
+					this.versionName = attribute.getName();
+					this.versionMember = makeAccessible(attribute.getJavaMember());
+					this.primitiveVersion = attribute.getJavaType().isPrimitive();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the entity id
+	 * @param entity the entity
+	 * @return the id value
+	 */
+	public Object getId(Object entity) {
+		return getValue(entity, idMember, idName);
+	}
+
+	/**
+	 * Gets the entity version
+	 * @param entity the entity
+	 * @return the version or null if none
+	 */
+	public Object getVersion(Object entity) {
+		return versionName != null ? getValue(entity, versionMember, versionName) : null;
+	}
+
+	/**
+	 * Test if {@link #isNew(Object)} could decide from id or version values, that is
+	 * the entity has a non primitive version or a generated id.
+	 * @return true if new entities could be detected without querying
+	 */
+	public boolean isNewDetectable() {
+		return (versionName != null && !primitiveVersion) || generatedId;
+	}
+
+	/**
+	 * Test if entity is new from version or id values. Only meaningful
+	 * if {@link #isNewDetectable()} is true, otherwise test if id is null.
+	 * @param entity the entity to test
+	 * @return true if the entity is new
+	 */
+	public boolean isNew(Object entity) {
+		if (versionName != null && !primitiveVersion)
+			return getVersion(entity) == null;
+
+		Object id = getId(entity);
+
+		if (primitiveId && id instanceof Number)
+			return ((Number) id).longValue() == 0;
+
+		return id == null;
+	}
+
+	/**
+	 * @return the id attribute name
+	 */
+	public String getIdName() {
+		return idName;
+	}
+
+	/**
+	 * @return the version attribute name or null if none
+	 */
+	public String getVersionName() {
+		return versionName;
+	}
+
+	/**
+	 * @return true if the id is generated
+	 */
+	public boolean isGeneratedId() {
+		return generatedId;
+	}
+
+	/**
+	 * Read a value from member, try the getter if the field is null as happens with proxies.
+	 */
+	private Object getValue(Object entity, Member member, String name) {
+		if (member instanceof Method)
+			return ReflectionUtils.invokeMethod((Method) member, entity);
+		
+		Object value = member instanceof Field ? ReflectionUtils.getField((Field) member, entity) : null;
+		
+		if (value == null) {
+			BeanWrapper wrapper = PropertyAccessorFactory.forBeanPropertyAccess(entity);
+			if (wrapper.isReadableProperty(name))
+				value = wrapper.getPropertyValue(name);
+		}
+		
+		return value;
+	}
+
+	private Member makeAccessible(Member member) {
+		if (member instanceof Field)
+			ReflectionUtils.makeAccessible((Field) member);
+		else if (member instanceof Method)
+			ReflectionUtils.makeAccessible((Method) member);
+
+		return member;
+	}
+}
@@ -15,17 +15,65 @@
  */
 package org.jdal.dao.jpa;
 
+import java.util.List;
 import java.util.Map;
 
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ManagedType;
 import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
 
 /**
+ * Metamodel with the persistence unit named queries and cached entity metadata
+ * used by Daos.
+ * 
  * @author Jose Luis Martin - (jlm@joseluismartin.info)
  *
  */
 public interface ExtendedMetamodel extends Metamodel {
 	
+	/**
+	 * @return the named query strings by name
+	 */
 	Map<String, String> getNamedQueries();
+	
+	/**
+	 * Find a named query string
+	 * @param name the query name
+	 * @return the query string or null if none
+	 */
 	String findNamedQuery(String name);
 	
+	/**
+	 * Gets the id attribute of an entity class
+	 * @param clazz the entity class
+	 * @return the id attribute
+	 */
+	<X> SingularAttribute<? super X, ?> getIdAttribute(Class<X> clazz);
+	
+	/**
+	 * Gets the id and version accessors of an entity class
+	 * @param clazz the entity class or a subclass, ie a proxy class
+	 * @return the entity descriptor
+	 */
+	EntityDescriptor getDescriptor(Class<?> clazz);
+	
+	/**
+	 * Gets the one to many and one to one associations of an entity class that are
+	 * mapped by a many to one or one to one attribute on the other side. 
+	 * Associations that cascade remove or remove orphans are not included.
+	 * @param clazz the entity class
+	 * @return the mappedBy attribute names by association name
+	 */
+	Map<String, String> getMappedBy(Class<?> clazz);
+	
+	/**
+	 * Gets the attributes of a property path on a managed type. 
+	 * Only resolved paths are cached.
+	 * @param type the managed type
+	 * @param propertyPath property path like "customer.address.city"
+	 * @return the attribute of each path segment or null if the path could not be resolved
+	 */
+	List<Attribute<?, ?>> getPathAttributes(ManagedType<?> type, String propertyPath);
+	
 }
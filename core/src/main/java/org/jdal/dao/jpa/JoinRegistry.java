@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao.jpa;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.Bindable;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+
+import org.apache.commons.lang.StringUtils;
+import org.jdal.beans.PropertyUtils;
+
+/**
+ * Resolve property paths on a criteria query From, joining each association only once.
+ * <p>
+ * Joins already present in the From, ie created by a {@link JpaCriteriaBuilder}, are
+ * registered by property path and reused. Missing single valued associations are
+ * left joined, so sorting or selecting a nested property don't drop the rows with
+ * null associations as the implicit inner joins of chained <code>Path.get()</code> do.
+ * Collections are never joined, only reused if already joined.
+ * </p>
+ * <p>
+ * The joins are read from the From on creation, so registries are cheap and could be
+ * created when needed. Property paths are resolved against the {@link ExtendedMetamodel},
+ * if any, that caches the resolved paths of its persistence unit.
+ * </p>
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class JoinRegistry {
+
+	/** segment kinds */
+	private enum Segment { ASSOCIATION, COLLECTION, ATTRIBUTE }
+
+	/** unknown property paths, resolved by the provider */
+	private static final Segment[] UNKNOWN = new Segment[0];
+
+	private From<?, ?> from;
+	/** metamodel caching resolved paths, may be null */
+	private ExtendedMetamodel metamodel;
+	/** paths by property path */
+	private Map<String, Path<?>> paths = new HashMap<String, Path<?>>();
+
+	/**
+	 * Create a registry for a From, registering its current joins.
+	 * @param from the from, usually the query root
+	 */
+	public JoinRegistry(From<?, ?> from) {
+		this(from, null);
+	}
+
+	/**
+	 * Create a registry for a From, registering its current joins.
+	 * @param from the from, usually the query root
+	 * @param metamodel metamodel used to resolve property paths, null to resolve without cache
+	 */
+	public JoinRegistry(From<?, ?> from, ExtendedMetamodel metamodel) {
+		this.from = from;
+		this.metamodel = metamodel;
+		registerJoins(from, null);
+	}
+
+	/**
+	 * Gets the path for a property path, reusing or left joining the associations.
+	 * @param propertyPath property path like "customer.address.city"
+	 * @return the path
+	 */
+	@SuppressWarnings("unchecked")
+	public <Y> Path<Y> getPath(String propertyPath) {
+		if (StringUtils.isEmpty(propertyPath))
+			return (Path<Y>) from;
+
+		Path<?> path = paths.get(propertyPath);
+
+		if (path != null)
+			return (Path<Y>) path;
+
+		Segment[] segments = getSegments(propertyPath);
+
+		if (segments == UNKNOWN)  // let the provider complain
+			return JpaUtils.getPath(from, propertyPath);
+
+		String[] names = StringUtils.split(propertyPath, PropertyUtils.PROPERTY_SEPARATOR);
+		String prefix = null;
+		path = from;
+
+		for (int i = 0; i < names.length; i++) {
+			prefix = prefix == null ? names[i] : prefix + PropertyUtils.PROPERTY_SEPARATOR + names[i];
+			Path<?> next = paths.get(prefix);
+
+			if (next == null) {
+				next = segments[i] == Segment.ASSOCIATION && path instanceof From ?
+						((From<?, ?>) path).join(names[i], JoinType.LEFT) : path.get(names[i]);
+
+				paths.put(prefix, next);
+			}
+
+			path = next;
+		}
+
+		return (Path<Y>) path;
+	}
+
+	/**
+	 * Test if a property path is known and has not collections, so it could be selected.
+	 * @param propertyPath the property path
+	 * @return true if single valued
+	 */
+	public boolean isSingular(String propertyPath) {
+		Segment[] segments = getSegments(propertyPath);
+
+		if (segments == UNKNOWN)
+			return false;
+
+		for (Segment segment : segments) {
+			if (segment == Segment.COLLECTION)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the from
+	 */
+	public From<?, ?> getFrom() {
+		return from;
+	}
+
+	/**
+	 * Register the joins of a From by property path, the first one wins.
+	 * @param parent the From
+	 * @param prefix the property path of the From
+	 */
+	private void registerJoins(From<?, ?> parent, String prefix) {
+		for (Join<?, ?> join : parent.getJoins()) {
+			String name = join.getAttribute().getName();
+			String path = prefix == null ? name : prefix + PropertyUtils.PROPERTY_SEPARATOR + name;
+
+			if (!paths.containsKey(path))
+				paths.put(path, join);
+
+			registerJoins(join, path);
+		}
+	}
+
+	/**
+	 * Gets the segment kinds of a property path resolved on metamodel.
+	 * @param propertyPath the property path
+	 * @return the segment kinds or UNKNOWN
+	 */
+	private Segment[] getSegments(String propertyPath) {
+		ManagedType<?> type = getManagedType(from);
+
+		if (type == null)
+			return UNKNOWN;
+
+		List<Attribute<?, ?>> attributes = metamodel != null ? 
+				metamodel.getPathAttributes(type, propertyPath) : JpaUtils.getPathAttributes(type, propertyPath);
+
+		if (attributes == null)
+			return UNKNOWN;
+
+		Segment[] segments = new Segment[attributes.size()];
+
+		for (int i = 0; i < segments.length; i++) {
+			Attribute<?, ?> attribute = attributes.get(i);
+
+			if (attribute.isCollection())
+				segments[i] = Segment.COLLECTION;
+			else
+				segments[i] = isAssociation(attribute) ? Segment.ASSOCIATION : Segment.ATTRIBUTE;
+		}
+
+		return segments;
+	}
+
+	/**
+	 * Test if a singular attribute is an association. Don't trust on 
+	 * {@link Attribute#isAssociation()}, Hibernate 3.6 returns false on to one associations.
+	 * @param attribute the attribute
+	 * @return true if association
+	 */
+	private boolean isAssociation(Attribute<?, ?> attribute) {
+		PersistentAttributeType type = attribute.getPersistentAttributeType();
+
+		return attribute.isAssociation() || type == PersistentAttributeType.MANY_TO_ONE || 
+				type == PersistentAttributeType.ONE_TO_ONE;
+	}
+
+	/**
+	 * Gets the managed type of a From
+	 * @param from the From
+	 * @return the managed type or null if none
+	 */
+	private ManagedType<?> getManagedType(From<?, ?> from) {
+		Bindable<?> model = from.getModel();
+
+		if (model instanceof ManagedType)
+			return (ManagedType<?>) model;
+
+		Type<?> type = null;
+		if (model instanceof SingularAttribute)
+			type = ((SingularAttribute<?, ?>) model).getType();
+		else if (model instanceof PluralAttribute)
+			type = ((PluralAttribute<?, ?, ?>) model).getElementType();
+
+		return type instanceof ManagedType ? (ManagedType<?>) type : null;
+	}
+}
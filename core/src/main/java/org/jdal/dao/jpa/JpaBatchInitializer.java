@@ -0,0 +1,373 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdal.dao.DaoSupport;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.PropertyAccessorFactory;
+
+/**
+ * Initialize entity graphs level by level. At each level, collect the
+ * uninitialized associations of all entities and load them with one
+ * <code>IN</code> query per association instead of one query per entity.
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class JpaBatchInitializer {
+
+	private static final Log log = LogFactory.getLog(JpaBatchInitializer.class);
+
+	private EntityManager em;
+	private PersistenceUnitUtil unitUtil;
+	/** max number of parameters in IN queries */
+	private int maxInParameters = DaoSupport.DEFAULT_MAX_IN_PARAMETERS;
+	/** already visited entities */
+	private Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+	/**
+	 * @param em entity manager to use
+	 */
+	public JpaBatchInitializer(EntityManager em) {
+		this.em = em;
+		this.unitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+	}
+
+	/**
+	 * Initialize entities
+	 * @param entities entities to initialize, could be detached
+	 * @param depth max depth
+	 */
+	public void initialize(Collection<?> entities, int depth) {
+		if (depth <= 0)
+			return;
+
+		List<Object> level = attach(entities);
+
+		while (depth-- > 0 && !level.isEmpty()) {
+			loadLevel(level);
+			level = nextLevel(level);
+		}
+
+		copyToDetached(entities);
+	}
+
+	/**
+	 * Gets the managed instances of entities, loading detached ones by id.
+	 * @param entities entities to attach
+	 * @return managed entities
+	 */
+	private List<Object> attach(Collection<?> entities) {
+		List<Object> attached = new ArrayList<Object>(entities.size());
+		Map<EntityType<?>, List<Object>> detached = new LinkedHashMap<EntityType<?>, List<Object>>();
+
+		for (Object entity : entities) {
+			EntityType<?> type = getEntityType(entity);
+
+			if (type == null || unitUtil.getIdentifier(entity) == null)
+				continue;
+
+			if (em.contains(entity)) {
+				if (visited.add(entity))
+					attached.add(entity);
+			}
+			else {
+				addToMap(detached, type, unitUtil.getIdentifier(entity));
+			}
+		}
+
+		for (EntityType<?> type : detached.keySet()) {
+			for (Object entity : load(type, detached.get(type), null)) {
+				if (visited.add(entity))
+					attached.add(entity);
+			}
+		}
+
+		return attached;
+	}
+
+	/**
+	 * Load the uninitialized associations of all entities in a level, one query
+	 * per collection attribute and one per target type of singular associations.
+	 * @param level entities to load
+	 */
+	private void loadLevel(List<Object> level) {
+		Map<EntityType<?>, Map<String, List<Object>>> collections =
+				new LinkedHashMap<EntityType<?>, Map<String, List<Object>>>();
+		Map<EntityType<?>, List<Object>> references = new LinkedHashMap<EntityType<?>, List<Object>>();
+
+		for (Object entity : level) {
+			EntityType<?> type = getEntityType(entity);
+
+			for (Attribute<?, ?> a : type.getAttributes()) {
+				if (!a.isAssociation() && !a.isCollection())
+					continue;
+
+				if (unitUtil.isLoaded(entity, a.getName()))
+					continue;
+
+				if (a.isCollection()) {
+					Map<String, List<Object>> owners = collections.get(type);
+					if (owners == null) {
+						owners = new LinkedHashMap<String, List<Object>>();
+						collections.put(type, owners);
+					}
+					addToMap(owners, a.getName(), unitUtil.getIdentifier(entity));
+				}
+				else {
+					Object value = getValue(entity, a);
+					EntityType<?> valueType = value != null ?
+							getEntityType(((SingularAttribute<?, ?>) a).getJavaType()) : null;
+
+					if (valueType != null)
+						addToMap(references, valueType, unitUtil.getIdentifier(value));
+				}
+			}
+		}
+
+		for (EntityType<?> type : collections.keySet()) {
+			Map<String, List<Object>> owners = collections.get(type);
+			for (String attribute : owners.keySet())
+				load(type, owners.get(attribute), attribute);
+		}
+
+		for (EntityType<?> type : references.keySet())
+			load(type, references.get(type), null);
+	}
+
+	/**
+	 * Gets the next level entities: the association values of level entities.
+	 * @param level the current level
+	 * @return the next level
+	 */
+	private List<Object> nextLevel(List<Object> level) {
+		List<Object> next = new ArrayList<Object>();
+
+		for (Object entity : level) {
+			for (Attribute<?, ?> a : getEntityType(entity).getAttributes()) {
+				if (!a.isAssociation() && !a.isCollection())
+					continue;
+
+				Object value = getValue(entity, a);
+
+				if (value instanceof Collection) {
+					for (Object element : (Collection<?>) value)
+						addToLevel(next, element);
+				}
+				else if (value instanceof Map) {
+					for (Object element : ((Map<?, ?>) value).values())
+						addToLevel(next, element);
+				}
+				else {
+					addToLevel(next, value);
+				}
+			}
+		}
+
+		return next;
+	}
+
+	/**
+	 * Add an entity to level if not visited yet.
+	 * @param level level to add on
+	 * @param entity entity to add
+	 */
+	private void addToLevel(List<Object> level, Object entity) {
+		if (entity != null && getEntityType(entity) != null && visited.add(entity))
+			level.add(entity);
+	}
+
+	/**
+	 * Copy the initialized associations of managed instances to detached entities.
+	 * @param entities root entities
+	 */
+	private void copyToDetached(Collection<?> entities) {
+		for (Object entity : entities) {
+			EntityType<?> type = getEntityType(entity);
+
+			if (type == null || em.contains(entity) || unitUtil.getIdentifier(entity) == null)
+				continue;
+
+			Object attached = em.find(type.getJavaType(), unitUtil.getIdentifier(entity));
+
+			if (attached == null)
+				continue;
+
+			for (Attribute<?, ?> a : type.getAttributes()) {
+				if ((a.isAssociation() || a.isCollection()) && !unitUtil.isLoaded(entity, a.getName()))
+					PropertyAccessorFactory.forDirectFieldAccess(entity).setPropertyValue(
+							a.getName(), getValue(attached, a));
+			}
+		}
+	}
+
+	/**
+	 * Load entities by id, fetching a collection attribute if any.
+	 * @param type entity type
+	 * @param ids entity ids
+	 * @param fetch collection attribute to fetch or null
+	 * @return loaded entities
+	 */
+	private List<?> load(EntityType<?> type, List<Object> ids, String fetch) {
+		String id = getIdName(type);
+
+		if (id == null) {
+			if (log.isDebugEnabled())
+				log.debug("Cannot batch load entities without a single id attribute: " + type.getName());
+
+			return loadOneByOne(type, ids, fetch);
+		}
+
+		String ql = "SELECT DISTINCT e FROM " + type.getName() + " e " +
+				(fetch != null ? "LEFT JOIN FETCH e." + fetch : "") +
+				" WHERE e." + id + " IN (:ids)";
+		List<Object> result = new ArrayList<Object>();
+
+		for (int i = 0; i < ids.size(); i += maxInParameters) {
+			result.addAll(em.createQuery(ql, type.getJavaType())
+					.setParameter("ids", ids.subList(i, Math.min(ids.size(), i + maxInParameters)))
+					.getResultList());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Fallback to load entities one by one
+	 * @param type entity type
+	 * @param ids entity ids
+	 * @param fetch collection attribute to initialize or null
+	 * @return the loaded entities
+	 */
+	private List<?> loadOneByOne(EntityType<?> type, List<Object> ids, String fetch) {
+		List<Object> result = new ArrayList<Object>();
+
+		for (Object id : ids) {
+			Object entity = em.find(type.getJavaType(), id);
+
+			if (entity != null) {
+				if (fetch != null) {
+					Object value = getValue(entity, type.getAttribute(fetch));
+					if (value instanceof Collection)
+						((Collection<?>) value).size();
+					else if (value instanceof Map)
+						((Map<?, ?>) value).size();
+				}
+
+				result.add(entity);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Gets the attribute value, using getter if any.
+	 * @param entity entity
+	 * @param a attribute
+	 * @return the value
+	 */
+	private Object getValue(Object entity, Attribute<?, ?> a) {
+		BeanWrapper wrapper = PropertyAccessorFactory.forBeanPropertyAccess(entity);
+
+		return wrapper.isReadableProperty(a.getName()) ? wrapper.getPropertyValue(a.getName()) :
+			PropertyAccessorFactory.forDirectFieldAccess(entity).getPropertyValue(a.getName());
+	}
+
+	/**
+	 * Gets the entity type of an entity, could be a proxy.
+	 * @param entity the entity
+	 * @return entity type or null if not an entity
+	 */
+	private EntityType<?> getEntityType(Object entity) {
+		return getEntityType(entity.getClass());
+	}
+
+	/**
+	 * Gets the entity type for a class or its nearest entity superclass.
+	 * @param clazz the class
+	 * @return the entity type or null if none
+	 */
+	private EntityType<?> getEntityType(Class<?> clazz) {
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+			try {
+				return em.getMetamodel().entity(c);
+			}
+			catch (IllegalArgumentException iae) {
+				// not an entity, try superclass
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Gets the name of single id attribute
+	 * @param type entity type
+	 * @return the id attribute name or null if none
+	 */
+	private String getIdName(EntityType<?> type) {
+		if (!type.hasSingleIdAttribute())
+			return null;
+
+		return type.getId(type.getIdType().getJavaType()).getName();
+	}
+
+	/**
+	 * Add a value to a map of lists
+	 */
+	private <K> void addToMap(Map<K, List<Object>> map, K key, Object value) {
+		List<Object> list = map.get(key);
+
+		if (list == null) {
+			list = new ArrayList<Object>();
+			map.put(key, list);
+		}
+
+		list.add(value);
+	}
+
+	/**
+	 * @return the maxInParameters
+	 */
+	public int getMaxInParameters() {
+		return maxInParameters;
+	}
+
+	/**
+	 * @param maxInParameters the maxInParameters to set
+	 */
+	public void setMaxInParameters(int maxInParameters) {
+		this.maxInParameters = maxInParameters;
+	}
+}
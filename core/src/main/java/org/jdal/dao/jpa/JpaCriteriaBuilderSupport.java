@@ -26,6 +26,9 @@ import javax.persistence.criteria.Root;
 import org.jdal.dao.Filter;
 
 /**
+ * Support class for JpaCriteriaBuilders. Builds are serialized on the builder monitor,
+ * use {@link ConcurrentJpaCriteriaBuilderSupport} for builders shared between threads.
+ * 
  * @author Jose Luis Martin - (jlm@joseluismartin.info)
  * 
  * @param <T> CriteriaQuery Type
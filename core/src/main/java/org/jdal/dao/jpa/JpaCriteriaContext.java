@@ -0,0 +1,184 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.dao.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.jdal.dao.Filter;
+
+/**
+ * Per invocation state of a {@link ConcurrentJpaCriteriaBuilderSupport}: filter, root,
+ * criteria builder and the predicates added while building. A new context is
+ * created on each build, so builders could be shared between threads.
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ *
+ * @param <K> Entity Type
+ */
+public class JpaCriteriaContext<K> {
+
+	private Filter filter;
+	private Root<K> root;
+	private CriteriaBuilder cb;
+	private List<Predicate> predicates = new ArrayList<Predicate>();
+	private JoinRegistry joins;
+
+	/**
+	 * @param filter the filter
+	 * @param root the query root
+	 * @param cb the criteria builder
+	 */
+	public JpaCriteriaContext(Filter filter, Root<K> root, CriteriaBuilder cb) {
+		this.filter = filter;
+		this.root = root;
+		this.cb = cb;
+	}
+
+	/**
+	 * Create a '=' Restriction on property
+	 * @param propertyName property path
+	 * @param value restriction value
+	 * @return the predicate or null if value is null
+	 */
+	public Predicate equal(String propertyName, Object value) {
+		if (value == null)
+			return null;
+
+		return cb.equal(getPath(propertyName), value);
+	}
+
+	/**
+	 * Create a '<=' Restriction on property
+	 * @param propertyName property path
+	 * @param value restriction value
+	 * @return the predicate or null if value is null
+	 */
+	public <Y extends Comparable<? super Y>> Predicate lessThanOrEqualTo(String propertyName, Y value) {
+		if (value == null)
+			return null;
+
+		return cb.lessThanOrEqualTo(this.<Y>getPath(propertyName), value);
+	}
+
+	/**
+	 * Create a '>=' Restriction on property
+	 * @param propertyName property path
+	 * @param value restriction value
+	 * @return the predicate or null if value is null
+	 */
+	public <Y extends Comparable<? super Y>> Predicate greatThanOrEqualTo(String propertyName, Y value) {
+		if (value == null)
+			return null;
+
+		return cb.greaterThanOrEqualTo(this.<Y>getPath(propertyName), value);
+	}
+
+	/**
+	 * Create a like Restriction wrapping value on '%' and replacing '*'
+	 * for '%'
+	 * @param propertyName property path
+	 * @param value text for the like restriction
+	 * @return the predicate or null if value is null
+	 */
+	public Predicate like(String propertyName, String value) {
+		if (value == null)
+			return null;
+
+		String toMatch = "%" + value.trim().replace('*', '%') + "%";
+
+		return cb.like(this.<String>getPath(propertyName), toMatch);
+	}
+
+	/**
+	 * Add a predicate if not null
+	 * @param predicate predicate to add
+	 * @return this context
+	 */
+	public JpaCriteriaContext<K> add(Predicate predicate) {
+		if (predicate != null)
+			predicates.add(predicate);
+
+		return this;
+	}
+
+	/**
+	 * Set the added predicates as criteria restriction with AND.
+	 * @param criteria the criteria
+	 */
+	public void addAndWhere(CriteriaQuery<?> criteria) {
+		if (predicates.size() > 0)
+			criteria.where(cb.and(predicates.toArray(new Predicate[predicates.size()])));
+	}
+
+	/**
+	 * Gets the path for a property path from root
+	 * @param propertyName property path
+	 * @return the path
+	 */
+	public <Y> Path<Y> getPath(String propertyName) {
+		return JpaUtils.getPath(root, propertyName);
+	}
+
+	/**
+	 * Gets the path for a property path from root, reusing the root joins and 
+	 * left joining the missing associations.
+	 * @param propertyName property path
+	 * @return the path
+	 * @see JoinRegistry
+	 */
+	public <Y> Path<Y> getJoinedPath(String propertyName) {
+		if (joins == null)
+			joins = new JoinRegistry(root);
+
+		return joins.getPath(propertyName);
+	}
+
+	/**
+	 * @return the filter
+	 */
+	public Filter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @return the root
+	 */
+	public Root<K> getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the criteria builder
+	 */
+	public CriteriaBuilder getCriteriaBuilder() {
+		return cb;
+	}
+
+	/**
+	 * @return the added predicates
+	 */
+	public List<Predicate> getPredicates() {
+		return predicates;
+	}
+}
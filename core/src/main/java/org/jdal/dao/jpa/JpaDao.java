@@ -16,41 +16,66 @@
 package org.jdal.dao.jpa;
 
 import java.io.Serializable;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
 import javax.persistence.Parameter;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.persistence.criteria.Selection;
 import javax.persistence.metamodel.Attribute;
 import javax.persistence.metamodel.Attribute.PersistentAttributeType;
 import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
 import javax.persistence.metamodel.PluralAttribute;
 import javax.persistence.metamodel.SingularAttribute;
 import javax.persistence.metamodel.Type;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jdal.beans.PropertyUtils;
+import org.jdal.dao.Cursor;
 import org.jdal.dao.DaoSupport;
+import org.jdal.dao.EntityChangeEvent;
 import org.jdal.dao.Filter;
+import org.jdal.dao.Keyset;
 import org.jdal.dao.Page;
+import org.jdal.dao.PageCursor;
 import org.jdal.dao.PageableDataSource;
-import org.jdal.dao.jpa.query.EntityTypeQueryFinder;
 import org.jdal.dao.jpa.query.QueryFinder;
-import org.springframework.beans.PropertyAccessor;
+import org.jdal.util.BeanUtils;
 import org.springframework.beans.PropertyAccessorFactory;
 import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.jdbc.support.DatabaseMetaDataCallback;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.orm.jpa.EntityManagerFactoryInfo;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ClassUtils;
 
 /**
  * Dao implementation for JPA
@@ -63,14 +88,41 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 	
 	private static final int DEFAULT_DEPTH = 2;
 	private static final Log log = LogFactory.getLog(JpaDao.class);
+	private static final String KEYSET_PARAMETER_PREFIX = "jdalKeyset";
+	private static final String KEYSET_VALUE_PARAMETER = KEYSET_PARAMETER_PREFIX + "Value";
+	private static final String KEYSET_ID_PARAMETER = KEYSET_PARAMETER_PREFIX + "Id";
+	private static final String BULK_VALUE_PARAMETER = "jdalBulkValue";
+	private static final String BULK_ALIAS = "jdalBulk";
+	public static final String HINT_READ_ONLY = "org.hibernate.readOnly";
+	public static final String HINT_FETCH_SIZE = "org.hibernate.fetchSize";
+	public static final String HINT_CACHEABLE = "org.hibernate.cacheable";
+	public static final String HINT_TIMEOUT = "javax.persistence.query.timeout";
 	@PersistenceContext
 	private EntityManager em;
 	private Class<T> entityClass;
-	private Map<String, JpaCriteriaBuilder<?>> criteriaBuilderMap = Collections.synchronizedMap(
-			new HashMap<String, JpaCriteriaBuilder<?>>());
+	private Map<String, JpaCriteriaBuilder<?>> criteriaBuilderMap = 
+			new ConcurrentHashMap<String, JpaCriteriaBuilder<?>>();
 	
 	private QueryFinder queryFinder;
 	private boolean onDeleteSetNull = true;
+	private volatile Boolean bulkDeleteSupported;
+	/** cached entity metadata, usually shared with other daos */
+	private volatile ExtendedMetamodel metamodel;
+	/** merge entities with id without testing if they exist */
+	private boolean upsert = false;
+	/** query strings derived from named queries */
+	private Map<List<Object>, String> derivedQueries = new ConcurrentHashMap<List<Object>, String>();
+	/** load ids first and then entities when criteria fetch collections */
+	private boolean twoPhasePaging = true;
+	/** associations to null on delete, computed once */
+	private volatile List<MappedReference> mappedReferences;
+	/** builds count queries, caching count plans by filter */
+	private CountQueryOptimizer countQueryOptimizer = new CountQueryOptimizer();
+	/** true if the database sorts nulls as higher than any value, null if unknown */
+	private volatile Boolean nullsSortedHigh;
+	private volatile boolean nullOrderingDetected;
+	/** nullability of sort property paths */
+	private Map<String, Boolean> nullableSorts = new ConcurrentHashMap<String, Boolean>();
 	
 	/**
 	 * Default Ctor, When using it, you need to set entityClass 
@@ -92,22 +144,339 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 	 */
 	@SuppressWarnings("unchecked")
 	public <K> Page<K> getPage(Page<K> page) {
+		Page.Seek seek = getSeek(page);
+		List<K> data = null;
+		List<String> projection = null;
 		
 		// try named query first
 		TypedQuery<K> query = getNamedQuery(page);
 		
-		if (query == null) // get query from criteria
-			query = getCriteriaQuery(page);
+		if (query == null) { // get query from criteria
+			CriteriaQuery<K> criteria = getCriteria(page);
+			
+			if (isTwoPhasePaging(criteria)) {
+				data = getTwoPhaseData(page, criteria, seek);
+			}
+			else {
+				projection = applyProjection(page, criteria);
+				query = getCriteriaQuery(page, criteria);
+			}
+		}
 	 
-		// add range
-		query.setMaxResults(page.getPageSize());
-		query.setFirstResult(page.getStartIndex());
+		if (data == null) {
+			applyHints(query, page, true);
+			// add range
+			query.setMaxResults(getMaxResults(page));
+		
+			if (seek == Page.Seek.NONE)
+				query.setFirstResult(page.getStartIndex());
+			
+			data = projection == null ? query.getResultList() : 
+				(List<K>) createProjectionRows(query.getResultList(), projection);
+		}
+		
+		data = estimateCount(page, data);
+		
+		if (seek == Page.Seek.PREVIOUS) {
+			// previous page was read in reverse order
+			data = new ArrayList<K>(data);
+			Collections.reverse(data);
+			// and has a next page for sure
+			if (page.getCountMode() == Page.CountMode.ESTIMATED)
+				page.setCount(Math.max(page.getCount(), page.getStartIndex() + data.size() + 1));
+		}
+		
+		page.setData(data);
+		
+		if (page.isKeysetPaging())
+			page.setKeyset(createKeyset(page));
 		
-		page.setData(query.getResultList());
 		page.setPageableDataSource(((PageableDataSource<K>) this));
 		return page;
 	}
 	
+	/**
+	 * Gets the seek direction for a page, fall back to none if the
+	 * named query declares its own order, the page sorts by many properties 
+	 * or sorts by a nullable property and the null ordering of the database is unknown.
+	 * @param page request page
+	 * @return the seek direction
+	 */
+	private Page.Seek getSeek(Page<?> page) {
+		Page.Seek seek = page.getSeek();
+		
+		// seek conditions use a single sort property
+		if (page.isMultiSort())
+			return Page.Seek.NONE;
+		
+		// can't tell if null values are before or after the keyset
+		if (seek != Page.Seek.NONE && page.getSortName() != null && 
+				isNullable(page.getSortName()) && resolveNullsSortedHigh() == null)
+			return Page.Seek.NONE;
+		
+		if (seek != Page.Seek.NONE && page.getFilter() instanceof Filter) {
+			String queryString = getQueryString(((Filter) page.getFilter()).getFilterName());
+			if (queryString != null && StringUtils.containsIgnoreCase(queryString, "order by"))
+				return Page.Seek.NONE;
+		}
+		
+		return seek;
+	}
+	
+	/**
+	 * Test if ordering should be ascending for page and seek direction
+	 * @param page request page
+	 * @param seek seek direction
+	 * @return true if ascending
+	 */
+	private boolean isAscending(Page<?> page, Page.Seek seek) {
+		boolean asc = page.getOrder() != Page.Order.DESC;
+		
+		return seek == Page.Seek.PREVIOUS ? !asc : asc;
+	}
+	
+	/**
+	 * Test if rows with null sort values follow the keyset in seek direction. 
+	 * Keyset values are never null.
+	 * @param page request page
+	 * @param seek seek direction
+	 * @return true if seek conditions must include null sort values
+	 */
+	private boolean isSeekingNulls(Page<?> page, Page.Seek seek) {
+		if (!isNullable(page.getSortName()))
+			return false;
+		
+		return isAscending(page, seek) == resolveNullsSortedHigh();
+	}
+	
+	/**
+	 * Test if a property path could be null, ie it is optional or goes through
+	 * optional associations. Unknown paths are nullable. Results are cached.
+	 * @param propertyPath the property path
+	 * @return true if nullable
+	 */
+	private boolean isNullable(String propertyPath) {
+		Boolean nullable = nullableSorts.get(propertyPath);
+		
+		if (nullable == null) {
+			nullable = false;
+			ManagedType<?> type = getMetamodel().managedType(getEntityClass());
+			
+			for (String name : StringUtils.split(propertyPath, PropertyUtils.PROPERTY_SEPARATOR)) {
+				Attribute<?, ?> attribute = null;
+				try {
+					attribute = type != null ? type.getAttribute(name) : null;
+				}
+				catch (IllegalArgumentException iae) {
+					// unknown, nullable
+				}
+				
+				if (attribute == null || attribute.isCollection() || 
+						((SingularAttribute<?, ?>) attribute).isOptional()) {
+					nullable = true;
+					break;
+				}
+				
+				Type<?> next = ((SingularAttribute<?, ?>) attribute).getType();
+				type = next instanceof ManagedType ? (ManagedType<?>) next : null;
+			}
+			
+			nullableSorts.put(propertyPath, nullable);
+		}
+		
+		return nullable;
+	}
+	
+	/**
+	 * Gets the null ordering of the database, detected on first use from the
+	 * JDBC metadata when not configured.
+	 * @return true if nulls sort high, false if low, null if unknown
+	 */
+	private Boolean resolveNullsSortedHigh() {
+		if (nullsSortedHigh == null && !nullOrderingDetected) {
+			nullsSortedHigh = detectNullsSortedHigh();
+			nullOrderingDetected = true;
+		}
+		
+		return nullsSortedHigh;
+	}
+	
+	/**
+	 * Read the null ordering from the metadata of the DataSource of the 
+	 * EntityManagerFactory, if available.
+	 * @return true if nulls sort high, false if low, null if unknown
+	 */
+	private Boolean detectNullsSortedHigh() {
+		EntityManagerFactory emf = em.getEntityManagerFactory();
+		
+		if (!(emf instanceof EntityManagerFactoryInfo) || 
+				((EntityManagerFactoryInfo) emf).getDataSource() == null)
+			return null;
+		
+		try {
+			Boolean high = (Boolean) JdbcUtils.extractDatabaseMetaData(
+					((EntityManagerFactoryInfo) emf).getDataSource(), new DatabaseMetaDataCallback() {
+				
+				public Object processMetaData(DatabaseMetaData dbmd) throws SQLException {
+					if (dbmd.nullsAreSortedHigh())
+						return Boolean.TRUE;
+					
+					return dbmd.nullsAreSortedLow() ? Boolean.FALSE : null;
+				}
+			});
+			
+			if (log.isDebugEnabled())
+				log.debug("Detected database null ordering, nulls sorted high: " + high);
+			
+			return high;
+		}
+		catch (MetaDataAccessException mdae) {
+			log.warn("Cannot read the null ordering of the database: " + mdae.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Read the database product name from the metadata of the DataSource of the 
+	 * EntityManagerFactory, subqueries are not used if unknown or MySQL.
+	 */
+	@Override
+	protected boolean isBulkSubquerySupported() {
+		EntityManagerFactory emf = em.getEntityManagerFactory();
+		
+		if (!(emf instanceof EntityManagerFactoryInfo) || 
+				((EntityManagerFactoryInfo) emf).getDataSource() == null)
+			return false;
+		
+		try {
+			String product = (String) JdbcUtils.extractDatabaseMetaData(
+					((EntityManagerFactoryInfo) emf).getDataSource(), "getDatabaseProductName");
+			
+			return product != null && !StringUtils.containsIgnoreCase(product, "mysql");
+		}
+		catch (MetaDataAccessException mdae) {
+			log.warn("Cannot read the database product name: " + mdae.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Create a Keyset from the boundary rows of a loaded page.
+	 * @param page loaded page
+	 * @return new Keyset or null if page rows can not be used as keys.
+	 */
+	private Keyset createKeyset(Page<?> page) {
+		List<?> data = page.getData();
+		
+		if (data.isEmpty() || !getEntityClass().isInstance(data.get(0)) || page.isMultiSort())
+			return null;
+		
+		PersistenceUnitUtil unitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+		Object first = data.get(0);
+		Object last = data.get(data.size() - 1);
+		Object firstValue = null;
+		Object lastValue = null;
+		
+		if (page.getSortName() != null) {
+			firstValue = BeanUtils.getProperty(first, page.getSortName());
+			lastValue = BeanUtils.getProperty(last, page.getSortName());
+			
+			if (!(firstValue instanceof Comparable && lastValue instanceof Comparable)) {
+				if (log.isDebugEnabled())
+					log.debug("Cannot use sort property [" + page.getSortName() + "] as keyset");
+				
+				return null;
+			}
+		}
+		
+		return new Keyset(page, firstValue, unitUtil.getIdentifier(first), 
+				lastValue, unitUtil.getIdentifier(last));
+	}
+	
+	/**
+	 * Gets the keyset values to seek from
+	 * @param page request page
+	 * @param seek seek direction
+	 * @return array with sort value and id
+	 */
+	private Object[] getSeekValues(Page<?> page, Page.Seek seek) {
+		Keyset keyset = page.getKeyset();
+		
+		return seek == Page.Seek.NEXT ? 
+				new Object[] { keyset.getLastValue(), keyset.getLastId() } :
+				new Object[] { keyset.getFirstValue(), keyset.getFirstId() };
+	}
+	
+	/**
+	 * Create the JPQL condition to seek from keyset
+	 * @param alias root alias
+	 * @param page request page
+	 * @param seek seek direction
+	 * @return JPQL condition
+	 */
+	private String getSeekCondition(String alias, Page<?> page, Page.Seek seek) {
+		String operator = isAscending(page, seek) ? " > " : " < ";
+		String id = alias + "." + getIdAttribute().getName();
+		
+		if (page.getSortName() == null)
+			return id + operator + ":" + KEYSET_ID_PARAMETER;
+		
+		String sort = alias + "." + page.getSortName();
+		String nulls = isSeekingNulls(page, seek) ? " OR " + sort + " IS NULL" : "";
+		
+		return "(" + sort + operator + ":" + KEYSET_VALUE_PARAMETER + " OR (" + sort + " = :" + 
+				KEYSET_VALUE_PARAMETER + " AND " + id + operator + ":" + KEYSET_ID_PARAMETER + ")" + 
+				nulls + ")";
+	}
+	
+	/**
+	 * Create the Predicate to seek from keyset
+	 * @param criteria criteria to seek on
+	 * @param page request page
+	 * @param seek seek direction
+	 * @return new Predicate
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Predicate getSeekPredicate(CriteriaQuery<?> criteria, Page<?> page, Page.Seek seek) {
+		CriteriaBuilder cb = em.getCriteriaBuilder();
+		Root<T> root = JpaUtils.findRoot(criteria, getEntityClass());
+		Object[] values = getSeekValues(page, seek);
+		boolean asc = isAscending(page, seek);
+		Expression<Comparable> id = root.get(getIdAttribute().getName());
+		Comparable idValue = (Comparable) values[1];
+		Predicate idPredicate = asc ? cb.greaterThan(id, idValue) : cb.lessThan(id, idValue);
+		
+		if (page.getSortName() == null)
+			return idPredicate;
+		
+		Expression<Comparable> sort = new JoinRegistry(root, getMetamodel()).getPath(page.getSortName());
+		Comparable sortValue = (Comparable) values[0];
+		
+		Predicate predicate = cb.or(asc ? cb.greaterThan(sort, sortValue) : cb.lessThan(sort, sortValue), 
+				cb.and(cb.equal(sort, sortValue), idPredicate));
+		
+		return isSeekingNulls(page, seek) ? cb.or(predicate, cb.isNull(sort)) : predicate;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Read the results by pages using keyset paging and clear the 
+	 * persistence context after reading each page.
+	 */
+	public Cursor<T> scroll(Page<T> page, int fetchSize) {
+		return new PageCursor<T>(this, page, fetchSize) {
+			
+			@Override
+			protected void pageRead(Page<T> page) {
+				if (TransactionSynchronizationManager.isActualTransactionActive())
+					em.flush();
+				
+				em.clear();
+			}
+		};
+	}
+	
 	/**
 	 * Build CriteriaQuery using declared JpaCriteriaBuilder in filterMap
 	 * @param page
@@ -141,29 +510,215 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 	}
 	
 	/**
-	 * Create a TypedQuery from a request page
+	 * Select only the page projection properties, plus id and sort property. 
+	 * Associations are left joined once per path.
 	 * @param page request page
-	 * @return new TypedQuery
+	 * @param criteria page criteria
+	 * @return the selected property paths or null if the projection was not applied
+	 */
+	private List<String> applyProjection(Page<?> page, CriteriaQuery<?> criteria) {
+		if (!page.isProjection())
+			return null;
+		
+		Root<T> root = JpaUtils.findRoot(criteria, getEntityClass());
+		
+		// fetches require selecting the owner
+		if (root == null || JpaUtils.hasFetches(criteria) ||
+				(criteria.getSelection() != null && criteria.getSelection() != root))
+			return null;
+		
+		Set<String> properties = new LinkedHashSet<String>();
+		properties.add(getIdAttribute().getName());
+		
+		for (Page.SortKey sortKey : page.getSortKeys())
+			properties.add(sortKey.getSortName());
+		
+		properties.addAll(page.getProjection());
+		
+		JoinRegistry joins = new JoinRegistry(root, getMetamodel());
+		List<Selection<?>> selections = new ArrayList<Selection<?>>();
+		
+		for (String property : properties) {
+			Path<?> path = joins.isSingular(property) ? joins.getPath(property) : null;
+			if (path == null) {
+				if (log.isDebugEnabled())
+					log.debug("Cannot project property [" + property + "], loading full entities");
+				
+				return null;
+			}
+			selections.add(path);
+		}
+		
+		criteria.multiselect(selections);
+		
+		return new ArrayList<String>(properties);
+	}
+	
+	/**
+	 * Test if the page should be loaded in two phases, first the ids and then
+	 * the entities. Used when the criteria fetch collections and selects the 
+	 * entity, to avoid in memory pagination.
+	 * @param criteria criteria to test
+	 * @return true if two phase paging should be used
+	 */
+	private boolean isTwoPhasePaging(CriteriaQuery<?> criteria) {
+		if (!twoPhasePaging || !JpaUtils.hasCollectionFetches(criteria))
+			return false;
+		
+		Root<T> root = JpaUtils.findRoot(criteria, getEntityClass());
+		
+		return root != null && (criteria.getSelection() == null || criteria.getSelection() == root);
+	}
+	
+	/**
+	 * Load page data in two phases: first a page of ids without fetches, then
+	 * the entities with their fetches by id, keeping the ids order.
+	 * @param page request page
+	 * @param criteria the criteria with collection fetches
+	 * @param seek seek direction
+	 * @return page data
 	 */
 	@SuppressWarnings("unchecked")
-	private <K> TypedQuery<K> getCriteriaQuery(Page<K> page) {
-		CriteriaQuery<K> criteria = getCriteria(page);
+	private <K> List<K> getTwoPhaseData(Page<K> page, CriteriaQuery<K> criteria, Page.Seek seek) {
+		CriteriaBuilder cb = em.getCriteriaBuilder();
+		
+		if (isCountRequired(page)) {
+			CriteriaQuery<Long> countCriteria = countQueryOptimizer.countCriteria(em, criteria, 
+					getEntityClass(), getCountPlanKey(page), true);
+			TypedQuery<Long> countQuery = em.createQuery(countCriteria);
+			applyHints(countQuery, page, false);
+			page.setCount(countQuery.getSingleResult().intValue());
+			countLoaded(page);
+		}
 		
-		CriteriaQuery<Long> countCriteria = (CriteriaQuery<Long>) getCriteria(page);
+		// first phase, load ids
+		TypedQuery<Object> keyQuery = em.createQuery(createKeyCriteria(criteria, page, seek));
+		applyHints(keyQuery, page, false);
+		keyQuery.setMaxResults(getMaxResults(page));
+		
+		if (seek == Page.Seek.NONE)
+			keyQuery.setFirstResult(page.getStartIndex());
+		
+		List<Object> ids = new ArrayList<Object>();
+		for (Object row : keyQuery.getResultList()) 
+			ids.add(row instanceof Object[] ? ((Object[]) row)[0] : row);
+		
+		if (ids.isEmpty())
+			return new ArrayList<K>();
+		
+		// second phase, load entities with fetches
+		Root<T> root = JpaUtils.findRoot(criteria, getEntityClass());
+		Predicate in = root.get(getIdAttribute().getName()).in(ids);
+		criteria.where(criteria.getRestriction() == null ? in : cb.and(criteria.getRestriction(), in));
+		criteria.select((Selection<? extends K>) root);
+		
+		PersistenceUnitUtil unitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+		Map<Object, K> entities = new HashMap<Object, K>();
+		
+		TypedQuery<K> query = em.createQuery(criteria);
+		applyHints(query, page, true);
+		
+		for (K entity : query.getResultList()) 
+			entities.put(unitUtil.getIdentifier(entity), entity);
+		
+		List<K> data = new ArrayList<K>(ids.size());
+		for (Object id : ids) {
+			K entity = entities.get(id);
+			if (entity != null)
+				data.add(entity);
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Create a distinct criteria selecting the ids (and the sort property if any), 
+	 * without fetches and ordered by sort property and id.
+	 * @param criteria source criteria
+	 * @param page request page
+	 * @param seek seek direction
+	 * @return the key criteria
+	 */
+	private CriteriaQuery<Object> createKeyCriteria(CriteriaQuery<?> criteria, Page<?> page, Page.Seek seek) {
 		CriteriaBuilder cb = em.getCriteriaBuilder();
+		CriteriaQuery<Object> keyCriteria = cb.createQuery();
+		JpaUtils.copyCriteriaWithoutFetches(criteria, keyCriteria);
+		Root<T> keyRoot = JpaUtils.findRoot(keyCriteria, getEntityClass());
+		Path<?> id = keyRoot.get(getIdAttribute().getName());
+		
+		// select the sort properties too, some databases require them on distinct queries
+		if (page.getSortName() != null) {
+			JoinRegistry joins = new JoinRegistry(keyRoot, getMetamodel());
+			List<Selection<?>> selections = new ArrayList<Selection<?>>();
+			selections.add(id);
+			
+			for (Page.SortKey sortKey : page.getSortKeys())
+				selections.add(joins.getPath(sortKey.getSortName()));
+			
+			keyCriteria.multiselect(selections);
+		}
+		else {
+			keyCriteria.select(id);
+		}
+		
+		if (seek != Page.Seek.NONE) {
+			Predicate predicate = getSeekPredicate(keyCriteria, page, seek);
+			keyCriteria.where(keyCriteria.getRestriction() == null ? 
+					predicate : cb.and(keyCriteria.getRestriction(), predicate));
+		}
+		
+		keyCriteria.distinct(true);
+		keyCriteria.orderBy(page.isMultiSort() ? getOrder(page, keyCriteria) : 
+				getKeysetOrder(page, keyCriteria, isAscending(page, seek)));
 		
-		Root<?> root = countCriteria.getRoots().iterator().next();
-		countCriteria.select(cb.count(root));
+		return keyCriteria;
+	}
+	
+	/**
+	 * Gets the key to cache count plans of a page, the filter name.
+	 * @param page request page
+	 * @return the count plan key
+	 */
+	private String getCountPlanKey(Page<?> page) {
+		return page.getFilter() instanceof Filter ? ((Filter) page.getFilter()).getFilterName() : "";
+	}
+	
+	/**
+	 * Create a TypedQuery from a request page
+	 * @param page request page
+	 * @param criteria the page criteria
+	 * @return new TypedQuery
+	 */
+	@SuppressWarnings("unchecked")
+	private <K> TypedQuery<K> getCriteriaQuery(Page<K> page, CriteriaQuery<K> criteria) {
+		CriteriaBuilder cb = em.getCriteriaBuilder();
 		
-		page.setCount((em.createQuery(countCriteria).getSingleResult())
-				.intValue());
+		if (isCountRequired(page)) {
+			CriteriaQuery<Long> countCriteria = countQueryOptimizer.countCriteria(em, criteria, 
+					getEntityClass(), getCountPlanKey(page), false);
 		
+			TypedQuery<Long> countQuery = em.createQuery(countCriteria);
+			applyHints(countQuery, page, false);
+			page.setCount(countQuery.getSingleResult().intValue());
+			countLoaded(page);
+		}
 		
-		criteria.orderBy(getOrder(page, criteria));
+		if (page.isKeysetPaging() && !page.isMultiSort()) {
+			Page.Seek seek = getSeek(page);
+			if (seek != Page.Seek.NONE) {
+				Predicate predicate = getSeekPredicate(criteria, page, seek);
+				criteria.where(criteria.getRestriction() == null ? 
+						predicate : cb.and(criteria.getRestriction(), predicate));
+			}
+			criteria.orderBy(getKeysetOrder(page, criteria, isAscending(page, seek)));
+		}
+		else {
+			criteria.orderBy(getOrder(page, criteria));
+		}
 		
 		// Add default select to entity class if none was set.
 		if (criteria.getSelection() == null) {
-			criteria.select((Selection<? extends K>) root);
+			criteria.select((Selection<? extends K>) criteria.getRoots().iterator().next());
 		}
 		
 		return em.createQuery(criteria);
@@ -181,13 +736,8 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 			filter = (Filter) page.getFilter();
 			String queryString = getQueryString(filter.getFilterName());
 			if (queryString != null) {				
-				String keyQuery = JpaUtils.getKeyQuery(queryString, id.getName());
-				// add Order
-				if (page.getSortName() != null)
-					keyQuery = JpaUtils.addOrder(keyQuery, page.getSortName(),
-						page.getOrder() == Page.Order.ASC);
-					
-				query = em.createQuery(keyQuery, Serializable.class);
+				query = em.createQuery(getKeyQueryString(filter.getFilterName(), queryString, page), 
+						Serializable.class);
 				applyFilter(query, filter);
 			}
 			else {
@@ -212,6 +762,14 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 	@SuppressWarnings("unchecked")
 	private TypedQuery<Serializable> getKeyCriteriaQuery(SingularAttribute<? super T, ?> id, Page<T> page) {
 		CriteriaQuery<Serializable> keyCriteria  = (CriteriaQuery<Serializable>) getCriteria(page);
+		
+		if (JpaUtils.hasFetches(keyCriteria)) {
+			// fetches are not allowed without selecting the owner
+			CriteriaQuery<Serializable> criteria = keyCriteria;
+			keyCriteria = em.getCriteriaBuilder().createQuery(Serializable.class);
+			JpaUtils.copyCriteriaWithoutFetches(criteria, keyCriteria);
+		}
+		
 		Root<T> keyRoot = JpaUtils.findRoot(keyCriteria, getEntityClass());
 		keyCriteria.select(keyRoot.<Serializable>get(id.getName()));
 		
@@ -231,29 +789,219 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 	 * @return
 	 */
 	private <K> SingularAttribute<? super K, ?> getIdAttribute(Class<K> clazz) {
-		Type<?> type = em.getMetamodel().entity(clazz).getIdType();
-		EntityType<K> entity =  em.getMetamodel().entity(clazz);
-		SingularAttribute<? super K, ?> id = entity.getId(type.getJavaType());
-		return id;
+		return getMetamodel().getIdAttribute(clazz);
 	}
 	
 	/**
-	 * Get JPA Order from a page order for a CriteriaQuery
+	 * Get JPA Order list from page sort keys for a CriteriaQuery, with the id 
+	 * as tie-breaker on non grouped queries.
 	 * @param page request page
 	 * @param criteria CriteriaQuery to apply Order on.
-	 * @return new Order
+	 * @return the Order list
 	 */
-	private Order getOrder(Page<?> page, CriteriaQuery<?> criteria) {
+	private List<Order> getOrder(Page<?> page, CriteriaQuery<?> criteria) {
 		CriteriaBuilder cb = em.getCriteriaBuilder();
 		Root<T> root = JpaUtils.findRoot(criteria, getEntityClass());
-		String propertyPath = page.getSortName();
-
+		List<Order> orders = new ArrayList<Order>();
+		
 		if (log.isDebugEnabled())
-			log.debug("Setting order as: " + propertyPath);
-
-		Path<?> path = JpaUtils.getPath(root, propertyPath);
-
-		return page.getOrder() == Page.Order.ASC ? cb.asc(path) : cb.desc(path);
+			log.debug("Setting order as: " + page.getSortKeys());
+		
+		if (page.getSortName() == null) {
+			orders.add(page.getOrder() == Page.Order.ASC ? cb.asc(root) : cb.desc(root));
+			return orders;
+		}
+		
+		JoinRegistry joins = new JoinRegistry(root, getMetamodel());
+		
+		for (Page.SortKey sortKey : getOrderKeys(page, criteria.getGroupList().isEmpty())) {
+			Path<?> path = joins.getPath(sortKey.getSortName());
+			orders.add(sortKey.getOrder() == Page.Order.ASC ? cb.asc(path) : cb.desc(path));
+		}
+		
+		return orders;
+	}
+	
+	/**
+	 * Gets the page sort keys, plus the id ascending as tie-breaker so offset paging 
+	 * is stable, if not already sorted by id.
+	 * @param page request page
+	 * @param tieBreaker add the id tie-breaker, false on grouped queries.
+	 * @return the sort keys
+	 */
+	private List<Page.SortKey> getOrderKeys(Page<?> page, boolean tieBreaker) {
+		List<Page.SortKey> sortKeys = page.getSortKeys();
+		String id = getIdAttribute().getName();
+		
+		if (!tieBreaker || sortKeys.isEmpty())
+			return sortKeys;
+		
+		for (Page.SortKey sortKey : sortKeys) {
+			if (id.equals(sortKey.getSortName()))
+				return sortKeys;
+		}
+		
+		sortKeys.add(new Page.SortKey(id, Page.Order.ASC));
+		
+		return sortKeys;
+	}
+	
+	/**
+	 * Get JPA Order list for keyset paging, sort property and id as tie-breaker.
+	 * @param page request page
+	 * @param criteria CriteriaQuery to apply Order on.
+	 * @param asc true if ascending
+	 * @return the Order list
+	 */
+	private List<Order> getKeysetOrder(Page<?> page, CriteriaQuery<?> criteria, boolean asc) {
+		CriteriaBuilder cb = em.getCriteriaBuilder();
+		Root<T> root = JpaUtils.findRoot(criteria, getEntityClass());
+		List<Order> orders = new ArrayList<Order>();
+		
+		if (page.getSortName() != null) {
+			Path<?> path = new JoinRegistry(root, getMetamodel()).getPath(page.getSortName());
+			orders.add(asc ? cb.asc(path) : cb.desc(path));
+		}
+		
+		Path<?> id = root.get(getIdAttribute().getName());
+		orders.add(asc ? cb.asc(id) : cb.desc(id));
+		
+		return orders;
+	}
+	
+	/**
+	 * Gets the count query string derived from a named query
+	 * @param name query name
+	 * @param queryString the query string
+	 * @return the count query string
+	 */
+	private String getCountQueryString(String name, String queryString) {
+		List<Object> key = Arrays.<Object>asList("count", name);
+		String countQueryString = derivedQueries.get(key);
+		
+		if (countQueryString == null) {
+			countQueryString = JpaUtils.createCountQueryString(queryString);
+			derivedQueries.put(key, countQueryString);
+		}
+		
+		return countQueryString;
+	}
+	
+	/**
+	 * Gets the page query string derived from a named query, with page order.
+	 * @param name query name
+	 * @param queryString the query string
+	 * @param page request page
+	 * @return the page query string
+	 */
+	private String getPageQueryString(String name, String queryString, Page<?> page) {
+		if (page.getSortName() == null)
+			return queryString;
+		
+		List<Object> key = Arrays.<Object>asList("page", name, page.getSortKeys());
+		String pageQueryString = derivedQueries.get(key);
+		
+		if (pageQueryString == null) {
+			pageQueryString = JpaUtils.addOrder(queryString, getOrderKeys(page, !isGrouped(queryString)));
+			derivedQueries.put(key, pageQueryString);
+		}
+		
+		return pageQueryString;
+	}
+	
+	/**
+	 * Test if a query string has a group by clause
+	 * @param queryString the query string
+	 * @return true if grouped
+	 */
+	private boolean isGrouped(String queryString) {
+		return StringUtils.containsIgnoreCase(queryString, "group by");
+	}
+	
+	/**
+	 * Gets the keyset query string derived from a named query, with seek 
+	 * condition and keyset order.
+	 * @param name query name
+	 * @param queryString the query string
+	 * @param page request page
+	 * @param seek seek direction
+	 * @return the keyset query string
+	 */
+	private String getKeysetQueryString(String name, String queryString, Page<?> page, Page.Seek seek) {
+		List<Object> key = Arrays.<Object>asList("keyset", name, page.getSortName(), page.getOrder(), seek);
+		String keysetQueryString = derivedQueries.get(key);
+		
+		if (keysetQueryString == null) {
+			keysetQueryString = queryString;
+			List<String> orderPaths = new ArrayList<String>();
+			
+			if (seek != Page.Seek.NONE) 
+				keysetQueryString = JpaUtils.addWhere(keysetQueryString, 
+						getSeekCondition(JpaUtils.getAlias(queryString), page, seek));
+			
+			if (page.getSortName() != null)
+				orderPaths.add(page.getSortName());
+			
+			orderPaths.add(getIdAttribute().getName());
+			keysetQueryString = JpaUtils.addOrder(keysetQueryString, orderPaths, isAscending(page, seek));
+			derivedQueries.put(key, keysetQueryString);
+		}
+		
+		return keysetQueryString;
+	}
+	
+	/**
+	 * Gets the key query string derived from a named query, with page order.
+	 * @param name query name
+	 * @param queryString the query string
+	 * @param page request page
+	 * @return the key query string
+	 */
+	private String getKeyQueryString(String name, String queryString, Page<?> page) {
+		List<Object> key = Arrays.<Object>asList("keys", name, page.getSortKeys());
+		String keyQueryString = derivedQueries.get(key);
+		
+		if (keyQueryString == null) {
+			keyQueryString = JpaUtils.getKeyQuery(queryString, getIdAttribute().getName());
+			keyQueryString = JpaUtils.addOrder(keyQueryString, getOrderKeys(page, !isGrouped(queryString)));
+			
+			derivedQueries.put(key, keyQueryString);
+		}
+		
+		return keyQueryString;
+	}
+	
+	/**
+	 * Gets a subquery string selecting the ids of the entities matching a filter
+	 * named query, to use in bulk statements.
+	 * @param filter the filter
+	 * @return the subquery string or null if the filter has no suitable named query
+	 */
+	private String getKeySubqueryString(Filter filter) {
+		if (!isBulkSubqueries())
+			return null;
+		
+		List<Object> key = Arrays.<Object>asList("subquery", filter.getFilterName());
+		String subqueryString = derivedQueries.get(key);
+		
+		if (subqueryString == null) {
+			String queryString = getQueryString(filter.getFilterName());
+			subqueryString = "";
+			
+			if (queryString != null && !isGrouped(queryString)) {
+				String keyQueryString = JpaUtils.getKeyQuery(queryString, getIdAttribute().getName());
+				
+				if (keyQueryString != null) {
+					// order and fetches are not allowed in subqueries
+					subqueryString = keyQueryString.replaceFirst("(?is)\\s+order\\s+by\\s.*$", "")
+							.replaceAll("(?i)\\s+fetch\\s+", " ");
+				}
+			}
+			
+			derivedQueries.put(key, subqueryString);
+		}
+		
+		return subqueryString.isEmpty() ? null : subqueryString;
 	}
 	
 	/**
@@ -270,16 +1018,21 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 			filter = (Filter) page.getFilter();
 			String queryString = getQueryString(filter.getFilterName());
 			if (queryString != null) {
-				String countQueryString = JpaUtils.createCountQueryString(queryString);
-				TypedQuery<Long> countQuery =  em.createQuery(countQueryString, Long.class);
-				applyFilter(countQuery, filter);
-				page.setCount(countQuery.getSingleResult().intValue());
-				// add Order
-				if (page.getSortName() != null)
-					queryString = JpaUtils.addOrder(queryString, page.getSortName(),
-						page.getOrder() == Page.Order.ASC);
-		
-				query = (TypedQuery<K>) em.createQuery(queryString);
+				if (isCountRequired(page)) {
+					String countQueryString = getCountQueryString(filter.getFilterName(), queryString);
+					TypedQuery<Long> countQuery =  em.createQuery(countQueryString, Long.class);
+					applyFilter(countQuery, filter);
+					applyHints(countQuery, page, false);
+					page.setCount(countQuery.getSingleResult().intValue());
+					countLoaded(page);
+				}
+				
+				if (page.isKeysetPaging() && !page.isMultiSort()) {
+					return getKeysetNamedQuery(page, filter.getFilterName(), queryString);
+				}
+				
+				query = (TypedQuery<K>) em.createQuery(getPageQueryString(filter.getFilterName(), 
+						queryString, page));
 				applyFilter(query, filter);
 			}
 		}
@@ -287,6 +1040,56 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 		return query;
 	}
 	
+	/**
+	 * Create a TypedQuery for keyset paging from a named query string.
+	 * @param page request page
+	 * @param queryString named query string
+	 * @return new TypedQuery
+	 */
+	@SuppressWarnings("unchecked")
+	private <K> TypedQuery<K> getKeysetNamedQuery(Page<K> page, String name, String queryString) {
+		Page.Seek seek = getSeek(page);
+		TypedQuery<K> query = (TypedQuery<K>) em.createQuery(
+				getKeysetQueryString(name, queryString, page, seek));
+		
+		if (seek != Page.Seek.NONE) {
+			Object[] values = getSeekValues(page, seek);
+			if (page.getSortName() != null)
+				query.setParameter(KEYSET_VALUE_PARAMETER, values[0]);
+			
+			query.setParameter(KEYSET_ID_PARAMETER, values[1]);
+		}
+		
+		applyFilter(query, (Filter) page.getFilter());
+		
+		return query;
+	}
+	
+	/**
+	 * Apply page query hints to a query. Read only, fetch size and cacheable 
+	 * hints are Hibernate specific and ignored by other providers.
+	 * @param query the query
+	 * @param page the request page
+	 * @param data true on data queries, lock mode only applies to them
+	 */
+	protected void applyHints(Query query, Page<?> page, boolean data) {
+		if (page.isReadOnly())
+			query.setHint(HINT_READ_ONLY, Boolean.TRUE);
+		
+		if (page.getFetchSize() > 0)
+			query.setHint(HINT_FETCH_SIZE, page.getFetchSize());
+		
+		if (page.getTimeout() > 0)
+			query.setHint(HINT_TIMEOUT, page.getTimeout());
+		
+		if (page.isCacheable())
+			query.setHint(HINT_CACHEABLE, Boolean.TRUE);
+		
+		if (data && page.getLockMode() != Page.LockMode.NONE)
+			query.setLockMode(page.getLockMode() == Page.LockMode.WRITE ? 
+					LockModeType.PESSIMISTIC_WRITE : LockModeType.PESSIMISTIC_READ);
+	}
+	
 	/**
 	 * Apply filter to parametriced Query
 	 * @param query the query to apply filter on
@@ -295,7 +1098,11 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 	private void applyFilter(Query query, Filter filter) {
 		Map<String, Object> parameterMap = filter.getParameterMap();
 		for (Parameter<?> p : query.getParameters()) {
-			if (parameterMap.containsKey(p.getName())) {
+			if (p.getName() != null && (p.getName().startsWith(KEYSET_PARAMETER_PREFIX) || 
+					p.getName().startsWith(BULK_VALUE_PARAMETER))) {
+				continue;
+			}
+			else if (parameterMap.containsKey(p.getName())) {
 				query.setParameter(p.getName(), parameterMap.get(p.getName()));
 			}
 			else {
@@ -308,15 +1115,15 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 
 	/**
 	 * Gets query string fro named query using configured QueryFinder, if it's null
-	 * use EntityTypeQueryFinder as defaults (looks for anntations on entity class).
+	 * use the named queries of the {@link ExtendedMetamodel}.
 	 * @param name query name
 	 * @return query string.
 	 */
 	protected String getQueryString(String name) {
-		if (queryFinder == null)
-			queryFinder = new EntityTypeQueryFinder(em.getMetamodel().entity(getEntityClass()));
+		if (queryFinder != null)
+			return queryFinder.find(name);
 		
-		return queryFinder.find(name);
+		return getMetamodel().findNamedQuery(name);
 	}
 
 	/**
@@ -357,10 +1164,7 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 		if (!em.contains(entity))
 			entity = em.merge(entity);
 		
-		if (onDeleteSetNull)
-			nullReferences(entity);
-		
-		em.remove(entity);
+		remove(Collections.singletonList(entity));
 	}
 
 	/**
@@ -372,63 +1176,120 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 	}
 	
 	/**
-	 * Null References on one to many and one to one associations.
+	 * Remove managed entities, nulling references to them first if onDeleteSetNull is set.
+	 * @param entities managed entities to remove
+	 */
+	private void remove(List<T> entities) {
+		if (onDeleteSetNull)
+			nullReferences(entities);
+		
+		for (T entity : entities)
+			em.remove(entity);
+		
+		invalidateCount();
+		fireEntityChanges(EntityChangeEvent.Type.DELETED, entities);
+	}
+	
+	/**
+	 * Null References on one to many and one to one associations with a bulk
+	 * update statement per association, by chunks of maxInParameters entities. 
+	 * References on already loaded associations are also nulled in memory.
 	 * Will only work if association has annotated with a mappedBy attribute.
 	 * 
-	 * @param entity entity
+	 * @param entities managed entities
 	 */
-	private void nullReferences(T entity) {
-		EntityType<T> type = em.getMetamodel().entity(getEntityClass());
-
-		if (log.isDebugEnabled()) 
-			log.debug("Null references on entity " + type.getName());
-		
-		for (Attribute<?, ?> a :  type.getAttributes()) {
-			if (PersistentAttributeType.ONE_TO_MANY == a.getPersistentAttributeType() ||
-					PersistentAttributeType.ONE_TO_ONE == a.getPersistentAttributeType()) {
-				Object association =  PropertyAccessorFactory.forDirectFieldAccess(entity)
-						.getPropertyValue(a.getName());
-				if (association != null) {
-					EntityType<?> associationType = null;
-					if (a.isCollection()) {
-						associationType = em.getMetamodel().entity(
-								((PluralAttribute<?, ?, ?>)a).getBindableJavaType());
-					}
-					else {
-						associationType = em.getMetamodel().entity(a.getJavaType());
-
-					}
-					
-					String mappedBy = JpaUtils.getMappedBy(a);
-					if (mappedBy != null) {
-						Attribute<?,?> aa = associationType.getAttribute(mappedBy);
-						if (PersistentAttributeType.MANY_TO_ONE == aa.getPersistentAttributeType()) {
-							if (log.isDebugEnabled()) {
-								log.debug("Null ManyToOne reference on " + 
-										associationType.getName() + "." + aa.getName());
-							}
-							for (Object o : (Collection<?>) association) {
-								PropertyAccessorFactory.forDirectFieldAccess(o).setPropertyValue(aa.getName(), null);
-							}
-						}
-						else if (PersistentAttributeType.ONE_TO_ONE == aa.getPersistentAttributeType()) {
-							if (log.isDebugEnabled()) {
-								log.debug("Null OneToOne reference on " + 
-										associationType.getName() + "." + aa.getName());
-							}
-							PropertyAccessorFactory.forDirectFieldAccess(association).setPropertyValue(aa.getName(), null);
-						}
-					}
+	private void nullReferences(List<T> entities) {
+		List<MappedReference> references = getMappedReferences();
+		
+		if (references.isEmpty())
+			return;
+		
+		PersistenceUnitUtil unitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+		
+		for (T entity : entities) {
+			for (MappedReference reference : references) {
+				if (!unitUtil.isLoaded(entity, reference.attribute))
+					continue;
+				
+				Object association = PropertyAccessorFactory.forDirectFieldAccess(entity)
+						.getPropertyValue(reference.attribute);
+				
+				if (association instanceof Collection) {
+					for (Object o : (Collection<?>) association)
+						PropertyAccessorFactory.forDirectFieldAccess(o).setPropertyValue(reference.mappedBy, null);
+				}
+				else if (association != null) {
+					PropertyAccessorFactory.forDirectFieldAccess(association).setPropertyValue(reference.mappedBy, null);
 				}
 			}
 		}
+		
+		List<List<PK>> chunks = partition(getIds(entities), getMaxInParameters());
+		
+		for (MappedReference reference : references) {
+			for (List<PK> chunk : chunks)
+				em.createQuery(reference.queryString).setParameter("ids", chunk).executeUpdate();
+		}
+	}
+	
+	/**
+	 * Gets the one to many and one to one associations with a mappedBy ManyToOne 
+	 * or OneToOne attribute, computed once from the metamodel.
+	 * @return the mapped references
+	 */
+	private List<MappedReference> getMappedReferences() {
+		if (mappedReferences != null)
+			return mappedReferences;
+		
+		EntityType<T> type = em.getMetamodel().entity(getEntityClass());
+		List<MappedReference> references = new ArrayList<MappedReference>();
+		
+		for (Map.Entry<String, String> entry : getMetamodel().getMappedBy(getEntityClass()).entrySet()) {
+			Attribute<?, ?> a = type.getAttribute(entry.getKey());
+			String mappedBy = entry.getValue();
+			EntityType<?> associationType = em.getMetamodel().entity(a.isCollection() ? 
+					((PluralAttribute<?, ?, ?>) a).getBindableJavaType() : a.getJavaType());
+			String queryString = "UPDATE " + associationType.getName() + " e SET e." + mappedBy + 
+					" = NULL WHERE e." + mappedBy + "." + getIdAttribute().getName() + " IN (:ids)";
+			
+			if (log.isDebugEnabled())
+				log.debug("Null references on " + type.getName() + " with: " + queryString);
+			
+			references.add(new MappedReference(a.getName(), mappedBy, queryString));
+		}
+		
+		mappedReferences = references;
+		
+		return references;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public boolean exists(PK id) {
-		return id != null && get(id) != null;
+		return id != null && exists(id, getEntityClass());
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Ids are tested with id only IN queries of maxInParameters ids.
+	 */
+	@SuppressWarnings("unchecked")
+	public Set<PK> existing(Collection<PK> ids) {
+		Set<PK> existing = new HashSet<PK>();
+		
+		if (ids.isEmpty())
+			return existing;
+		
+		String queryString = "SELECT e." + getIdAttribute().getName() + " FROM " + getEntityName() + 
+				" e WHERE e." + getIdAttribute().getName() + " IN (:ids)";
+		
+		for (List<PK> chunk : partition(ids, getMaxInParameters())) {
+			Query query = em.createQuery(queryString);
+			existing.addAll(query.setParameter("ids", chunk).getResultList());
+		}
+		
+		return existing;
 	}
 
 
@@ -447,14 +1308,23 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 		JpaUtils.initialize(em, entity, depth);
 		return entity;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> initialize(Collection<T> entities, int depth) {
+		JpaUtils.initialize(em, entities, depth);
+		return entities;
+	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public T save(T entity) {
 		T persistentEntity;
+		boolean created = isNew(entity);
 	
-		if (isNew(entity)) {
+		if (created) {
 			em.persist(entity);
 			persistentEntity = entity;
 		}
@@ -462,6 +1332,10 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 			persistentEntity = em.merge(entity);
 		}
 		
+		invalidateCount();
+		fireEntityChanges(created ? EntityChangeEvent.Type.CREATED : EntityChangeEvent.Type.UPDATED, 
+				Collections.singletonList(persistentEntity));
+		
 		return persistentEntity;
 			
 	}
@@ -471,26 +1345,420 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 	 * @param entity
 	 * @return true if entity is new, ie not detached
 	 */
-	@SuppressWarnings("unchecked")
 	protected boolean isNew(T entity) {
-		SingularAttribute<?, ?> id = getIdAttribute(entity.getClass());
-		// try field
-		PropertyAccessor pa = PropertyAccessorFactory.forDirectFieldAccess(entity);
-		PK key = (PK) pa.getPropertyValue(id.getName());
-		if (key == null)
-			key = (PK) PropertyAccessorFactory.forBeanPropertyAccess(entity).getPropertyValue(id.getName());
+		EntityDescriptor descriptor = getDescriptor(entity.getClass());
+		
+		if (upsert || descriptor.isNewDetectable())
+			return descriptor.isNew(entity);
 		
+		PK key = getId(entity);
 		
 		return key == null || !exists(key, entity.getClass());
 	}
 	
 	/**
-	 * @param key
-	 * @param class1
-	 * @return
+	 * Gets the entity id
+	 * @param entity the entity
+	 * @return the id or null if none
+	 */
+	@SuppressWarnings("unchecked")
+	protected PK getId(T entity) {
+		return (PK) getDescriptor(entity.getClass()).getId(entity);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Serializable getEntityId(Object entity) {
+		return (Serializable) getDescriptor(entity.getClass()).getId(entity);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Object getEntityVersion(Object entity) {
+		return getDescriptor(entity.getClass()).getVersion(entity);
+	}
+	
+	/**
+	 * Gets the cached descriptor for an entity class
+	 * @param clazz entity class, could be a proxy class
+	 * @return the entity descriptor
+	 */
+	protected EntityDescriptor getDescriptor(Class<?> clazz) {
+		return getMetamodel().getDescriptor(clazz);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Entities are saved in batches of batchSize. Existing entities of each batch are
+	 * loaded with a single query and the persistence context is flushed after each batch,
+	 * and cleared if clearOnBatch is set.
+	 */
+	@Override
+	public Collection<T> save(Collection<T> collection) {
+		List<T> saved = new ArrayList<T>(collection.size());
+		List<T> created = new ArrayList<T>();
+		List<T> updated = new ArrayList<T>();
+		
+		boolean detectable = upsert || getDescriptor(getEntityClass()).isNewDetectable();
+		
+		for (List<T> batch : partition(collection, getBatchSize())) {
+			// only query for existing entities if could not tell from id or version
+			Set<PK> existing = detectable ? null : load(getIds(batch)).keySet();
+			
+			for (T entity : batch) {
+				PK key = getId(entity);
+				boolean exists = detectable ? !isNew(entity) : key != null && existing.contains(key);
+				
+				if (exists) {
+					T merged = em.merge(entity);
+					saved.add(merged);
+					updated.add(merged);
+				}
+				else {
+					em.persist(entity);
+					saved.add(entity);
+					created.add(entity);
+				}
+			}
+			
+			em.flush();
+			
+			if (isClearOnBatch())
+				em.clear();
+		}
+		
+		invalidateCount();
+		fireEntityChanges(EntityChangeEvent.Type.CREATED, created);
+		fireEntityChanges(EntityChangeEvent.Type.UPDATED, updated);
+		
+		return saved;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Entities are deleted in batches of batchSize, the persistence context 
+	 * is flushed after each batch, and cleared if clearOnBatch is set.
+	 */
+	@Override
+	public void delete(Collection<T> collection) {
+		for (List<T> batch : partition(collection, getBatchSize())) {
+			Map<PK, T> attached = load(getIds(batch));
+			List<T> toDelete = new ArrayList<T>(batch.size());
+			
+			for (T entity : batch) {
+				T managed = em.contains(entity) ? entity : attached.get(getId(entity));
+				if (managed != null)
+					toDelete.add(managed);
+			}
+			
+			remove(toDelete);
+			em.flush();
+			
+			if (isClearOnBatch())
+				em.clear();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Use a bulk delete statement by chunks of maxInParameters ids when removing the entities 
+	 * don't need to cascade or null references. Note that bulk deletes skip the persistence context. 
+	 * Otherwise, load and delete the entities in batches.
+	 */
+	@Override
+	public void deleteById(Collection<PK> ids) {
+		deleteByIds(ids);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Filters with a named query are applied as subquery of a single JPQL bulk update.
+	 * JPA 2.0 has no criteria bulk statements, so for criteria filters the ids of matching 
+	 * entities are selected first and updated by chunks of maxInParameters ids. 
+	 * Numeric versions are incremented.
+	 */
+	public int updateAll(Filter filter, Map<String, Object> assignments) {
+		if (assignments.isEmpty())
+			return 0;
+		
+		EntityType<T> type = em.getMetamodel().entity(getEntityClass());
+		String alias = BULK_ALIAS;
+		StringBuilder sb = new StringBuilder("UPDATE " + type.getName() + " " + alias + " SET ");
+		List<Object> values = new ArrayList<Object>(assignments.size());
+		
+		for (Map.Entry<String, Object> entry : assignments.entrySet()) {
+			checkUpdatable(type, entry.getKey());
+			sb.append(values.isEmpty() ? "" : ", ").append(alias).append(".").append(entry.getKey())
+				.append(" = :").append(BULK_VALUE_PARAMETER).append(values.size());
+			values.add(entry.getValue());
+		}
+		
+		String version = getDescriptor(getEntityClass()).getVersionName();
+		
+		if (version != null && !assignments.containsKey(version) && 
+				Number.class.isAssignableFrom(ClassUtils.resolvePrimitiveIfNecessary(
+						type.getAttribute(version).getJavaType()))) {
+			sb.append(", ").append(alias).append(".").append(version).append(" = ")
+				.append(alias).append(".").append(version).append(" + 1");
+		}
+		
+		int count = 0;
+		String subqueryString = filter != null ? getKeySubqueryString(filter) : null;
+		
+		if (filter == null) {
+			count = executeUpdate(sb.toString(), values, null, null);
+			fireBulkChange();
+		}
+		else if (subqueryString != null) {
+			sb.append(" WHERE ").append(alias).append(".").append(getIdAttribute().getName())
+				.append(" IN (").append(subqueryString).append(")");
+			count = executeUpdate(sb.toString(), values, null, filter);
+			fireBulkChange();
+		}
+		else {
+			sb.append(" WHERE ").append(alias).append(".").append(getIdAttribute().getName())
+				.append(" IN (:ids)");
+			
+			for (List<PK> chunk : partition(getFilterKeys(filter), getMaxInParameters())) {
+				count += executeUpdate(sb.toString(), values, chunk, null);
+				fireIdChanges(EntityChangeEvent.Type.UPDATED, chunk);
+			}
+		}
+		
+		invalidateCount();
+		
+		return count;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Use a single bulk delete statement when bulk deletes are safe and the filter is 
+	 * null or has a named query, used as subquery. Otherwise delete the ids selected 
+	 * with the filter.
+	 */
+	public int deleteAll(Filter filter) {
+		if (isBulkDeleteSupported()) {
+			Query query = null;
+			
+			if (filter == null) {
+				query = em.createQuery("DELETE FROM " + getEntityName() + " e");
+			}
+			else {
+				String subqueryString = getKeySubqueryString(filter);
+				
+				if (subqueryString != null) {
+					query = em.createQuery("DELETE FROM " + getEntityName() + " " + BULK_ALIAS + 
+							" WHERE " + BULK_ALIAS + "." + getIdAttribute().getName() + 
+							" IN (" + subqueryString + ")");
+					applyFilter(query, filter);
+				}
+			}
+			
+			if (query != null) {
+				int count = query.executeUpdate();
+				invalidateCount();
+				fireBulkChange();
+				
+				return count;
+			}
+		}
+		
+		return deleteByIds(getFilterKeys(filter));
+	}
+	
+	/**
+	 * Delete entities by id, with bulk delete statements if supported.
+	 * @param ids entity ids
+	 * @return the number of deleted entities
+	 */
+	private int deleteByIds(Collection<PK> ids) {
+		int count = 0;
+		
+		if (isBulkDeleteSupported()) {
+			String queryString = "DELETE FROM " + getEntityName() + " e WHERE e." + 
+					getIdAttribute().getName() + " IN (:ids)";
+			
+			for (List<PK> chunk : partition(ids, getMaxInParameters())) {
+				count += em.createQuery(queryString).setParameter("ids", chunk).executeUpdate();
+			}
+			
+			invalidateCount();
+			fireIdChanges(EntityChangeEvent.Type.DELETED, ids);
+		}
+		else {
+			for (List<PK> batch : partition(ids, getBatchSize())) {
+				List<T> entities = new ArrayList<T>(load(batch).values());
+				remove(entities);
+				count += entities.size();
+				em.flush();
+				
+				if (isClearOnBatch())
+					em.clear();
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Execute a bulk update query
+	 * @param queryString JPQL update statement
+	 * @param values values of value parameters, in order
+	 * @param ids values for the ids parameter, if any
+	 * @param filter filter for the subquery parameters, if any
+	 * @return the number of updated entities
+	 */
+	private int executeUpdate(String queryString, List<Object> values, List<PK> ids, Filter filter) {
+		Query query = em.createQuery(queryString);
+		
+		for (int i = 0; i < values.size(); i++)
+			query.setParameter(BULK_VALUE_PARAMETER + i, values.get(i));
+		
+		if (ids != null)
+			query.setParameter("ids", ids);
+		
+		if (filter != null)
+			applyFilter(query, filter);
+		
+		return query.executeUpdate();
+	}
+	
+	/**
+	 * Check that a property could be set with a bulk update, ie it's a 
+	 * singular attribute and not the id.
+	 * @param type entity type
+	 * @param name property name
+	 * @throws InvalidDataAccessApiUsageException if not updatable
+	 */
+	private void checkUpdatable(EntityType<T> type, String name) {
+		Attribute<? super T, ?> attribute = null;
+		
+		try {
+			attribute = type.getAttribute(name);
+		}
+		catch (IllegalArgumentException iae) {
+			// not an attribute
+		}
+		
+		if (attribute == null || attribute.isCollection() || 
+				((SingularAttribute<? super T, ?>) attribute).isId()) {
+			throw new InvalidDataAccessApiUsageException("Cannot update property [" + name + 
+					"] of entity [" + type.getName() + "] with a bulk update");
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> getAll(Collection<PK> ids) {
+		Map<PK, T> entities = load(ids);
+		List<T> found = new ArrayList<T>(entities.size());
+		
+		for (PK id : ids) {
+			T entity = entities.get(id);
+			if (entity != null)
+				found.add(entity);
+		}
+		
+		return found;
+	}
+	
+	/**
+	 * Load entities by id with IN queries of maxInParameters ids.
+	 * @param ids entity ids
+	 * @return Map of loaded entities by id.
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<PK, T> load(Collection<PK> ids) {
+		Map<PK, T> entities = new HashMap<PK, T>();
+		
+		if (ids.isEmpty())
+			return entities;
+		
+		String queryString = "SELECT e FROM " + getEntityName() + " e WHERE e." + 
+				getIdAttribute().getName() + " IN (:ids)";
+		PersistenceUnitUtil unitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+		
+		for (List<PK> chunk : partition(ids, getMaxInParameters())) {
+			TypedQuery<T> query = em.createQuery(queryString, getEntityClass());
+			for (T entity : query.setParameter("ids", chunk).getResultList())
+				entities.put((PK) unitUtil.getIdentifier(entity), entity);
+		}
+		
+		return entities;
+	}
+	
+	/**
+	 * Gets the not null ids of entities
+	 * @param entities entity collection
+	 * @return list of ids
+	 */
+	private List<PK> getIds(Collection<T> entities) {
+		List<PK> ids = new ArrayList<PK>(entities.size());
+		
+		for (T entity : entities) {
+			PK key = getId(entity);
+			if (key != null)
+				ids.add(key);
+		}
+		
+		return ids;
+	}
+	
+	/**
+	 * Test if entities could be removed with a bulk delete statement, ie
+	 * there are no collections, cascades nor references to null.
+	 * @return true if bulk delete is safe.
+	 */
+	private boolean isBulkDeleteSupported() {
+		if (bulkDeleteSupported == null) {
+			boolean supported = true;
+			for (Attribute<? super T, ?> a : em.getMetamodel().entity(getEntityClass()).getAttributes()) {
+				if (a.isCollection() || JpaUtils.isCascadeRemove(a) || 
+						(PersistentAttributeType.ONE_TO_ONE == a.getPersistentAttributeType() && 
+						JpaUtils.getMappedBy(a) != null)) {
+					supported = false;
+					break;
+				}
+			}
+			bulkDeleteSupported = supported;
+		}
+		
+		return bulkDeleteSupported;
+	}
+	
+	/**
+	 * @return the JPQL entity name
+	 */
+	private String getEntityName() {
+		return em.getMetamodel().entity(getEntityClass()).getName();
+	}
+	
+	/**
+	 * Test if an entity exists selecting only the id, the entity is not loaded.
+	 * @param key the entity id
+	 * @param clazz the entity class
+	 * @return true if exists
 	 */
 	private boolean exists(PK key, Class<? extends Object> clazz) {
-		return get(key, clazz) != null;
+		List<Object> cacheKey = Arrays.<Object>asList("exists", clazz);
+		String queryString = derivedQueries.get(cacheKey);
+		
+		if (queryString == null) {
+			String id = getIdAttribute(clazz).getName();
+			queryString = "SELECT e." + id + " FROM " + em.getMetamodel().entity(clazz).getName() + 
+					" e WHERE e." + id + " = :id";
+			derivedQueries.put(cacheKey, queryString);
+		}
+		
+		return !em.createQuery(queryString)
+				.setParameter("id", key)
+				.setMaxResults(1)
+				.getResultList().isEmpty();
 	}
 
 	/**
@@ -527,6 +1795,26 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 	 */
 	public void setQueryFinder(QueryFinder queryFinder) {
 		this.queryFinder = queryFinder;
+		derivedQueries.clear();
+	}
+
+	/**
+	 * Gets the extended metamodel, creating a private one if none was set.
+	 * @return the metamodel
+	 */
+	public ExtendedMetamodel getMetamodel() {
+		if (metamodel == null)
+			metamodel = new DefaultExtendedMetamodel(em.getMetamodel());
+		
+		return metamodel;
+	}
+
+	/**
+	 * @param metamodel the metamodel to set
+	 */
+	public void setMetamodel(ExtendedMetamodel metamodel) {
+		this.metamodel = metamodel;
+		derivedQueries.clear();
 	}
 
 	/**
@@ -567,6 +1855,36 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 		this.entityClass = entityClass;
 	}
 
+	/**
+	 * @return the upsert
+	 */
+	public boolean isUpsert() {
+		return upsert;
+	}
+
+	/**
+	 * Sets upsert mode: save persists entities without id and merges the others 
+	 * without testing if they exist, merge inserts them if missing.
+	 * @param upsert the upsert to set
+	 */
+	public void setUpsert(boolean upsert) {
+		this.upsert = upsert;
+	}
+
+	/**
+	 * @return the twoPhasePaging
+	 */
+	public boolean isTwoPhasePaging() {
+		return twoPhasePaging;
+	}
+
+	/**
+	 * @param twoPhasePaging the twoPhasePaging to set
+	 */
+	public void setTwoPhasePaging(boolean twoPhasePaging) {
+		this.twoPhasePaging = twoPhasePaging;
+	}
+
 	/**
 	 * @return the onDeleteSetNull
 	 */
@@ -581,4 +1899,38 @@ public class JpaDao<T, PK extends Serializable> extends DaoSupport<T, PK> {
 		this.onDeleteSetNull = onDeleteSetNull;
 	}
 
+	/**
+	 * @return true if the database sorts nulls high, false if low, null if unknown
+	 */
+	public Boolean getNullsSortedHigh() {
+		return nullsSortedHigh;
+	}
+
+	/**
+	 * Sets the null ordering of the database used by keyset paging on nullable
+	 * sort properties. Detected from JDBC metadata if not set. 
+	 * @param nullsSortedHigh true if nulls sort high, ie last on ascending order
+	 */
+	public void setNullsSortedHigh(Boolean nullsSortedHigh) {
+		this.nullsSortedHigh = nullsSortedHigh;
+		this.nullOrderingDetected = nullsSortedHigh != null;
+	}
+
+	/**
+	 * Inverse association whose references must be nulled on delete.
+	 */
+	private static class MappedReference {
+		/** the association attribute name */
+		private String attribute;
+		/** the mappedBy attribute name on the other side */
+		private String mappedBy;
+		/** bulk update statement nulling references by owner ids */
+		private String queryString;
+		
+		public MappedReference(String attribute, String mappedBy, String queryString) {
+			this.attribute = attribute;
+			this.mappedBy = mappedBy;
+			this.queryString = queryString;
+		}
+	}
 }
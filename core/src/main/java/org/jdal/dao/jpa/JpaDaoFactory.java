@@ -16,6 +16,8 @@
 package org.jdal.dao.jpa;
 
 import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -25,6 +27,11 @@ import org.jdal.dao.DaoFactory;
 
 /**
  * Dao Factory implementation that create JpaDaos on the fly. 
+ * <p>
+ * One Dao is created by entity class and reused on later calls. All Daos share
+ * an {@link ExtendedMetamodel} that indexes named queries, ids, versions and 
+ * mappedBy associations of all entities on {@link #init()}.
+ * </p>
  * 
  * @author Jose Luis Martin - (jlm@joseluismartin.info)
  * @see org.jdal.dao.jpa.JpaDao
@@ -34,14 +41,54 @@ import org.jdal.dao.DaoFactory;
 public class JpaDaoFactory implements DaoFactory {
 	@PersistenceContext
 	private EntityManager em;
+	private volatile ExtendedMetamodel metamodel;
+	/** created daos by entity class */
+	private Map<Class<?>, Dao<?, Serializable>> daos = new ConcurrentHashMap<Class<?>, Dao<?, Serializable>>();
+	
+	/**
+	 * Build the shared metamodel and index all entities.
+	 */
+	public synchronized void init() {
+		if (metamodel == null) {
+			DefaultExtendedMetamodel defaultMetamodel = new DefaultExtendedMetamodel(
+					em.getEntityManagerFactory().getMetamodel());
+			defaultMetamodel.init();
+			metamodel = defaultMetamodel;
+		}
+	}
 	
 	/**
 	 * {@inheritDoc}
 	 */
+	@SuppressWarnings("unchecked")
 	public <T> Dao<T, Serializable> createDao(Class<T> entityClass) {
-		JpaDao<T, Serializable> dao = new JpaDao<T, Serializable>(entityClass);
-		dao.setEntityManager(em);
+		Dao<T, Serializable> dao = (Dao<T, Serializable>) daos.get(entityClass);
+		
+		if (dao == null) {
+			JpaDao<T, Serializable> jpaDao = new JpaDao<T, Serializable>(entityClass);
+			jpaDao.setEntityManager(em);
+			jpaDao.setMetamodel(getMetamodel());
+			daos.put(entityClass, jpaDao);
+			dao = jpaDao;
+		}
+		
 		return dao;
 	}
 
+	/**
+	 * @return the shared metamodel
+	 */
+	public ExtendedMetamodel getMetamodel() {
+		init();
+		
+		return metamodel;
+	}
+
+	/**
+	 * @param metamodel the metamodel to set
+	 */
+	public void setMetamodel(ExtendedMetamodel metamodel) {
+		this.metamodel = metamodel;
+	}
+
 }
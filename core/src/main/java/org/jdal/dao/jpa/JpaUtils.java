@@ -19,21 +19,27 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.persistence.CascadeType;
 import javax.persistence.EntityManager;
+import javax.persistence.GeneratedValue;
 import javax.persistence.ManyToMany;
+import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
-import javax.persistence.PersistenceUnitUtil;
-import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Fetch;
+import javax.persistence.criteria.FetchParent;
 import javax.persistence.criteria.From;
 import javax.persistence.criteria.Join;
 import javax.persistence.criteria.Path;
@@ -44,11 +50,14 @@ import javax.persistence.metamodel.Attribute;
 import javax.persistence.metamodel.Attribute.PersistentAttributeType;
 import javax.persistence.metamodel.CollectionAttribute;
 import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
 
 import org.apache.commons.lang.StringUtils;
 import org.jdal.beans.PropertyUtils;
-import org.springframework.beans.PropertyAccessor;
-import org.springframework.beans.PropertyAccessorFactory;
+import org.jdal.dao.Page;
 
 /**
  * Utility class for dealing with JPA API
@@ -62,7 +71,11 @@ public abstract class JpaUtils {
 	private static Pattern ALIAS_PATTERN = Pattern.compile(ALIAS_PATTERN_STRING, Pattern.CASE_INSENSITIVE);
 	private static String FROM_PATTERN_STRING = "(from.*+)";
 	private static Pattern FROM_PATTERN = Pattern.compile(FROM_PATTERN_STRING, Pattern.CASE_INSENSITIVE);
-	private static volatile int aliasCount = 0;
+	private static Pattern WHERE_PATTERN = Pattern.compile("\\s+where\\s+", Pattern.CASE_INSENSITIVE);
+	private static Pattern END_WHERE_PATTERN = Pattern.compile("\\s+(group|order)\\s+by\\s+", 
+			Pattern.CASE_INSENSITIVE);
+	private static final AtomicInteger aliasCount = new AtomicInteger();
+	private static final CountQueryOptimizer countQueryOptimizer = new CountQueryOptimizer();
 	
 	/**
 	 * Result count from a CriteriaQuery
@@ -76,26 +89,15 @@ public abstract class JpaUtils {
 	}
 	
 	/**
-	 * Create a row count CriteriaQuery from a CriteriaQuery
+	 * Create a row count CriteriaQuery from a CriteriaQuery, without fetches 
+	 * and unneeded left joins.
 	 * @param em entity manager
 	 * @param criteria source criteria
 	 * @return row count CriteriaQuery
+	 * @see CountQueryOptimizer
 	 */
 	public static <T> CriteriaQuery<Long> countCriteria(EntityManager em, CriteriaQuery<T> criteria) {
-		CriteriaBuilder builder = em.getCriteriaBuilder();
-		CriteriaQuery<Long> countCriteria = builder.createQuery(Long.class);
-		copyCriteriaWithoutSelectionAndOrder(criteria, countCriteria, false);
-		
-		Expression<Long> countExpression;
-		
-		if (criteria.isDistinct()) {
-			countExpression = builder.countDistinct(findRoot(countCriteria, criteria.getResultType()));
-		}
-		else {	
-			countExpression = builder.count(findRoot(countCriteria, criteria.getResultType()));
-		}
-		
-		return countCriteria.select(countExpression);
+		return countQueryOptimizer.countCriteria(em, criteria, criteria.getResultType(), null, false);
 	}
 	
 	/**
@@ -103,18 +105,14 @@ public abstract class JpaUtils {
 	 * @param selection 
 	 * @return root alias or generated one
 	 */
-	public static synchronized <T> String getOrCreateAlias(Selection<T> selection) {
-		// reset alias count
-		if (aliasCount > 1000)
-			aliasCount = 0;
-			
+	public static <T> String getOrCreateAlias(Selection<T> selection) {
 		String alias = selection.getAlias();
 		if (alias == null) {
-			alias = "JDAL_generatedAlias" + aliasCount++;
+			// wrap alias count at 1000
+			alias = "JDAL_generatedAlias" + (aliasCount.getAndIncrement() & Integer.MAX_VALUE) % 1000;
 			selection.alias(alias);
 		}
 		return alias;
-		
 	}
 
 	/**
@@ -221,21 +219,99 @@ public abstract class JpaUtils {
 	 * @return JQL Query String with Order clause appened.
 	 */
 	public static String addOrder(String queryString, String propertyPath, boolean asc ) {
+		return addOrder(queryString, Collections.singletonList(propertyPath), asc);
+	}
+	
+	/**
+	 * Add order by clause with many properties to queryString
+	 * @param queryString JPL Query String
+	 * @param propertyPaths Order properties
+	 * @param asc true if ascending
+	 * @return JQL Query String with Order clause appened.
+	 */
+	public static String addOrder(String queryString, List<String> propertyPaths, boolean asc) {
 		
 		if (StringUtils.containsIgnoreCase(queryString, "order by")) {
 			return queryString;
 		}
 		
+		String alias = getAlias(queryString);
 		StringBuilder sb = new StringBuilder(queryString);
 		sb.append(" ORDER BY ");
-		sb.append(getAlias(queryString));
-		sb.append(".");
-		sb.append(propertyPath);
-		sb.append(" ");
-		sb.append(asc ? "ASC" : "DESC");
+		
+		for (Iterator<String> iter = propertyPaths.iterator(); iter.hasNext();) {
+			sb.append(alias);
+			sb.append(".");
+			sb.append(iter.next());
+			sb.append(" ");
+			sb.append(asc ? "ASC" : "DESC");
+			if (iter.hasNext())
+				sb.append(", ");
+		}
 		
 		return sb.toString();
 	}
+	
+	/**
+	 * Add order by clause with many sort keys to queryString
+	 * @param queryString JPL Query String
+	 * @param sortKeys sort keys in priority order
+	 * @return JQL Query String with Order clause appened.
+	 */
+	public static String addOrder(String queryString, List<Page.SortKey> sortKeys) {
+		
+		if (sortKeys.isEmpty() || StringUtils.containsIgnoreCase(queryString, "order by")) {
+			return queryString;
+		}
+		
+		String alias = getAlias(queryString);
+		StringBuilder sb = new StringBuilder(queryString);
+		sb.append(" ORDER BY ");
+		
+		for (Iterator<Page.SortKey> iter = sortKeys.iterator(); iter.hasNext();) {
+			Page.SortKey sortKey = iter.next();
+			sb.append(alias);
+			sb.append(".");
+			sb.append(sortKey.getSortName());
+			sb.append(" ");
+			sb.append(sortKey.getOrder() == Page.Order.ASC ? "ASC" : "DESC");
+			if (iter.hasNext())
+				sb.append(", ");
+		}
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Add a condition to the where clause of queryString using AND.
+	 * @param queryString JPL Query String
+	 * @param condition the condition to add
+	 * @return JQL Query String with condition added
+	 */
+	public static String addWhere(String queryString, String condition) {
+		Matcher where = WHERE_PATTERN.matcher(queryString);
+		Matcher end = END_WHERE_PATTERN.matcher(queryString);
+		int endIndex = end.find() ? end.start() : queryString.length();
+		
+		StringBuilder sb = new StringBuilder();
+		
+		if (where.find() && where.start() < endIndex) {
+			sb.append(queryString.substring(0, where.start()));
+			sb.append(" WHERE (");
+			sb.append(queryString.substring(where.end(), endIndex).trim());
+			sb.append(") AND ");
+		}
+		else {
+			sb.append(queryString.substring(0, endIndex));
+			sb.append(" WHERE ");
+		}
+		
+		sb.append(condition);
+		sb.append(" ");
+		sb.append(queryString.substring(endIndex));
+		
+		return sb.toString().trim();
+	}
 
 	/**
 	 * Gets Query String for selecting primary keys
@@ -301,7 +377,59 @@ public abstract class JpaUtils {
 			to.where(predicate);
 	}
 	
-	private static boolean isEclipseLink(CriteriaQuery<?> from) {
+	/**
+	 * Copy criteria without selection, order and fetches.
+	 * @param from source Criteria.
+	 * @param to destination Criteria.
+	 */
+	public static void copyCriteriaWithoutFetches(CriteriaQuery<?> from, CriteriaQuery<?> to) {
+		copyCriteriaWithoutSelectionAndOrder(from, to, false);
+	}
+	
+	/**
+	 * Test if criteria roots fetch collections, providers will paginate in memory 
+	 * when fetching collections.
+	 * @param criteria criteria to test
+	 * @return true if any root fetch a collection.
+	 */
+	public static boolean hasCollectionFetches(CriteriaQuery<?> criteria) {
+		for (Root<?> root : criteria.getRoots()) {
+			if (hasCollectionFetches(root))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Test if a fetch parent fetch collections
+	 * @param parent the fetch parent
+	 * @return true if parent or any of its fetches fetch a collection
+	 */
+	private static boolean hasCollectionFetches(FetchParent<?, ?> parent) {
+		for (Fetch<?, ?> f : parent.getFetches()) {
+			if (f.getAttribute().isCollection() || hasCollectionFetches(f))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Test if criteria roots has fetches
+	 * @param criteria criteria to test
+	 * @return true if any root has fetches
+	 */
+	public static boolean hasFetches(CriteriaQuery<?> criteria) {
+		for (Root<?> root : criteria.getRoots()) {
+			if (!root.getFetches().isEmpty())
+				return true;
+		}
+		
+		return false;
+	}
+	
+	static boolean isEclipseLink(CriteriaQuery<?> from) {
 		return from.getClass().getName().contains("org.eclipse.persistence");
 	}
 
@@ -371,71 +499,25 @@ public abstract class JpaUtils {
 	 * @param entity entity to initialize
 	 * @param depth max depth on recursion
 	 */
-	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public static void initialize(EntityManager em, Object entity, int depth) {
 		// return on nulls, depth = 0 or already initialized objects
 		if (entity == null || depth == 0) { 
 			return; 
 		}
 		
-		PersistenceUnitUtil unitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
-		EntityType entityType = em.getMetamodel().entity(entity.getClass());
-		Set<Attribute>  attributes = entityType.getDeclaredAttributes();
-		
-		Object id = unitUtil.getIdentifier(entity);
-		
-		if (id != null) {
-			Object attached = em.find(entity.getClass(), unitUtil.getIdentifier(entity));
-
-			for (Attribute a : attributes) {
-				if (!unitUtil.isLoaded(entity, a.getName())) {
-					if (a.isCollection()) {
-						intializeCollection(em, entity, attached,  a, depth);
-					}
-					else if(a.isAssociation()) {
-						intialize(em, entity, attached, a, depth);
-					}
-				}
-			}
-		}
+		initialize(em, Collections.singletonList(entity), depth);
 	}
 	
-	/** 
-	 * Initialize entity attribute
-	 * @param em
-	 * @param entity
-	 * @param a
-	 * @param depth
-	 */
-	@SuppressWarnings("rawtypes")
-	private static void intialize(EntityManager em, Object entity, Object attached, Attribute a, int depth) {
-		Object value = PropertyAccessorFactory.forDirectFieldAccess(attached).getPropertyValue(a.getName());
-		if (!em.getEntityManagerFactory().getPersistenceUnitUtil().isLoaded(value)) {
-			em.refresh(value);
-		}
-		
-		PropertyAccessorFactory.forDirectFieldAccess(entity).setPropertyValue(a.getName(), value);
-		
-		initialize(em, value, depth - 1);
-	}
-
 	/**
-	 * Initialize collection
-	 * @param em
-	 * @param entity
-	 * @param a
-	 * @param i
+	 * Initialize a collection of entities, loading associations level by level
+	 * with one query per association.
+	 * @param em entity manager to use
+	 * @param entities entities to initialize
+	 * @param depth max depth on recursion
+	 * @see JpaBatchInitializer
 	 */
-	@SuppressWarnings("rawtypes")
-	private static void intializeCollection(EntityManager em, Object entity, Object attached, 
-			Attribute a, int depth) {
-		PropertyAccessor accessor = PropertyAccessorFactory.forDirectFieldAccess(attached);
-		Collection c = (Collection) accessor.getPropertyValue(a.getName());
-		
-		for (Object o : c)
-			initialize(em, o, depth -1);
-		
-		PropertyAccessorFactory.forDirectFieldAccess(entity).setPropertyValue(a.getName(), c);
+	public static void initialize(EntityManager em, Collection<?> entities, int depth) {
+		new JpaBatchInitializer(em).initialize(entities, depth);
 	}
 	
 	/**
@@ -468,6 +550,40 @@ public abstract class JpaUtils {
 		return getAttributes(type, persistentType, Object.class);
 	}
 	
+	/**
+	 * Resolve the attributes of a property path on a managed type.
+	 * @param type the managed type
+	 * @param propertyPath property path like "customer.address.city"
+	 * @return the attribute of each path segment or null if the path could not be resolved
+	 */
+	public static List<Attribute<?, ?>> getPathAttributes(ManagedType<?> type, String propertyPath) {
+		String[] names = StringUtils.split(propertyPath, PropertyUtils.PROPERTY_SEPARATOR);
+		List<Attribute<?, ?>> attributes = new ArrayList<Attribute<?, ?>>(names.length);
+		
+		for (String name : names) {
+			if (type == null)
+				return null;
+			
+			Attribute<?, ?> attribute;
+			try {
+				attribute = type.getAttribute(name);
+			}
+			catch (IllegalArgumentException iae) {
+				return null;
+			}
+			
+			if (attribute == null)  // Hibernate returns null on unknown attributes
+				return null;
+			
+			attributes.add(attribute);
+			Type<?> next = attribute.isCollection() ? ((PluralAttribute<?, ?, ?>) attribute).getElementType() :
+				((SingularAttribute<?, ?>) attribute).getType();
+			type = next instanceof ManagedType ? (ManagedType<?>) next : null;
+		}
+		
+		return attributes;
+	}
+	
 	/**
 	 * Test if attribute is type or in collections has element type
 	 * @param attribute attribute to test
@@ -491,16 +607,7 @@ public abstract class JpaUtils {
 		String mappedBy = null;
 		
 		if (attribute.isAssociation()) {
-			Annotation[] annotations = null;
-			Member member = attribute.getJavaMember();
-			if (member instanceof Field) {
-				annotations = ((Field) member).getAnnotations();
-			}
-			else if (member instanceof Method) {
-				annotations = ((Method) member).getAnnotations();
-			}
-			
-			for (Annotation a : annotations) {
+			for (Annotation a : getAnnotations(attribute)) {
 				if (a.annotationType().equals(OneToMany.class)) {
 					mappedBy = ((OneToMany) a).mappedBy();
 					break;
@@ -518,4 +625,72 @@ public abstract class JpaUtils {
 		
 		return "".equals(mappedBy) ? null : mappedBy;
 	}
+	
+	/**
+	 * Test if removing an entity will cascade or remove orphans on attribute.
+	 * @param attribute attribute
+	 * @return true if remove operations cascade on attribute
+	 */
+	public static boolean isCascadeRemove(Attribute<?, ?> attribute) {
+		CascadeType[] cascade = null;
+		
+		for (Annotation a : getAnnotations(attribute)) {
+			if (a.annotationType().equals(OneToMany.class)) {
+				cascade = ((OneToMany) a).cascade();
+				if (((OneToMany) a).orphanRemoval())
+					return true;
+			}
+			else if (a.annotationType().equals(OneToOne.class)) {
+				cascade = ((OneToOne) a).cascade();
+				if (((OneToOne) a).orphanRemoval())
+					return true;
+			}
+			else if (a.annotationType().equals(ManyToMany.class)) {
+				cascade = ((ManyToMany) a).cascade();
+			}
+			else if (a.annotationType().equals(ManyToOne.class)) {
+				cascade = ((ManyToOne) a).cascade();
+			}
+		}
+		
+		if (cascade != null) {
+			for (CascadeType type : cascade) {
+				if (type == CascadeType.ALL || type == CascadeType.REMOVE)
+					return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Test if the attribute is annotated with {@link GeneratedValue}
+	 * @param attribute the id attribute
+	 * @return true if id is generated
+	 */
+	public static boolean isGeneratedId(Attribute<?, ?> attribute) {
+		for (Annotation a : getAnnotations(attribute)) {
+			if (GeneratedValue.class.equals(a.annotationType()))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Gets the annotations of attribute java member
+	 * @param attribute attribute
+	 * @return annotations array, empty if none.
+	 */
+	private static Annotation[] getAnnotations(Attribute<?, ?> attribute) {
+		Member member = attribute.getJavaMember();
+		if (member instanceof Field) {
+			return ((Field) member).getAnnotations();
+		}
+		else if (member instanceof Method) {
+			return ((Method) member).getAnnotations();
+		}
+		
+		return new Annotation[0];
+	}
 }
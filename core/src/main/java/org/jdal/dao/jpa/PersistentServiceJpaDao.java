@@ -16,9 +16,6 @@
 package org.jdal.dao.jpa;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
 
 import org.jdal.dao.Dao;
 
@@ -46,35 +43,4 @@ public class PersistentServiceJpaDao<T,PK extends Serializable> extends JpaDao<T
 		super(entityClass);
 	}
 
-	/**
-	 * {@inheritDoc}
-	 */
-	public void delete(Collection<T> collection) {
-		for (T t : collection) {
-			delete(t);
-		}
-	}
-
-	/**
-	 * {@inheritDoc}
-	 */
-	public Collection<T> save(Collection<T> collection) {
-		List<T> saved = new ArrayList<T>();
-
-		for (T t : collection) {
-			saved.add(save(t));
-		}
-
-		return saved;
-	}
-	
-	/**
-	 * {@inheritDoc}
-	 */
-	public void deleteById(Collection<PK> ids) {
-		for (PK id : ids)
-			deleteById(id);
-
-	}
-	
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jdal.hibernate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.jdal.dao.DaoSupport;
+
+/**
+ * Initialize object graphs level by level. At each level, collect the
+ * uninitialized proxies and collections of all objects and load them with
+ * one <code>IN</code> query per entity name or collection role.
+ *
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+public class HibernateBatchInitializer {
+
+	private static final Log log = LogFactory.getLog(HibernateBatchInitializer.class);
+
+	private SessionFactory sessionFactory;
+	private Session session;
+	/** max number of parameters in IN queries */
+	private int maxInParameters = DaoSupport.DEFAULT_MAX_IN_PARAMETERS;
+	/** already visited objects */
+	private Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+	/**
+	 * @param sessionFactory the hibernate SessionFactory
+	 */
+	public HibernateBatchInitializer(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+		this.session = sessionFactory.getCurrentSession();
+	}
+
+	/**
+	 * Initialize objects, should be attached to current session.
+	 * @param objects objects to initialize
+	 * @param depth max depth
+	 */
+	public void initialize(Collection<?> objects, int depth) {
+		List<Object> level = new ArrayList<Object>(objects.size());
+
+		for (Object obj : objects)
+			addToLevel(level, obj);
+
+		while (depth-- > 0 && !level.isEmpty()) {
+			loadLevel(level);
+			level = nextLevel(level);
+		}
+	}
+
+	/**
+	 * Initialize all proxies and collections of a level, one query per entity name
+	 * and collection role.
+	 * @param level objects to initialize
+	 */
+	private void loadLevel(List<Object> level) {
+		Map<String, List<Serializable>> proxies = new LinkedHashMap<String, List<Serializable>>();
+		Map<String, List<Serializable>> collections = new LinkedHashMap<String, List<Serializable>>();
+
+		for (Object obj : level) {
+			if (obj instanceof HibernateProxy) {
+				LazyInitializer li = ((HibernateProxy) obj).getHibernateLazyInitializer();
+				if (li.isUninitialized()) {
+					if (li.getSession() == null)  // detached, reattach it
+						session.buildLockRequest(LockOptions.NONE).lock(obj);
+					
+					addToMap(proxies, li.getEntityName(), li.getIdentifier());
+				}
+			}
+			else if (obj instanceof PersistentCollection) {
+				PersistentCollection collection = (PersistentCollection) obj;
+				if (!collection.wasInitialized() && isBatchable(collection))
+					addToMap(collections, collection.getRole(), collection.getKey());
+			}
+		}
+
+		for (String entityName : proxies.keySet())
+			loadEntities(entityName, proxies.get(entityName));
+
+		for (String role : collections.keySet())
+			loadCollections(role, collections.get(role));
+
+		// initialize the rest, proxies are already in session
+		for (Object obj : level) {
+			if (obj instanceof Collection)
+				HibernateUtils.initializeCollection((Collection<?>) obj, session);
+			else if (!Hibernate.isInitialized(obj))
+				Hibernate.initialize(obj);
+		}
+	}
+
+	/**
+	 * Gets the next level: the elements of collections and the
+	 * property values of entities in level.
+	 * @param level the current level
+	 * @return the next level
+	 */
+	private List<Object> nextLevel(List<Object> level) {
+		List<Object> next = new ArrayList<Object>();
+
+		for (Object obj : level) {
+			if (obj instanceof Collection) {
+				for (Object element : (Collection<?>) obj)
+					addToLevel(next, element);
+			}
+			else if (obj instanceof Map) {
+				for (Object element : ((Map<?, ?>) obj).values())
+					addToLevel(next, element);
+			}
+			else {
+				ClassMetadata metadata = sessionFactory.getClassMetadata(Hibernate.getClass(obj));
+				if (metadata == null)
+					continue;
+				
+				for (Object value : metadata.getPropertyValues(unproxy(obj), EntityMode.POJO))
+					addToLevel(next, value);
+			}
+		}
+
+		return next;
+	}
+
+	/**
+	 * Add proxies, collections and entities not visited yet to level.
+	 * @param level level to add on
+	 * @param obj object to add
+	 */
+	private void addToLevel(List<Object> level, Object obj) {
+		if (obj == null || visited.contains(obj))
+			return;
+
+		if (obj instanceof HibernateProxy || obj instanceof Collection || obj instanceof Map ||
+				sessionFactory.getClassMetadata(obj.getClass()) != null) {
+			visited.add(obj);
+			level.add(obj);
+		}
+	}
+
+	/**
+	 * Load entities by id.
+	 * @param entityName entity name
+	 * @param ids entity ids
+	 */
+	private void loadEntities(String entityName, List<Serializable> ids) {
+		String idName = sessionFactory.getClassMetadata(entityName).getIdentifierPropertyName();
+
+		if (idName == null)
+			return;   // will be initialized one by one
+
+		for (int i = 0; i < ids.size(); i += maxInParameters) {
+			session.createCriteria(entityName)
+				.add(Restrictions.in(idName, ids.subList(i, Math.min(ids.size(), i + maxInParameters))))
+				.list();
+		}
+	}
+
+	/**
+	 * Load collections of a role by owner id, fetch joining the collection.
+	 * @param role collection role
+	 * @param keys owner ids
+	 */
+	private void loadCollections(String role, List<Serializable> keys) {
+		CollectionPersister persister = getCollectionPersister(role);
+		String ownerName = persister.getOwnerEntityPersister().getEntityName();
+		String idName = persister.getOwnerEntityPersister().getIdentifierPropertyName();
+
+		if (idName == null)
+			return;
+
+		String hql = "select distinct o from " + ownerName + " o left join fetch o." +
+				role.substring(ownerName.length() + 1) + " where o." + idName + " in (:keys)";
+
+		if (log.isDebugEnabled())
+			log.debug("Loading collections of role [" + role + "] with query: " + hql);
+
+		for (int i = 0; i < keys.size(); i += maxInParameters) {
+			session.createQuery(hql)
+				.setParameterList("keys", keys.subList(i, Math.min(keys.size(), i + maxInParameters)))
+				.list();
+		}
+	}
+
+	/**
+	 * Test if a collection could be loaded with others of the same role, ie
+	 * it is attached to session and the key is the owner id.
+	 * @param collection collection to test
+	 * @return true if batchable
+	 */
+	private boolean isBatchable(PersistentCollection collection) {
+		SessionImplementor source = (SessionImplementor) session;
+
+		return collection.getRole() != null && collection.getKey() != null &&
+				source.getPersistenceContext().getCollectionEntry(collection) != null &&
+				getCollectionPersister(collection.getRole()).getCollectionType().useLHSPrimaryKey();
+	}
+
+	private CollectionPersister getCollectionPersister(String role) {
+		return ((SessionFactoryImplementor) sessionFactory).getCollectionPersister(role);
+	}
+
+	private Object unproxy(Object obj) {
+		return obj instanceof HibernateProxy ?
+				((HibernateProxy) obj).getHibernateLazyInitializer().getImplementation() : obj;
+	}
+
+	/**
+	 * Add a value to a map of lists
+	 */
+	private void addToMap(Map<String, List<Serializable>> map, String key, Serializable value) {
+		List<Serializable> list = map.get(key);
+
+		if (list == null) {
+			list = new ArrayList<Serializable>();
+			map.put(key, list);
+		}
+
+		list.add(value);
+	}
+
+	/**
+	 * @return the maxInParameters
+	 */
+	public int getMaxInParameters() {
+		return maxInParameters;
+	}
+
+	/**
+	 * @param maxInParameters the maxInParameters to set
+	 */
+	public void setMaxInParameters(int maxInParameters) {
+		this.maxInParameters = maxInParameters;
+	}
+}
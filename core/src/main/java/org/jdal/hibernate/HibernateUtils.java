@@ -16,22 +16,22 @@
 package org.jdal.hibernate;
 
 import java.lang.reflect.Field;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
-import org.hibernate.EntityMode;
 import org.hibernate.Hibernate;
-import org.hibernate.LockOptions;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.collection.AbstractPersistentCollection;
+import org.hibernate.criterion.CriteriaSpecification;
 import org.hibernate.criterion.Example;
 import org.hibernate.engine.PersistenceContext;
 import org.hibernate.impl.CriteriaImpl;
@@ -54,6 +54,8 @@ public abstract class HibernateUtils {
 	public static final int DEFAULT_DEPTH = 2;
 	private static final Log log = LogFactory.getLog(HibernateUtils.class);
 	private static final String EXISTS_QUERY = "SELECT 1 from %s x WHERE %s = ?";
+	/** exists query strings by entity class */
+	private static final Map<Class<?>, String> existsQueries = new ConcurrentHashMap<Class<?>, String>();
 		
 	/** 
 	 * Initialize a Object for use whith closed session. 
@@ -65,88 +67,33 @@ public abstract class HibernateUtils {
 	 */
 	public static void initialize(SessionFactory sessionFactory, Object obj, 
 			int depth) {
-		initialize(sessionFactory, obj, new ArrayList<Object>(), depth);
+		if (obj != null)
+			initialize(sessionFactory, Collections.singletonList(obj), depth);
 	}
 	
-	
 	/**
-	 * Initialize a Object for use with closed sessions, 
-	 * Use with care, will recurse on all properties.
+	 * Initialize Objects for use with closed session, loading proxies and
+	 * collections level by level with one query per entity name or collection role.
 	 * 
-	 * @param sessionFactory the hibernate SessionFactory
-	 * @param obj persistent object to initialize
-	 */
-	public static void initialize(SessionFactory sessionFactory, Object obj) {
-		initialize(sessionFactory, obj, new ArrayList<Object>(), DEFAULT_DEPTH);
-	}
-	
-	
-	/** 
-	 * Initialize Object for use with closed Session. 
-	 * 
-	 * @param sessionFactory max depth in recursion
-	 * @param obj Object to initialize
-	 * @param initializedObjects list with already initialized Objects
+	 * @param sessionFactory the Hibernate SessionFactory to use
+	 * @param objects Objects to initialize
 	 * @param depth max depth in recursion
+	 * @see HibernateBatchInitializer
 	 */
-	private static void initialize(SessionFactory sessionFactory, Object obj, 
-			List<Object> initializedObjects, int depth) {
-		
-		// return on nulls, depth = 0 or already initialized objects
-		if (obj == null || depth == 0) { 
-			return; 
-		}
-		
-		if (!Hibernate.isInitialized(obj)) {
-			// if collection, initialize objects in collection too. Hibernate don't do it.
-			if (obj instanceof Collection) {
-				initializeCollection(sessionFactory, obj, initializedObjects,
-						depth);
-				return;
-			}
-			
-			sessionFactory.getCurrentSession().buildLockRequest(LockOptions.NONE).lock(obj);
-			Hibernate.initialize(obj);
-		}
-	
-		// now we can call equals safely. If object are already initializated, return
-		if (initializedObjects.contains(obj))
-			return;
-		
-		initializedObjects.add(obj);
-		
-		// initialize all persistent associaciations.
-		ClassMetadata classMetadata = getClassMetadata(sessionFactory, obj);
-		
-		if (classMetadata == null) {
-			return; // Not persistent object
-		}
-		
-		Object[] pvs = classMetadata.getPropertyValues(obj, EntityMode.POJO);
-		
-		for (Object pv : pvs) {
-			initialize(sessionFactory, pv, initializedObjects, depth - 1);
-		}
+	public static void initialize(SessionFactory sessionFactory, Collection<?> objects, 
+			int depth) {
+		new HibernateBatchInitializer(sessionFactory).initialize(objects, depth);
 	}
-
+	
 	/**
-	 * Initalize Collection and recurse on elements 
+	 * Initialize a Object for use with closed sessions, 
+	 * Use with care, will recurse on all properties.
 	 * 
 	 * @param sessionFactory the hibernate SessionFactory
-	 * @param obj the obj to initilize
-	 * @param initializedObjects list with already initialized objects
-	 * @param depth max depth in recursion
+	 * @param obj persistent object to initialize
 	 */
-	private static void initializeCollection(SessionFactory sessionFactory,
-			Object obj, List<Object> initializedObjects, int depth) {
-
-		Collection<?> collection = (Collection<?>) obj;
-		initializeCollection(collection, sessionFactory.getCurrentSession());
-		
-		// Initialize elements
-		for (Object o : collection) {
-			initialize(sessionFactory, o, initializedObjects, depth - 1);
-		}
+	public static void initialize(SessionFactory sessionFactory, Object obj) {
+		initialize(sessionFactory, obj, DEFAULT_DEPTH);
 	}
 	
 	/**
@@ -246,7 +193,7 @@ public abstract class HibernateUtils {
 		Iterator iter = c.iterateSubcriteria();
 		while (iter.hasNext()) {
 			Subcriteria subCriteria = (Subcriteria) iter.next();
-			if (propertyPath.equals(subCriteria.getPath()));
+			if (propertyPath.equals(subCriteria.getPath()))
 				return subCriteria.getAlias();
 		}
 		// not found
@@ -254,20 +201,77 @@ public abstract class HibernateUtils {
 	}
 	
 	/**
-	 * Create an alias for a property path
+	 * Create an alias for a property path, reusing existing aliases and inner joining
+	 * the missing associations.
 	 * @return the alias
 	 */
 	public static String  createAlias(Criteria criteria, String propertyPath) {
-		String[] paths = PropertyUtils.split(propertyPath);
-		String alias = "";
+		return createAlias(criteria, propertyPath, CriteriaSpecification.INNER_JOIN);
+	}
+	
+	/**
+	 * Create an alias for a property path, reusing the existing alias of each association 
+	 * and joining the missing ones with join type.
+	 * @param criteria Hibernate Criteria
+	 * @param propertyPath the association path
+	 * @param joinType join type for new aliases, one of {@link CriteriaSpecification} joins
+	 * @return the alias of the last association
+	 */
+	public static String createAlias(Criteria criteria, String propertyPath, int joinType) {
+		String alias = null;
 		
-		for (String name : paths) {
-			alias += StringUtils.isEmpty(alias) ? name : "." + name;
-			criteria.createAlias(alias, name);
+		for (String name : PropertyUtils.split(propertyPath)) {
+			String associationPath = alias == null ? name : alias + PropertyUtils.PROPERTY_SEPARATOR + name;
+			String existing = findAliasForPropertyPath(criteria, associationPath);
+			
+			if (existing == null) {
+				existing = getUnusedAlias(criteria, name);
+				criteria.createAlias(associationPath, existing, joinType);
+			}
+			
+			alias = existing;
 		}
 		
+		return alias;
+	}
+	
+	/**
+	 * Gets an alias not used yet on criteria
+	 * @param criteria Hibernate Criteria
+	 * @param alias the preferred alias
+	 * @return alias or alias plus a number suffix if alias is in use
+	 */
+	private static String getUnusedAlias(Criteria criteria, String alias) {
+		Set<String> aliases = new HashSet<String>();
+		aliases.add(criteria.getAlias());
+		Iterator iter = ((CriteriaImpl) criteria).iterateSubcriteria();
+		
+		while (iter.hasNext()) 
+			aliases.add(((Subcriteria) iter.next()).getAlias());
+		
+		String unused = alias;
+		for (int i = 1; aliases.contains(unused); i++)
+			unused = alias + "_" + i;
+		
+		return unused;
+	}
+	
+	/**
+	 * Gets the alias for an association path, create it with a left join if none.
+	 * @param criteria Hibernate Criteria
+	 * @param associationPath the association path
+	 * @param alias alias to use if it should be created
+	 * @return the alias
+	 */
+	public static String getOrCreateAlias(Criteria criteria, String associationPath, String alias) {
+		String existing = findAliasForPropertyPath(criteria, associationPath);
+		
+		if (existing != null)
+			return existing;
+		
+		criteria.createAlias(associationPath, alias, CriteriaSpecification.LEFT_JOIN);
 		
-		return PropertyUtils.getPropertyName(alias);
+		return alias;
 	}
 	
 	/**
@@ -285,8 +289,15 @@ public abstract class HibernateUtils {
 		if (id == null)
 			return false;
 		
-		return session.createQuery(String.format(EXISTS_QUERY, entity.getClass().getSimpleName(), propertyId))
+		String queryString = existsQueries.get(entity.getClass());
+		if (queryString == null) {
+			queryString = String.format(EXISTS_QUERY, entity.getClass().getSimpleName(), propertyId);
+			existsQueries.put(entity.getClass(), queryString);
+		}
+		
+		return session.createQuery(queryString)
 			.setParameter(0, id)
+			.setMaxResults(1)
 			.list()
 			.size() > 0;
 	}
@@ -19,12 +19,17 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
+import org.jdal.dao.Cursor;
 import org.jdal.dao.Dao;
+import org.jdal.dao.Filter;
 import org.jdal.dao.Page;
+import org.jdal.dao.PageCursor;
 import org.jdal.util.BeanUtils;
 import org.jdal.util.comparator.PropertyComparator;
 
@@ -93,12 +98,26 @@ public class CollectionPersistenceService<T, PK extends Serializable> implements
 		return keys;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Cursor<T> scroll(Page<T> page, int fetchSize) {
+		return new PageCursor<T>(this, page, fetchSize);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public T initialize(T entity, int depth) {
 		return entity;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> initialize(Collection<T> entities, int depth) {
+		return entities;
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -142,6 +161,21 @@ public class CollectionPersistenceService<T, PK extends Serializable> implements
 		return new ArrayList<T>(collection);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> getAll(Collection<PK> ids) {
+		List<T> found = new ArrayList<T>(ids.size());
+		
+		for (PK id : ids) {
+			T model = get(id);
+			if (model != null)
+				found.add(model);
+		}
+		
+		return found;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -169,6 +203,36 @@ public class CollectionPersistenceService<T, PK extends Serializable> implements
 			deleteById(id);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * Filters are not supported, use a null filter to update all entities.
+	 */
+	public int updateAll(Filter filter, Map<String, Object> assignments) {
+		if (filter != null)
+			throw new UnsupportedOperationException("Filters are not supported");
+		
+		for (T model : collection) {
+			for (String name : assignments.keySet())
+				BeanUtils.setProperty(model, name, assignments.get(name));
+		}
+		
+		return collection.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Filters are not supported, use a null filter to delete all entities.
+	 */
+	public int deleteAll(Filter filter) {
+		if (filter != null)
+			throw new UnsupportedOperationException("Filters are not supported");
+		
+		int count = collection.size();
+		collection.clear();
+		
+		return count;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -241,6 +305,20 @@ public class CollectionPersistenceService<T, PK extends Serializable> implements
 		return get(id) != null;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<PK> existing(Collection<PK> ids) {
+		Set<PK> existing = new HashSet<PK>();
+		
+		for (PK id : ids) {
+			if (exists(id))
+				existing.add(id);
+		}
+		
+		return existing;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
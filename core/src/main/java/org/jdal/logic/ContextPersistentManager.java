@@ -16,27 +16,67 @@
 package org.jdal.logic;
 
 import java.io.Serializable;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToOne;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdal.dao.Cursor;
 import org.jdal.dao.Dao;
+import org.jdal.dao.Filter;
 import org.jdal.dao.Page;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.ReflectionUtils.FieldCallback;
+import org.springframework.util.ReflectionUtils.MethodCallback;
 
 /**
  * Bulk all generics in one object to avoid excesive parametrization.
+ * <p>
+ * Entities are routed to the Dao of its entity class, walking superclasses for 
+ * proxies and subclasses. Collections of mixed entities are grouped by entity class and
+ * saved in foreign key dependency order, ie customers before invoices and invoices 
+ * before invoice lines, each group with a single batched save. 
+ * If a transaction manager is set, all groups are saved in one transaction.
+ * </p>
  * 
  * @author Jose Luis Martin 
  */
 public class ContextPersistentManager implements Dao<Object, Serializable> {
 
+	private static final Log log = LogFactory.getLog(ContextPersistentManager.class);
+
 	@Autowired
 	@SuppressWarnings("rawtypes")
 	private List<Dao> services;
 	private Map<Class<?>, Dao<Object, Serializable>> serviceMap = 
 			new ConcurrentHashMap<Class<?>, Dao<Object, Serializable>>();
+	/** resolved entity classes, by entity, proxy or subclass */
+	private Map<Class<?>, Class<?>> entityClasses = new ConcurrentHashMap<Class<?>, Class<?>>();
+	/** to one associated classes by entity class */
+	private Map<Class<?>, Set<Class<?>>> dependencies = new ConcurrentHashMap<Class<?>, Set<Class<?>>>();
+	/** transaction manager to save collections in a transaction, if any */
+	private PlatformTransactionManager transactionManager;
 	
 
 	@SuppressWarnings("unchecked")
@@ -61,11 +101,31 @@ public class ContextPersistentManager implements Dao<Object, Serializable> {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Cursor<Object> scroll(Page<Object> page, int fetchSize) {
+		throw new UnsupportedOperationException();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public Object initialize(Object entity, int depth) {
-		return getDao(entity.getClass()).initialize(entity);
+		return getDao(entity.getClass()).initialize(entity, depth);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Group entities by class and initialize each group with its Dao.
+	 */
+	public Collection<Object> initialize(Collection<Object> entities, int depth) {
+		Map<Class<?>, List<Object>> groups = groupByEntityClass(entities);
+		
+		for (Class<?> clazz : groups.keySet())
+			getDao(clazz).initialize(groups.get(clazz), depth);
+		
+		return entities;
 	}
 	
 	/**
@@ -106,19 +166,82 @@ public class ContextPersistentManager implements Dao<Object, Serializable> {
 	/**
 	 * {@inheritDoc}
 	 */
-	public Collection<Object> save(Collection<Object> collection) {
+	public List<Object> getAll(Collection<Serializable> ids) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Note that saved entities are returned in group order, ie grouped by entity class 
+	 * in dependency order, not in the order of the collection.
+	 */
+	public Collection<Object> save(final Collection<Object> collection) {
 		if (collection.isEmpty()) 
 			return collection;
 		
-		return getDao(collection.iterator().next().getClass()).save(collection);
+		if (transactionManager == null)
+			return doSave(collection);
+		
+		return new TransactionTemplate(transactionManager).execute(new TransactionCallback<Collection<Object>>() {
+
+			public Collection<Object> doInTransaction(TransactionStatus status) {
+				return doSave(collection);
+			}
+		});
+	}
+	
+	/**
+	 * Save entities grouped by entity class in dependency order.
+	 * @param collection entities to save
+	 * @return saved entities, in group order
+	 */
+	private Collection<Object> doSave(Collection<Object> collection) {
+		Map<Class<?>, List<Object>> groups = groupByEntityClass(collection);
+		List<Object> saved = new ArrayList<Object>(collection.size());
+		
+		for (Class<?> clazz : sortByDependencies(groups.keySet())) {
+			if (log.isDebugEnabled())
+				log.debug("Saving " + groups.get(clazz).size() + " entities of class " + clazz.getName());
+			
+			saved.addAll(getDao(clazz).save(groups.get(clazz)));
+		}
+		
+		return saved;
 	}
 
 	/**
 	 * {@inheritDoc}
+	 * Entities are deleted grouped by entity class in reverse dependency order.
+	 */
+	public void delete(final Collection<Object> collection) {
+		if (collection.isEmpty())
+			return;
+		
+		if (transactionManager == null) {
+			doDelete(collection);
+			return;
+		}
+		
+		new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+			
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				doDelete(collection);
+			}
+		});
+	}
+	
+	/**
+	 * Delete entities grouped by entity class in reverse dependency order.
+	 * @param collection entities to delete
 	 */
-	public void delete(Collection<Object> collection) {
-		if (!collection.isEmpty())
-			getDao(collection.iterator().next().getClass()).delete(collection);
+	private void doDelete(Collection<Object> collection) {
+		Map<Class<?>, List<Object>> groups = groupByEntityClass(collection);
+		List<Class<?>> classes = sortByDependencies(groups.keySet());
+		Collections.reverse(classes);
+		
+		for (Class<?> clazz : classes)
+			getDao(clazz).delete(groups.get(clazz));
 	}
 
 	/**
@@ -128,6 +251,20 @@ public class ContextPersistentManager implements Dao<Object, Serializable> {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public int updateAll(Filter filter, Map<String, Object> assignments) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int deleteAll(Filter filter) {
+		throw new UnsupportedOperationException();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -157,11 +294,157 @@ public class ContextPersistentManager implements Dao<Object, Serializable> {
 	}
 	
 	/**
-	 * @param entity
-	 * @return
+	 * Gets the Dao for an entity class
+	 * @param clazz entity, proxy or subclass
+	 * @return the dao
+	 * @throws InvalidDataAccessApiUsageException if there is no dao for the class
 	 */
 	private Dao<Object, Serializable> getDao(Class<?> clazz) {
-		return serviceMap.get(clazz);
+		return serviceMap.get(getEntityClass(clazz));
+	}
+	
+	/**
+	 * Gets the entity class of a Dao for a class, walking the superclasses
+	 * of proxies and subclasses. Resolutions are cached.
+	 * @param clazz the class
+	 * @return the entity class
+	 * @throws InvalidDataAccessApiUsageException if there is no dao for the class
+	 */
+	private Class<?> getEntityClass(Class<?> clazz) {
+		Class<?> entityClass = entityClasses.get(clazz);
+		
+		if (entityClass == null) {
+			entityClass = clazz;
+			while (entityClass != null && !serviceMap.containsKey(entityClass))
+				entityClass = entityClass.getSuperclass();
+			
+			if (entityClass == null)
+				throw new InvalidDataAccessApiUsageException("No Dao found for class [" + clazz.getName() + "]");
+			
+			entityClasses.put(clazz, entityClass);
+		}
+		
+		return entityClass;
+	}
+	
+	/**
+	 * Group entities by entity class, keeping the order of first appearance.
+	 * @param entities entities to group
+	 * @return Map with entity lists by entity class
+	 */
+	private Map<Class<?>, List<Object>> groupByEntityClass(Collection<Object> entities) {
+		Map<Class<?>, List<Object>> groups = new LinkedHashMap<Class<?>, List<Object>>();
+		
+		for (Object entity : entities) {
+			Class<?> clazz = getEntityClass(entity.getClass());
+			List<Object> group = groups.get(clazz);
+			if (group == null) {
+				group = new ArrayList<Object>();
+				groups.put(clazz, group);
+			}
+			group.add(entity);
+		}
+		
+		return groups;
+	}
+	
+	/**
+	 * Sort entity classes so classes referenced by to one associations go first.
+	 * Classes in dependency cycles keep their order.
+	 * @param classes entity classes to sort
+	 * @return sorted entity classes
+	 */
+	private List<Class<?>> sortByDependencies(Collection<Class<?>> classes) {
+		List<Class<?>> pending = new ArrayList<Class<?>>(classes);
+		List<Class<?>> sorted = new ArrayList<Class<?>>(classes.size());
+		
+		while (!pending.isEmpty()) {
+			Class<?> next = null;
+			
+			for (Class<?> clazz : pending) {
+				if (!dependsOnAny(clazz, pending)) {
+					next = clazz;
+					break;
+				}
+			}
+			
+			if (next == null) { // cycle
+				if (log.isDebugEnabled())
+					log.debug("Cyclic dependencies between entity classes: " + pending);
+				
+				sorted.addAll(pending);
+				break;
+			}
+			
+			sorted.add(next);
+			pending.remove(next);
+		}
+		
+		return sorted;
+	}
+	
+	/**
+	 * Test if an entity class has to one associations with other classes.
+	 * @param clazz entity class
+	 * @param classes other entity classes
+	 * @return true if depends on any other class
+	 */
+	private boolean dependsOnAny(Class<?> clazz, Collection<Class<?>> classes) {
+		for (Class<?> dependency : getDependencies(clazz)) {
+			for (Class<?> other : classes) {
+				if (other != clazz && (dependency.isAssignableFrom(other) || other.isAssignableFrom(dependency)))
+					return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Gets the classes of owned ManyToOne and OneToOne associations of an entity class
+	 * from field or getter annotations. Results are cached.
+	 * @param clazz entity class
+	 * @return the associated classes
+	 */
+	private Set<Class<?>> getDependencies(Class<?> clazz) {
+		Set<Class<?>> classes = dependencies.get(clazz);
+		
+		if (classes == null) {
+			final Set<Class<?>> found = new HashSet<Class<?>>();
+			
+			ReflectionUtils.doWithFields(clazz, new FieldCallback() {
+				
+				public void doWith(Field field) {
+					if (isOwnedToOne(field))
+						found.add(field.getType());
+				}
+			});
+			
+			ReflectionUtils.doWithMethods(clazz, new MethodCallback() {
+				
+				public void doWith(Method method) {
+					if (method.getParameterTypes().length == 0 && isOwnedToOne(method))
+						found.add(method.getReturnType());
+				}
+			});
+			
+			classes = found;
+			dependencies.put(clazz, classes);
+		}
+		
+		return classes;
+	}
+	
+	/**
+	 * Test if a member is annotated as the owner side of a to one association.
+	 * @param element field or method
+	 * @return true if owned ManyToOne or OneToOne.
+	 */
+	private boolean isOwnedToOne(AnnotatedElement element) {
+		OneToOne oneToOne = element.getAnnotation(OneToOne.class);
+		
+		return element.isAnnotationPresent(ManyToOne.class) || 
+				(oneToOne != null && StringUtils.isEmpty(oneToOne.mappedBy()));
 	}
 
 	/**
@@ -172,6 +455,43 @@ public class ContextPersistentManager implements Dao<Object, Serializable> {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<Serializable> existing(Collection<Serializable> ids) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return the services
+	 */
+	@SuppressWarnings("rawtypes")
+	public List<Dao> getServices() {
+		return services;
+	}
+
+	/**
+	 * @param services the services to set
+	 */
+	@SuppressWarnings("rawtypes")
+	public void setServices(List<Dao> services) {
+		this.services = services;
+	}
+
+	/**
+	 * @return the transactionManager
+	 */
+	public PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	/**
+	 * @param transactionManager the transactionManager to set
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
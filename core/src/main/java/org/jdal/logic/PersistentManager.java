@@ -16,12 +16,14 @@
 package org.jdal.logic;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.jdal.dao.Cursor;
 import org.jdal.dao.Dao;
+import org.jdal.dao.Filter;
 import org.jdal.dao.Page;
 import org.jdal.service.PersistentService;
 
@@ -50,6 +52,13 @@ public class PersistentManager<T, PK extends Serializable> implements Persistent
 		dao.initialize(entity, depth);
 		return entity;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> initialize(Collection<T> entities, int depth) {
+		return dao.initialize(entities, depth);
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -66,6 +75,13 @@ public class PersistentManager<T, PK extends Serializable> implements Persistent
 		return dao.getAll();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> getAll(Collection<PK> ids) {
+		return dao.getAll(ids);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -77,22 +93,14 @@ public class PersistentManager<T, PK extends Serializable> implements Persistent
 	 * {@inheritDoc}
 	 */
 	public void delete(Collection<T> collection) {
-		for (T t : collection) {
-			dao.delete(t);
-		}
+		dao.delete(collection);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	public Collection<T> save(Collection<T> collection) {
-		List<T> saved = new ArrayList<T>();
-
-		for (T t : collection) {
-			saved.add(dao.save(t));
-		}
-
-		return saved;
+		return dao.save(collection);
 	}
 
 	/**
@@ -107,9 +115,21 @@ public class PersistentManager<T, PK extends Serializable> implements Persistent
 	 * {@inheritDoc}
 	 */
 	public void deleteById(Collection<PK> ids) {
-		for (PK id : ids)
-			dao.deleteById(id);
+		dao.deleteById(ids);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int updateAll(Filter filter, Map<String, Object> assignments) {
+		return dao.updateAll(filter, assignments);
+	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public int deleteAll(Filter filter) {
+		return dao.deleteAll(filter);
 	}
 
 	/**
@@ -126,6 +146,13 @@ public class PersistentManager<T, PK extends Serializable> implements Persistent
 		return dao.getPage(page);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Cursor<T> scroll(Page<T> page, int fetchSize) {
+		return dao.scroll(page, fetchSize);
+	}
+
 	public Dao<T, PK> getDao() {
 		return dao;
 	}
@@ -173,6 +200,13 @@ public class PersistentManager<T, PK extends Serializable> implements Persistent
 		return dao.exists(id);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<PK> existing(Collection<PK> ids) {
+		return dao.existing(ids);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009-2015 Jose Luis Martin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dao.hibernate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import model.Reader;
+
+import org.hibernate.Criteria;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Restrictions;
+import org.jdal.dao.DefaultFilter;
+import org.jdal.dao.Filter;
+import org.jdal.dao.Page;
+import org.jdal.dao.hibernate.CriteriaBuilder;
+import org.jdal.dao.hibernate.HibernateDao;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Test {@link HibernateDao} bulk statements
+ * @author Jose Luis Martin
+ * @since 2.1
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations={"hibernate-dao.xml"})
+@DirtiesContext(classMode =ClassMode.AFTER_CLASS)
+public class HibernateDaoTest {
+
+	@Autowired
+	private SessionFactory sessionFactory;
+	private HibernateDao<Reader, Long> readerDao;
+	private DefaultFilter filter;
+
+	@Before
+	public void setUp() {
+		readerDao = new HibernateDao<Reader, Long>(Reader.class);
+		readerDao.setSessionFactory(sessionFactory);
+		readerDao.setCriteriaBuilderMap(Collections.<String, CriteriaBuilder>singletonMap("names",
+				new CriteriaBuilder() {
+
+			public Criteria build(Criteria criteria, Object filter) {
+				Collection<?> names = (Collection<?>) ((Filter) filter).getParameterMap().get("names");
+				return criteria.add(Restrictions.in("name", names));
+			}
+		}));
+
+		filter = new DefaultFilter();
+		filter.setName("names");
+		filter.put("names", Arrays.asList("Chico", "Harpo"));
+	}
+
+	@Test
+	public void testBulkSubqueriesDefault() {
+		// MySQL dialect
+		Assert.assertFalse(readerDao.isBulkSubqueries());
+	}
+
+	@Transactional
+	@Test
+	public void testUpdateAll() {
+		readerDao.setBulkSubqueries(true);
+		assertUpdateAll("Karl");
+	}
+
+	@Transactional
+	@Test
+	public void testUpdateAllByIds() {
+		readerDao.setBulkSubqueries(false);
+		assertUpdateAll("Karl");
+	}
+
+	@Transactional
+	@Test
+	public void testDeleteAll() {
+		readerDao.setBulkSubqueries(true);
+		Assert.assertEquals(2, readerDao.deleteAll(filter));
+		sessionFactory.getCurrentSession().clear();
+
+		Assert.assertTrue(getKeys(filter).isEmpty());
+		Assert.assertEquals(3, readerDao.getAll().size());
+	}
+
+	/**
+	 * Update the filtered readers and check the names and versions of all readers.
+	 * @param name the new name
+	 */
+	private void assertUpdateAll(String name) {
+		Map<String, Object> assignments = new HashMap<String, Object>();
+		assignments.put("name", name);
+
+		Assert.assertEquals(2, readerDao.updateAll(filter, assignments));
+		sessionFactory.getCurrentSession().clear();
+
+		for (Reader reader : readerDao.getAll()) {
+			if (reader.getId() == 3L || reader.getId() == 4L) {
+				Assert.assertEquals(name, reader.getName());
+				Assert.assertEquals(1, reader.getVersion());
+			}
+			else {
+				Assert.assertFalse(name.equals(reader.getName()));
+				Assert.assertEquals(0, reader.getVersion());
+			}
+		}
+	}
+
+	private Collection<?> getKeys(Filter filter) {
+		Page<Reader> page = new Page<Reader>(Integer.MAX_VALUE);
+		page.setFilter(filter);
+
+		return readerDao.getKeys(page);
+	}
+}
@@ -16,37 +16,85 @@
 package dao.jpa;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Resource;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Root;
 import javax.persistence.criteria.Subquery;
+import javax.persistence.metamodel.ManagedType;
+import javax.sql.DataSource;
 
 import junit.framework.TestCase;
 import model.Author;
 import model.Book;
 import model.Category;
+import model.Reader;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.jdal.cmd.DefaultCommand;
+import org.jdal.cmd.PartitionedTask;
 import org.jdal.dao.BeanFilter;
+import org.jdal.dao.CachingDao;
+import org.jdal.dao.Cursor;
+import org.jdal.dao.Dao;
+import org.jdal.dao.EntityChangeBus;
+import org.jdal.dao.EntityChangeEvent;
+import org.jdal.dao.EntityChangeListener;
 import org.jdal.dao.Filter;
+import org.jdal.dao.Keyset;
 import org.jdal.dao.Page;
+import org.jdal.dao.RoutingDao;
+import org.jdal.dao.ShardResolver;
+import org.jdal.dao.ShardedDao;
+import org.jdal.dao.WriteBehindDao;
+import org.jdal.dao.jpa.ExtendedMetamodel;
+import org.jdal.dao.jpa.JoinRegistry;
 import org.jdal.dao.jpa.JpaDao;
+import org.jdal.dao.jpa.JpaDaoFactory;
 import org.jdal.dao.jpa.JpaUtils;
+import org.jdal.logic.ContextPersistentManager;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.annotation.DirtiesContext.ClassMode;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 
 /**
@@ -65,6 +113,10 @@ public class TestJpaDao extends TestCase {
 	private JpaDao<Book, Long> bookDao;
 	@Resource 
 	JpaDao<Category, Long> categoryDao;
+	@Resource
+	private JpaDaoFactory daoFactory;
+	@Resource
+	private PlatformTransactionManager transactionManager;
 	
 	@Test
 	@Transactional
@@ -104,6 +156,24 @@ public class TestJpaDao extends TestCase {
 		log.debug("Count: " + result);
 	}
 	
+	@Test
+	@Transactional
+	public void testCountWithoutDisplayJoins() {
+		EntityManager em = bookDao.getEntityManager();
+		CriteriaBuilder cb = em.getCriteriaBuilder();
+		CriteriaQuery<Book> criteria = cb.createQuery(Book.class);
+		
+		Root<Book> root = criteria.from(Book.class);
+		root.join("author", JoinType.LEFT);
+		Join<Book, Category> category = root.join("category", JoinType.LEFT);
+		criteria.where(cb.isNotNull(category.get("name")));
+		
+		CriteriaQuery<Long> countCriteria = JpaUtils.countCriteria(em, criteria);
+		assertEquals(1, countCriteria.getRoots().iterator().next().getJoins().size());
+		assertEquals(em.createQuery(criteria).getResultList().size(), 
+				em.createQuery(countCriteria).getSingleResult().intValue());
+	}
+	
 	@Test
 	@Transactional
 	public void testCopy() {
@@ -154,6 +224,761 @@ public class TestJpaDao extends TestCase {
 		assertEquals(4, page.getData().size());
 	}
 	
+	@Test
+	@Transactional
+	public void testKeysetPaging() {
+		Page<Book> page = new Page<Book>(5, 1, "name");
+		page.setAutoload(false);
+		page.setKeysetPaging(true);
+		bookDao.getPage(page);
+		assertNotNull(page.getKeyset());
+		
+		page.setPage(2);
+		assertEquals(Page.Seek.NEXT, page.getSeek());
+		bookDao.getPage(page);
+		
+		Page<Book> offsetPage = new Page<Book>(5, 2, "name");
+		bookDao.getPage(offsetPage);
+		assertEquals(offsetPage.getData(), page.getData());
+		
+		page.setPage(1);
+		assertEquals(Page.Seek.PREVIOUS, page.getSeek());
+		bookDao.getPage(page);
+		
+		offsetPage.setAutoload(false);
+		offsetPage.setPage(1);
+		bookDao.getPage(offsetPage);
+		assertEquals(offsetPage.getData(), page.getData());
+	}
+
+	@Test
+	@Transactional
+	public void testKeysetPagingFilterChange() {
+		Page<Book> page = new Page<Book>(5, 1, "name");
+		page.setAutoload(false);
+		page.setKeysetPaging(true);
+		page.setFilter(new BeanFilter("joinFilter"));
+		bookDao.getPage(page);
+		Keyset keyset = page.getKeyset();
+		assertNotNull(keyset);
+		
+		// other filter with equal parameters
+		page.setFilter(new BeanFilter("otherFilter"));
+		assertNull(page.getKeyset());
+		page.setPage(2);
+		assertEquals(Page.Seek.NONE, page.getSeek());
+		
+		page.setKeyset(keyset);
+		assertEquals(Page.Seek.NONE, page.getSeek());
+		
+		// filters that are not a Filter
+		page.setFilter("filter");
+		page.setKeyset(keyset);
+		assertEquals(Page.Seek.NONE, page.getSeek());
+		
+		page.setFilter(new BeanFilter("joinFilter"));
+		page.setKeyset(keyset);
+		assertEquals(Page.Seek.NEXT, page.getSeek());
+	}
+	
+	@Test
+	@Transactional
+	public void testKeysetPagingNulls() {
+		for (Book book : bookDao.getAll(Arrays.asList(7L, 8L, 9L, 10L)))
+			book.setIsbn(null);
+		
+		bookDao.getEntityManager().flush();
+		int count = bookDao.getAll().size();
+		
+		for (Page.Order order : Page.Order.values()) {
+			Page<Book> page = new Page<Book>(5, 1, "isbn", order);
+			page.setAutoload(false);
+			page.setKeysetPaging(true);
+			Set<Long> ids = new HashSet<Long>();
+			
+			for (int i = 1; (i - 1) * 5 < count; i++) {
+				page.setPage(i);
+				bookDao.getPage(page);
+				
+				for (Book book : page.getData())
+					assertTrue(ids.add(book.getId()));
+			}
+			
+			assertEquals(count, ids.size());
+		}
+	}
+
+	@Test
+	@Transactional
+	public void testMultiSort() {
+		Page<Book> page = new Page<Book>(Integer.MAX_VALUE);
+		page.addSortKey("category.name", Page.Order.ASC);
+		page.addSortKey("name", Page.Order.DESC);
+		assertTrue(page.isMultiSort());
+		bookDao.getPage(page);
+
+		List<Book> books = page.getData();
+
+		for (int i = 1; i < books.size(); i++) {
+			Book previous = books.get(i - 1);
+			Book book = books.get(i);
+			int compare = previous.getCategory().getName().compareTo(book.getCategory().getName());
+			assertTrue(compare <= 0);
+
+			if (compare == 0)
+				assertTrue(previous.getName().compareTo(book.getName()) >= 0);
+		}
+	}
+
+	@Test
+	@Transactional
+	public void testSortJoins() {
+		EntityManager em = bookDao.getEntityManager();
+		CriteriaBuilder cb = em.getCriteriaBuilder();
+		CriteriaQuery<Book> criteria = cb.createQuery(Book.class);
+		Root<Book> root = criteria.from(Book.class);
+		Join<Book, Category> category = root.join("category");
+
+		JoinRegistry joins = new JoinRegistry(root, bookDao.getMetamodel());
+		assertSame(category, joins.getPath("category"));
+		criteria.orderBy(cb.asc(joins.getPath("category.name")), cb.asc(joins.getPath("author.name")));
+		assertEquals(2, root.getJoins().size());
+
+		// resolved paths are cached by the metamodel, unknown ones are not resolved
+		ExtendedMetamodel metamodel = bookDao.getMetamodel();
+		ManagedType<Book> type = metamodel.managedType(Book.class);
+		assertEquals(2, metamodel.getPathAttributes(type, "author.name").size());
+		assertSame(metamodel.getPathAttributes(type, "author.name"), metamodel.getPathAttributes(type, "author.name"));
+		assertNull(metamodel.getPathAttributes(type, "author.unknown"));
+		assertFalse(joins.isSingular("author.unknown"));
+
+		// sorting by a nullable association don't drop rows
+		Page<Book> page = new Page<Book>(Integer.MAX_VALUE);
+		page.setSortName("author.name");
+		bookDao.getPage(page);
+		assertEquals(page.getCount(), page.getData().size());
+	}
+
+	@Test
+	@Transactional
+	public void testExisting() {
+		assertTrue(bookDao.exists(7L));
+		assertFalse(bookDao.exists(-1L));
+		assertFalse(bookDao.exists(null));
+
+		int maxInParameters = bookDao.getMaxInParameters();
+		bookDao.setMaxInParameters(2);
+		try {
+			Set<Long> existing = bookDao.existing(Arrays.asList(7L, 8L, -1L, 9L, -2L));
+			assertEquals(new HashSet<Long>(Arrays.asList(7L, 8L, 9L)), existing);
+		}
+		finally {
+			bookDao.setMaxInParameters(maxInParameters);
+		}
+	}
+
+	@Test
+	@Transactional
+	public void testDaoFactory() {
+		Dao<Book, Serializable> dao = daoFactory.createDao(Book.class);
+		assertSame(dao, daoFactory.createDao(Book.class));
+
+		ExtendedMetamodel metamodel = daoFactory.getMetamodel();
+		assertNotNull(metamodel.findNamedQuery("booksByAuthorName"));
+		assertEquals("category", metamodel.getMappedBy(Category.class).get("books"));
+		assertEquals("id", metamodel.getIdAttribute(Book.class).getName());
+		assertEquals(10, dao.getPage(new Page<Book>(10)).getData().size());
+	}
+
+	@Test
+	@Transactional
+	public void testCountModes() {
+		Page<Book> page = new Page<Book>(10);
+		page.setCountMode(Page.CountMode.CACHED);
+		bookDao.getPage(page);
+		int count = page.getCount();
+		assertEquals(Integer.valueOf(count), bookDao.getCountCache().get(Book.class, page));
+		
+		Page<Book> estimated = new Page<Book>(10);
+		estimated.setCountMode(Page.CountMode.ESTIMATED);
+		bookDao.getPage(estimated);
+		assertEquals(10, estimated.getData().size());
+		assertEquals(11, estimated.getCount());
+		
+		bookDao.save(bookDao.get(7L));
+		assertNull(bookDao.getCountCache().get(Book.class, page));
+	}
+	
+	@Test
+	@Transactional
+	public void testScroll() {
+		Page<Book> page = new Page<Book>(Integer.MAX_VALUE, 1, "name");
+		bookDao.getPage(page);
+		
+		Cursor<Book> cursor = bookDao.scroll(new Page<Book>(10, 1, "name"), 7);
+		int count = 0;
+		try {
+			while (cursor.hasNext()) {
+				assertEquals(page.getData().get(count++).getId(), cursor.next().getId());
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		
+		assertEquals(page.getData().size(), count);
+	}
+	
+	@Test
+	@Transactional
+	public void testSave() {
+		Book book = new Book();
+		book.setName("New Book");
+		assertSame(book, bookDao.save(book));
+		assertNotNull(book.getId());
+		
+		bookDao.setUpsert(true);
+		try {
+			Book existing = bookDao.get(7L);
+			assertSame(existing, bookDao.save(existing));
+		}
+		finally {
+			bookDao.setUpsert(false);
+		}
+	}
+	
+	@Test
+	@Transactional
+	public void testSaveCollection() {
+		EntityManager em = bookDao.getEntityManager();
+		Book managed = bookDao.get(8L);
+		List<Book> books = new ArrayList<Book>();
+		
+		for (int i = 0; i < 3; i++) {
+			Book book = new Book();
+			book.setName("Batch Book " + i);
+			books.add(book);
+		}
+		
+		bookDao.save(books);
+		
+		// entities of the caller stay managed
+		assertTrue(em.contains(managed));
+		for (Book book : books) {
+			assertNotNull(book.getId());
+			assertTrue(em.contains(book));
+		}
+		
+		// unless clearing is enabled
+		bookDao.setClearOnBatch(true);
+		try {
+			bookDao.save(Arrays.asList(managed));
+			assertFalse(em.contains(managed));
+		}
+		finally {
+			bookDao.setClearOnBatch(false);
+		}
+	}
+	
+	@Test
+	@Transactional
+	public void testCachingDao() {
+		CachingDao<Book, Long> cachingDao = new CachingDao<Book, Long>(bookDao);
+		Page<Book> page = new Page<Book>(10, 1, "name");
+		cachingDao.getPage(page);
+		Page<Book> cached = new Page<Book>(10, 1, "name");
+		cachingDao.getPage(cached);
+		
+		assertEquals(1, cachingDao.getPageMisses());
+		assertEquals(1, cachingDao.getPageHits());
+		assertEquals(page.getData(), cached.getData());
+		assertEquals(page.getCount(), cached.getCount());
+		
+		Book book = cachingDao.get(7L);
+		assertSame(book, cachingDao.get(7L));
+		assertEquals(1, cachingDao.getEntityHits());
+		
+		cachingDao.save(book);
+		assertEquals(0, cachingDao.getPageCacheSize());
+		assertEquals(0, cachingDao.getEntityCacheSize());
+		
+		// detached copy is evicted by id
+		book = cachingDao.get(7L);
+		Book copy = new Book();
+		copy.setId(book.getId());
+		copy.setName(book.getName());
+		copy.setAuthor(book.getAuthor());
+		copy.setCategory(book.getCategory());
+		cachingDao.save(copy);
+		assertEquals(0, cachingDao.getEntityCacheSize());
+	}
+	
+	@Test
+	public void testCachingDaoCommit() {
+		final CachingDao<Book, Long> cachingDao = new CachingDao<Book, Long>(bookDao);
+		
+		new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+			
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				cachingDao.save(cachingDao.get(7L));
+				assertEquals(0, cachingDao.getEntityCacheSize());
+				
+				// read between the write and the commit
+				cachingDao.get(7L);
+				assertEquals(1, cachingDao.getEntityCacheSize());
+			}
+		});
+		
+		assertEquals(0, cachingDao.getEntityCacheSize());
+	}
+	
+	@Test
+	@Transactional
+	public void testRoutingDao() {
+		// replica on a second database
+		EmbeddedDatabase replicaDataSource = createDatabase("replica");
+		new JdbcTemplate(replicaDataSource).update("UPDATE books SET name = 'Replica' WHERE id = 7");
+		LocalContainerEntityManagerFactoryBean emfb = createEntityManagerFactory(replicaDataSource);
+		EntityManagerFactory emf = emfb.getObject();
+		
+		try {
+			JpaDao<Book, Long> replica = new JpaDao<Book, Long>(Book.class);
+			replica.setEntityManager(SharedEntityManagerCreator.createSharedEntityManager(emf));
+			List<Dao<Book, Long>> replicas = new ArrayList<Dao<Book, Long>>();
+			replicas.add(replica);
+			RoutingDao<Book, Long> routingDao = new RoutingDao<Book, Long>(bookDao, replicas);
+			RoutingDao<Book, Long> otherDao = new RoutingDao<Book, Long>(bookDao, replicas);
+			
+			// reads go to the replica
+			assertEquals("Replica", routingDao.get(7L).getName());
+			
+			// until a write, in the same transaction
+			Book book = bookDao.get(7L);
+			routingDao.save(book);
+			assertEquals(book.getName(), routingDao.get(7L).getName());
+			assertFalse("Replica".equals(routingDao.get(7L).getName()));
+			
+			// nor reads of other daos in the transaction
+			assertEquals(book.getName(), otherDao.get(7L).getName());
+		}
+		finally {
+			emfb.destroy();
+			replicaDataSource.shutdown();
+		}
+	}
+	
+	@Test
+	@Transactional
+	public void testWriteBehindDao() {
+		WriteBehindDao<Book, Long> writeBehindDao = new WriteBehindDao<Book, Long>(bookDao);
+		Book book = bookDao.get(7L);
+		book.setName("Write Behind");
+		writeBehindDao.save(book);
+		writeBehindDao.save(book);
+		
+		assertEquals(1, writeBehindDao.getBufferSize());
+		assertSame(book, writeBehindDao.get(7L));
+		assertEquals(1, writeBehindDao.flush());
+		assertEquals(0, writeBehindDao.getBufferSize());
+		
+		// new entities are coalesced by identity
+		Book newBook = new Book();
+		newBook.setName("Write Behind New");
+		writeBehindDao.save(newBook);
+		writeBehindDao.save(newBook);
+		writeBehindDao.save(new Book());
+		
+		assertEquals(2, writeBehindDao.getBufferSize());
+		assertEquals(2, writeBehindDao.flush());
+		assertNotNull(newBook.getId());
+	}
+	
+	@Test
+	public void testShardedDao() {
+		final EmbeddedDatabase[] dataSources = new EmbeddedDatabase[2];
+		final LocalContainerEntityManagerFactoryBean[] emfbs = new LocalContainerEntityManagerFactoryBean[2];
+		final List<Dao<Book, Long>> shards = new ArrayList<Dao<Book, Long>>();
+		final ShardedDao<Book, Long> shardedDao = new ShardedDao<Book, Long>();
+		
+		try {
+			// even books on shard 0, odd books on shard 1
+			for (int i = 0; i < 2; i++) {
+				dataSources[i] = createDatabase("shard" + i);
+				new JdbcTemplate(dataSources[i]).update("DELETE FROM books WHERE MOD(id, 2) <> ?", i);
+				emfbs[i] = createEntityManagerFactory(dataSources[i]);
+				JpaDao<Book, Long> shard = new JpaDao<Book, Long>(Book.class);
+				shard.setEntityManager(SharedEntityManagerCreator.createSharedEntityManager(emfbs[i].getObject()));
+				shards.add(shard);
+			}
+			
+			shardedDao.setShards(shards);
+			shardedDao.setShardResolver(new ShardResolver<Book, Long>() {
+				
+				public int getShard(Book entity, int shards) {
+					return getShard(entity.getId(), shards);
+				}
+				
+				public int getShard(Long id, int shards) {
+					return (int) (id % shards);
+				}
+			});
+			
+			// pages merge the rows of both shards by name
+			List<Book> books = new ArrayList<Book>(shardedDao.getAll());
+			Collections.sort(books, new Comparator<Book>() {
+				
+				public int compare(Book o1, Book o2) {
+					return o1.getName().compareTo(o2.getName());
+				}
+			});
+			
+			Page<Book> page = new Page<Book>(10, 2, "name");
+			shardedDao.getPage(page);
+			assertEquals(books.size(), page.getCount());
+			assertEquals(10, page.getData().size());
+			Set<Long> parities = new HashSet<Long>();
+			
+			for (int i = 0; i < page.getData().size(); i++) {
+				assertEquals(books.get(10 + i).getName(), page.getData().get(i).getName());
+				parities.add(page.getData().get(i).getId() % 2);
+			}
+			
+			assertEquals(2, parities.size());
+			
+			// keys are read from projection rows in the same order
+			List<Serializable> keys = shardedDao.getKeys(new Page<Book>(10, 2, "name"));
+			assertEquals(10, keys.size());
+			
+			for (int i = 0; i < keys.size(); i++)
+				assertEquals(page.getData().get(i).getId(), keys.get(i));
+			
+			// reads and writes are routed by the resolver
+			assertNull(shards.get(0).get(9L));
+			final Book book = shardedDao.get(9L);
+			assertNotNull(book);
+			book.setName("Sharded");
+			new TransactionTemplate(new JpaTransactionManager(emfbs[1].getObject())).execute(
+					new TransactionCallbackWithoutResult() {
+				
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					shardedDao.save(book);
+				}
+			});
+			assertEquals("Sharded", shards.get(1).get(9L).getName());
+			
+			new TransactionTemplate(new JpaTransactionManager(emfbs[0].getObject())).execute(
+					new TransactionCallbackWithoutResult() {
+				
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					shardedDao.delete(shardedDao.get(8L));
+				}
+			});
+			assertNull(shards.get(0).get(8L));
+			assertNull(shardedDao.get(8L));
+			assertEquals(books.size() - 1, shardedDao.getAll().size());
+		}
+		finally {
+			shardedDao.destroy();
+			
+			for (int i = 0; i < 2; i++) {
+				if (emfbs[i] != null)
+					emfbs[i].destroy();
+				if (dataSources[i] != null)
+					dataSources[i].shutdown();
+			}
+		}
+	}
+	
+	@Test
+	public void testPartitionedTask() {
+		PartitionedTask<Book, Long> task = new PartitionedTask<Book, Long>(bookDao);
+		task.setPartitionSize(5);
+		final AtomicInteger count = new AtomicInteger();
+		task.addCommand(new DefaultCommand() {
+			@Override
+			public boolean execute(Object data) {
+				count.incrementAndGet();
+				return true;
+			}
+		});
+		
+		assertTrue(task.execute(null));
+		assertEquals(bookDao.getAll().size(), count.get());
+		assertEquals(count.get(), task.getProcessed());
+	}
+	
+	@Test
+	public void testEntityChangeBus() {
+		EntityChangeBus bus = new EntityChangeBus();
+		final List<EntityChangeEvent> bookEvents = new ArrayList<EntityChangeEvent>();
+		bus.addListener(Book.class, new EntityChangeListener() {
+			public void entityChanged(EntityChangeEvent event) {
+				bookEvents.add(event);
+			}
+		});
+		final AtomicInteger allEvents = new AtomicInteger();
+		bus.addListener(new EntityChangeListener() {
+			public void entityChanged(EntityChangeEvent event) {
+				allEvents.incrementAndGet();
+			}
+		});
+		
+		bus.publish(new EntityChangeEvent(bookDao, Book.class, EntityChangeEvent.Type.UPDATED, 1L, null, null));
+		bus.publish(new EntityChangeEvent(categoryDao, Category.class, EntityChangeEvent.Type.BULK, null, null, null));
+		
+		assertEquals(1, bookEvents.size());
+		assertEquals(1L, bookEvents.get(0).getId());
+		assertEquals(2, allEvents.get());
+	}
+	
+	@Test
+	public void testEntityChangeEvents() throws InterruptedException {
+		EntityChangeBus bus = new EntityChangeBus();
+		final List<EntityChangeEvent> events = new CopyOnWriteArrayList<EntityChangeEvent>();
+		bus.addListener(new EntityChangeListener() {
+			public void entityChanged(EntityChangeEvent event) {
+				events.add(event);
+			}
+		});
+		
+		@SuppressWarnings("unchecked")
+		final JpaDao<Reader, Long> readerDao = (JpaDao<Reader, Long>) (Dao<?, ?>) daoFactory.createDao(Reader.class);
+		readerDao.setChangeBus(bus);
+		bookDao.setChangeBus(bus);
+		TransactionTemplate tt = new TransactionTemplate(transactionManager);
+		
+		try {
+			// published after commit, with id and version
+			tt.execute(new TransactionCallbackWithoutResult() {
+				
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					Reader reader = readerDao.get(2L);
+					reader.setSurname("Marx Brothers");
+					readerDao.save(reader);
+					readerDao.getEntityManager().flush();
+					assertTrue(events.isEmpty());
+				}
+			});
+			
+			assertEquals(1, events.size());
+			EntityChangeEvent event = events.get(0);
+			assertSame(readerDao, event.getSource());
+			assertEquals(Reader.class, event.getEntityClass());
+			assertEquals(EntityChangeEvent.Type.UPDATED, event.getType());
+			assertEquals(2L, event.getId());
+			assertEquals(1, event.getVersion());
+			events.clear();
+			
+			// bulk writes
+			tt.execute(new TransactionCallbackWithoutResult() {
+				
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					BookFilter filter = new BookFilter("booksByAuthorName");
+					filter.setAuthorName("Nobody");
+					bookDao.updateAll(filter, Collections.<String, Object>singletonMap("isbn", "0"));
+					assertTrue(events.isEmpty());
+				}
+			});
+			
+			assertEquals(1, events.size());
+			assertEquals(EntityChangeEvent.Type.BULK, events.get(0).getType());
+			assertEquals(Book.class, events.get(0).getEntityClass());
+			assertNull(events.get(0).getId());
+			events.clear();
+			
+			// not published on rollback
+			tt.execute(new TransactionCallbackWithoutResult() {
+				
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					bookDao.delete(bookDao.get(8L));
+					status.setRollbackOnly();
+				}
+			});
+			
+			assertTrue(events.isEmpty());
+			assertTrue(bookDao.exists(8L));
+			
+			// delivered by the dispatcher thread
+			bus.setAsync(true);
+			bus.init();
+			final CountDownLatch latch = new CountDownLatch(1);
+			final Thread publisher = Thread.currentThread();
+			final AtomicReference<EntityChangeEvent> delivered = new AtomicReference<EntityChangeEvent>();
+			bus.addListener(Book.class, new EntityChangeListener() {
+				public void entityChanged(EntityChangeEvent event) {
+					if (Thread.currentThread() != publisher) {
+						delivered.set(event);
+						latch.countDown();
+					}
+				}
+			});
+			
+			tt.execute(new TransactionCallbackWithoutResult() {
+				
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					bookDao.save(bookDao.get(7L));
+				}
+			});
+			
+			assertTrue(latch.await(5, TimeUnit.SECONDS));
+			assertEquals(EntityChangeEvent.Type.UPDATED, delivered.get().getType());
+			assertEquals(7L, delivered.get().getId());
+		}
+		finally {
+			readerDao.setChangeBus(null);
+			bookDao.setChangeBus(null);
+			bus.destroy();
+		}
+	}
+	
+	@Test
+	@Transactional
+	public void testQueryHints() {
+		Page<Book> page = new Page<Book>(10, 1, "name");
+		bookDao.getPage(page);
+		
+		Session session = bookDao.getEntityManager().unwrap(Session.class);
+		assertFalse(session.isReadOnly(page.getData().get(0)));
+		bookDao.getEntityManager().clear();
+		
+		Page<Book> readOnlyPage = new Page<Book>(10, 1, "name");
+		readOnlyPage.setReadOnly(true);
+		readOnlyPage.setFetchSize(10);
+		readOnlyPage.setTimeout(5000);
+		bookDao.getPage(readOnlyPage);
+		
+		assertEquals(page.getCount(), readOnlyPage.getCount());
+		assertEquals(page.getData(), readOnlyPage.getData());
+		
+		for (Book book : readOnlyPage.getData())
+			assertTrue(session.isReadOnly(book));
+	}
+	
+	@Test
+	@Transactional
+	public void testProjection() {
+		Page<Book> page = new Page<Book>(10, 1, "name");
+		bookDao.getPage(page);
+		
+		Page<Book> projectionPage = new Page<Book>(10, 1, "name");
+		projectionPage.setProjection(Arrays.asList("isbn", "author.name"));
+		bookDao.getPage(projectionPage);
+		
+		assertEquals(page.getCount(), projectionPage.getCount());
+		assertEquals(page.getData().size(), projectionPage.getData().size());
+		
+		for (int i = 0; i < page.getData().size(); i++) {
+			Book book = page.getData().get(i);
+			Book row = projectionPage.getData().get(i);
+			assertEquals(book.getId(), row.getId());
+			assertEquals(book.getIsbn(), row.getIsbn());
+			assertNull(row.getCategory());
+			
+			if (book.getAuthor() != null)
+				assertEquals(book.getAuthor().getName(), row.getAuthor().getName());
+		}
+	}
+	
+	@Test
+	@Transactional
+	public void testUpdateAll() {
+		BookFilter bf = new BookFilter("bookFilter");
+		bf.setCategory(new Category("Java"));
+		Page<Book> page = new Page<Book>(Integer.MAX_VALUE);
+		page.setFilter(bf);
+		int count = bookDao.getKeys(page).size();
+		Map<String, Object> assignments = new HashMap<String, Object>();
+		assignments.put("isbn", "0000000000");
+		
+		assertEquals(count, bookDao.updateAll(bf, assignments));
+		
+		// named query filters are applied as subquery
+		BookFilter filter = new BookFilter("booksByAuthorName");
+		filter.setAuthorName("Martin");
+		assignments.put("isbn", "1111111111");
+		
+		assertEquals(4, bookDao.updateAll(filter, assignments));
+		bookDao.getEntityManager().clear();
+		page = new Page<Book>(Integer.MAX_VALUE);
+		page.setFilter(filter);
+		
+		for (Book book : bookDao.getPage(page).getData())
+			assertEquals("1111111111", book.getIsbn());
+	}
+	
+	@Test
+	@Transactional
+	@SuppressWarnings("rawtypes")
+	public void testContextPersistentManager() {
+		ContextPersistentManager manager = new ContextPersistentManager();
+		manager.setServices(Arrays.<Dao>asList(bookDao, categoryDao));
+		manager.init();
+		
+		// proxies are subclasses of the entity class
+		Book proxy = bookDao.getEntityManager().getReference(Book.class, 7L);
+		assertNotSame(Book.class, proxy.getClass());
+		proxy.setIsbn("2222222222");
+		
+		Category category = new Category("Persistence");
+		Book book = new Book();
+		book.setName("Java Persistence");
+		book.setCategory(category);
+		
+		// books need the category saved first
+		List<Object> saved = new ArrayList<Object>(
+				manager.save(Arrays.<Object>asList(book, proxy, category)));
+		
+		assertEquals(3, saved.size());
+		assertSame(category, saved.get(0));
+		assertNotNull(category.getId());
+		assertNotNull(book.getId());
+		
+		bookDao.getEntityManager().clear();
+		assertEquals(category.getId(), bookDao.get(book.getId()).getCategory().getId());
+		assertEquals("2222222222", bookDao.get(7L).getIsbn());
+	}
+	
+	@Test
+	@Transactional
+	public void testDeleteReferences() {
+		// not cascaded, references are nulled
+		Category category = categoryDao.get(1L);
+		List<Long> categoryBooks = new ArrayList<Long>();
+		for (Book book : category.getBooks())
+			categoryBooks.add(book.getId());
+		
+		assertFalse(categoryBooks.isEmpty());
+		categoryDao.delete(category);
+		categoryDao.getEntityManager().flush();
+		categoryDao.getEntityManager().clear();
+		
+		for (Long id : categoryBooks) {
+			Book book = bookDao.get(id);
+			assertNotNull(book);
+			assertNull(book.getCategory());
+		}
+		
+		// cascaded, books are removed
+		Dao<Author, Serializable> authorDao = daoFactory.createDao(Author.class);
+		Author author = authorDao.get(1L);
+		List<Long> authorBooks = new ArrayList<Long>();
+		for (Book book : author.getBooks())
+			authorBooks.add(book.getId());
+		
+		assertFalse(authorBooks.isEmpty());
+		authorDao.delete(author);
+		categoryDao.getEntityManager().flush();
+		
+		assertTrue(bookDao.existing(authorBooks).isEmpty());
+	}
+	
 	@Test
 	@Transactional
 	public void testInitialize() {
@@ -161,5 +986,48 @@ public class TestJpaDao extends TestCase {
 		categoryDao.initialize(category);
 		Set<Book> books = category.getBooks();
 	}
+	
+	@Test
+	@Transactional
+	public void testInitializeCollection() {
+		List<Category> categories = categoryDao.getAll();
+		EntityManager em = categoryDao.getEntityManager();
+		em.clear();
+		categoryDao.initialize(categories, 2);
+		PersistenceUnitUtil unitUtil = em.getEntityManagerFactory().getPersistenceUnitUtil();
+		
+		for (Category category : categories)
+			assertTrue(unitUtil.isLoaded(category, "books"));
+	}
 
+	
+	/**
+	 * Create a test database
+	 * @param name database name
+	 * @return the database
+	 */
+	private EmbeddedDatabase createDatabase(String name) {
+		return new EmbeddedDatabaseBuilder()
+			.setType(EmbeddedDatabaseType.H2)
+			.setName(name)
+			.addScript("classpath:create.sql")
+			.addScript("classpath:import.sql")
+			.build();
+	}
+	
+	/**
+	 * Create an entity manager factory on a test database
+	 * @param dataSource the database
+	 * @return the factory bean, destroy it when done
+	 */
+	private LocalContainerEntityManagerFactoryBean createEntityManagerFactory(DataSource dataSource) {
+		HibernateJpaVendorAdapter vendorAdapter = new HibernateJpaVendorAdapter();
+		vendorAdapter.setDatabasePlatform("org.hibernate.dialect.MySQLDialect");
+		LocalContainerEntityManagerFactoryBean emfb = new LocalContainerEntityManagerFactoryBean();
+		emfb.setDataSource(dataSource);
+		emfb.setJpaVendorAdapter(vendorAdapter);
+		emfb.afterPropertiesSet();
+		
+		return emfb;
+	}
 }
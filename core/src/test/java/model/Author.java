@@ -1,5 +1,11 @@
 package model;
 
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.persistence.CascadeType;
+import javax.persistence.FetchType;
+import javax.persistence.OneToMany;
 import javax.persistence.Table;
 
 import org.hibernate.annotations.Filter;
@@ -16,6 +22,8 @@ public class Author  extends Entity {
 	
 	private static final long serialVersionUID = 1L;
 	private String surname;
+	@OneToMany(mappedBy="author", fetch=FetchType.LAZY, cascade=CascadeType.REMOVE)
+	private Set<Book> books = new HashSet<Book>();
 
 	/**
 	 * @return the surname
@@ -30,6 +38,19 @@ public class Author  extends Entity {
 		this.surname = surname;
 	}
 	
+	/**
+	 * @return the books
+	 */
+	public Set<Book> getBooks() {
+		return books;
+	}
+	/**
+	 * @param books the books to set
+	 */
+	public void setBooks(Set<Book> books) {
+		this.books = books;
+	}
+	
 	public String toString() {
 		return surname + (name != null ? ", " + name : ""); 
 	}
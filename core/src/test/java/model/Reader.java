@@ -0,0 +1,45 @@
+package model;
+
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+import org.jdal.model.Entity;
+
+@javax.persistence.Entity
+@Table(name="readers")
+public class Reader extends Entity {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private String surname;
+	@Version
+	private int version;
+
+	/**
+	 * @return the surname
+	 */
+	public String getSurname() {
+		return surname;
+	}
+
+	/**
+	 * @param surname the surname to set
+	 */
+	public void setSurname(String surname) {
+		this.surname = surname;
+	}
+
+	/**
+	 * @return the version
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param version the version to set
+	 */
+	public void setVersion(int version) {
+		this.version = version;
+	}
+}
@@ -27,6 +27,7 @@ CREATE TABLE `readers` (
   `id` int(11) NOT NULL AUTO_INCREMENT,
   `name` varchar(100) DEFAULT NULL,
   `surname` varchar(100) DEFAULT NULL,
+  `version` int(11) NOT NULL DEFAULT 0,
   PRIMARY KEY (`id`)
 );
 
@@ -680,7 +680,7 @@ public class ListTableModel implements TableModel {
 	 * @param row row of model
 	 * @return the primary key of model, if any
 	 */
-	private Object getPrimaryKey(Object row) {
+	public Object getPrimaryKey(Object row) {
 		if (BeanUtils.getPropertyDescriptor(modelClass, id) == null)
 			return row;
 		
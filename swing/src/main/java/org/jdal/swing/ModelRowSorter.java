@@ -34,6 +34,8 @@ public class ModelRowSorter<M extends TableModel> extends RowSorter<M> {
 
 	private M model;
 	private List<SortKey> sortKeys = new ArrayList<SortKey>();
+	/** max number of sort keys kept on toggle */
+	private int maxSortKeys = 3;
 	
 	/**
 	 * @param tableModel
@@ -146,19 +148,24 @@ public class ModelRowSorter<M extends TableModel> extends RowSorter<M> {
 		if (!isSortable(column))
 			return;
 		
-		List<SortKey> newKeys = new ArrayList<SortKey>(1);
-		if (this.sortKeys.size()  > 0) {
-			SortKey key = sortKeys.get(0);
-			if (key.getColumn() == column) { // toggle order
-				newKeys.add(0, toggle(key));
-			}
-			else {
-				newKeys.add(0, new SortKey(column, SortOrder.ASCENDING));
+		List<SortKey> newKeys = new ArrayList<SortKey>(this.sortKeys);
+		SortKey key = new SortKey(column, SortOrder.ASCENDING);
+		
+		for (int i = 0; i < newKeys.size(); i++) {
+			if (newKeys.get(i).getColumn() == column) {
+				// toggle order if already primary key
+				key = i == 0 ? toggle(newKeys.get(i)) : key;
+				newKeys.remove(i);
+				break;
 			}
 		}
-		else {
-			newKeys.add(0, new SortKey(column, SortOrder.ASCENDING));	
-		}
+		
+		// clicked column becomes the primary key, previous keys sort ties
+		newKeys.add(0, key);
+		
+		while (newKeys.size() > Math.max(maxSortKeys, 1))
+			newKeys.remove(newKeys.size() - 1);
+		
 		setSortKeys(newKeys);
 	}
 
@@ -193,6 +200,20 @@ public class ModelRowSorter<M extends TableModel> extends RowSorter<M> {
 		fireSortOrderChanged();
 	}
 
+	/**
+	 * @return the maxSortKeys
+	 */
+	public int getMaxSortKeys() {
+		return maxSortKeys;
+	}
+
+	/**
+	 * @param maxSortKeys the maxSortKeys to set
+	 */
+	public void setMaxSortKeys(int maxSortKeys) {
+		this.maxSortKeys = maxSortKeys;
+	}
+
 	/**
 	 * Toggle order of a SortKey
 	 * @param key the SortKey to toggle
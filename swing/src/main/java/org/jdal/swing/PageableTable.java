@@ -152,6 +152,8 @@ public class PageableTable<T> extends JPanel implements RowSorterListener, Pagin
 	private ArrayList<EditorListener> editorListeners = new ArrayList<EditorListener>();
 	/** true if table propagate persistent service to editors */
 	private boolean configureEditors = true;
+	/** true if table loads only the visible columns properties */
+	private boolean loadVisibleColumnsOnly = false;
 	
 	// Menus
 	JMenuBar rightMenuBar;
@@ -216,6 +218,10 @@ public class PageableTable<T> extends JPanel implements RowSorterListener, Pagin
 			createMenu();
 		
 		page.setPageableDataSource(dataSource);
+		
+		if (loadVisibleColumnsOnly)
+			page.setProjection(tableModel.getColumnNames());
+		
 		// goto first page
 		page.firstPage();
 		// restore table state
@@ -301,20 +307,19 @@ public class PageableTable<T> extends JPanel implements RowSorterListener, Pagin
 	 * Configure sort and order in page from sorter
 	 */
 	private void configurePage() {
-		Page.Order order = Page.Order.ASC;
-		String sortPropertyName = null;
-		List<? extends SortKey> keys = sorter.getSortKeys();
+		List<Page.SortKey> pageKeys = new ArrayList<Page.SortKey>();
 		// If sorting, get values to set in page
-		if (keys.size() > 0) {
-			RowSorter.SortKey key = sorter.getSortKeys().get(0);
+		for (RowSorter.SortKey key : sorter.getSortKeys()) {
 			if (tableModel.isPropertyColumn(key.getColumn())) {
-				sortPropertyName = tableModel.getSortPropertyName(key.getColumn());
-				order = converSortOrder(key);
+				pageKeys.add(new Page.SortKey(tableModel.getSortPropertyName(key.getColumn()), 
+						converSortOrder(key)));
 			}
-			
 		}
-		page.setSortName(sortPropertyName);
-		page.setOrder(order);
+		
+		if (pageKeys.isEmpty()) 
+			page.setOrder(Page.Order.ASC);
+		
+		page.setSortKeys(pageKeys);
 	}
 	
 	/**
@@ -434,6 +439,26 @@ public class PageableTable<T> extends JPanel implements RowSorterListener, Pagin
 		tableModel.init();
 		table.setColumnModel(tableModel.getTableColumnModel());
 		tableModel.fireTableChanged();
+		
+		if (loadVisibleColumnsOnly && !propertyNames.equals(page.getProjection())) {
+			// reload page with new projection
+			page.setProjection(propertyNames);
+			page.setPage(page.getPage());
+		}
+	}
+	
+	/**
+	 * Gets the model to edit for a row, load the full model from 
+	 * the data source if the page was loaded with a projection.
+	 * @param row table row
+	 * @return the model to edit
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Object getEditModel(Object row) {
+		if (page.isProjection() && dataSource instanceof Dao) 
+			return ((Dao) dataSource).get((Serializable) tableModel.getPrimaryKey(row));
+		
+		return row;
 	}
 	
 	public void saveState() {
@@ -636,7 +661,7 @@ public class PageableTable<T> extends JPanel implements RowSorterListener, Pagin
 			}
 			// check double click on rows
 			if (row != -1 && e.getClickCount() == 2) {
-				Object toEdit = tableModel.getList().get(row);
+				Object toEdit = getEditModel(tableModel.getList().get(row));
 				Window dlg = getEditor(toEdit);
 				if (dlg != null) {
 					if (dlg instanceof Frame) {
@@ -825,6 +850,20 @@ public class PageableTable<T> extends JPanel implements RowSorterListener, Pagin
 		this.configureEditors = configureEditors;
 	}
 
+	/**
+	 * @return the loadVisibleColumnsOnly
+	 */
+	public boolean isLoadVisibleColumnsOnly() {
+		return loadVisibleColumnsOnly;
+	}
+
+	/**
+	 * @param loadVisibleColumnsOnly the loadVisibleColumnsOnly to set
+	 */
+	public void setLoadVisibleColumnsOnly(boolean loadVisibleColumnsOnly) {
+		this.loadVisibleColumnsOnly = loadVisibleColumnsOnly;
+	}
+
 	public void addEditorListener(EditorListener listener) {
 		if (!editorListeners.contains(listener))
 			editorListeners.add(listener);
@@ -18,15 +18,14 @@ package org.jdal.swing.table;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import javax.swing.RowSorter;
 import javax.swing.SortOrder;
 
 import org.jdal.swing.ListTableModel;
-import org.springframework.beans.support.MutableSortDefinition;
 import org.springframework.beans.support.PropertyComparator;
+import org.springframework.util.comparator.CompoundComparator;
 
 /**
  * RowSorter that sort the model list of a ListTableModel.
@@ -38,15 +37,16 @@ import org.springframework.beans.support.PropertyComparator;
 public class ListTableModelSorter extends RowSorter<ListTableModel> {
 	
 	private ListTableModel model;
-	private SortKey key = new SortKey(0, javax.swing.SortOrder.ASCENDING);
-	private MutableSortDefinition sortDefinition = new MutableSortDefinition();
- 	private Comparator comparator = new PropertyComparator(sortDefinition);
+	private List<SortKey> keys = new ArrayList<SortKey>();
+	/** max number of sort keys kept on toggle */
+	private int maxSortKeys = 3;
  	
  	/**
 	 * 
 	 */
 	public ListTableModelSorter() {
 		super();
+		this.keys.add(new SortKey(0, javax.swing.SortOrder.ASCENDING));
 	}
 
 
@@ -56,6 +56,7 @@ public class ListTableModelSorter extends RowSorter<ListTableModel> {
 	public ListTableModelSorter(ListTableModel model) {
 		super();
 		this.model = model;
+		this.keys.add(new SortKey(0, javax.swing.SortOrder.ASCENDING));
 	}
 
 	
@@ -72,13 +73,24 @@ public class ListTableModelSorter extends RowSorter<ListTableModel> {
 	 */
 	@Override
 	public void toggleSortOrder(int column) {
-		if (key.getColumn() != column) {
-			key = new SortKey(column, javax.swing.SortOrder.ASCENDING);
-		}
-		else {
-			key = new SortKey(column, key.getSortOrder() == SortOrder.ASCENDING ?
-					SortOrder.DESCENDING : SortOrder.ASCENDING);
+		SortKey key = new SortKey(column, javax.swing.SortOrder.ASCENDING);
+		
+		for (int i = 0; i < keys.size(); i++) {
+			if (keys.get(i).getColumn() == column) {
+				if (i == 0) {
+					key = new SortKey(column, keys.get(i).getSortOrder() == SortOrder.ASCENDING ?
+							SortOrder.DESCENDING : SortOrder.ASCENDING);
+				}
+				keys.remove(i);
+				break;
+			}
 		}
+		
+		keys.add(0, key);
+		
+		while (keys.size() > Math.max(maxSortKeys, 1))
+			keys.remove(keys.size() - 1);
+		
 		sort();
 	}
 
@@ -104,19 +116,25 @@ public class ListTableModelSorter extends RowSorter<ListTableModel> {
 	@Override
 	public void setSortKeys(List<? extends SortKey> keys) {
 		if (!keys.isEmpty()) {
-			this.key = keys.get(0);
+			this.keys.clear();
+			this.keys.addAll(keys);
 			sort();
 		}
 	}
 
 	/**
-	 * 
+	 * Sort the model list by all sort keys.
 	 */
 	@SuppressWarnings("unchecked")
 	private void sort() {
-		String propertyName = model.getPropertyName(key.getColumn());
-		sortDefinition.setProperty(propertyName);
-		sortDefinition.setAscending(SortOrder.ASCENDING.equals(key.getSortOrder()));
+		CompoundComparator comparator = new CompoundComparator();
+		
+		for (SortKey key : keys) {
+			String propertyName = model.getPropertyName(key.getColumn());
+			comparator.addComparator(new PropertyComparator(propertyName, true, 
+					SortOrder.ASCENDING.equals(key.getSortOrder())));
+		}
+		
 		Collections.sort(model.getList(), comparator);
 		fireSortOrderChanged();
 	}
@@ -126,10 +144,21 @@ public class ListTableModelSorter extends RowSorter<ListTableModel> {
 	 */
 	@Override
 	public List<? extends SortKey> getSortKeys() {
-		List<SortKey> keys = new ArrayList<SortKey>(1);
-		keys.add(key);
-		
-		return keys;
+		return new ArrayList<SortKey>(keys);
+	}
+	
+	/**
+	 * @return the maxSortKeys
+	 */
+	public int getMaxSortKeys() {
+		return maxSortKeys;
+	}
+
+	/**
+	 * @param maxSortKeys the maxSortKeys to set
+	 */
+	public void setMaxSortKeys(int maxSortKeys) {
+		this.maxSortKeys = maxSortKeys;
 	}
 
 	/**
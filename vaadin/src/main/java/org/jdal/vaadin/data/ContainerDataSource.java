@@ -28,6 +28,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jdal.beans.PropertyUtils;
 import org.jdal.dao.Dao;
+import org.jdal.dao.Filter;
 import org.jdal.dao.Page;
 import org.springframework.beans.BeanInstantiationException;
 import org.springframework.beans.BeanUtils;
@@ -192,9 +193,14 @@ public class ContainerDataSource<T> implements Container, Sortable, Indexed,
 	 * {@inheritDoc}
 	 */
 	public void sort(Object[] propertyId, boolean[] ascending) {
-		// only use the first property :I
-		page.setSortName(propertyId[0].toString());
-		page.setOrder(ascending[0] ? Page.Order.ASC : Page.Order.DESC);
+		List<Page.SortKey> sortKeys = new ArrayList<Page.SortKey>(propertyId.length);
+		
+		for (int i = 0; i < propertyId.length; i++) {
+			Page.Order order = i >= ascending.length || ascending[i] ? Page.Order.ASC : Page.Order.DESC;
+			sortKeys.add(new Page.SortKey(propertyId[i].toString(), order));
+		}
+		
+		page.setSortKeys(sortKeys);
 		loadPage();
 		fireItemSetChange();
 	}
@@ -379,15 +385,28 @@ public class ContainerDataSource<T> implements Container, Sortable, Indexed,
 	 */
 	public boolean removeAllItems() throws UnsupportedOperationException {
 		try {
-			Page<T> all =  page.clone();
-			all.setPageSize(Integer.MAX_VALUE);
-			service.delete(all.getData());
+			Object filter = page.getFilter();
+			
+			if (filter == null || filter instanceof Filter)
+				service.deleteAll((Filter) filter);
+			else
+				deleteById(service, getKeys());
 		} catch (DataAccessException dae) {
 			return false;
 		}
 	
 		return true;
 	}
+	
+	/**
+	 * Delete entities by id, avoid loading them in memory.
+	 * @param dao dao to use
+	 * @param keys entity ids
+	 */
+	@SuppressWarnings("unchecked")
+	private <PK extends Serializable> void deleteById(Dao<T, PK> dao, List<Serializable> keys) {
+		dao.deleteById((List<PK>) (List<?>) keys);
+	}
 
 	private void loadPage() {
 		service.getPage(page);
@@ -527,8 +546,7 @@ public class ContainerDataSource<T> implements Container, Sortable, Indexed,
 	public List<Serializable> getKeys() {
 		Page<T> p = new Page<T>(Integer.MAX_VALUE);
 		p.setFilter(page.getFilter());
-		p.setSortName(page.getSortName());
-		p.setOrder(page.getOrder());
+		p.setSortKeys(page.getSortKeys());
 		
 		return service.getKeys(p);
 	}
@@ -20,9 +20,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.jdal.dao.Cursor;
 import org.jdal.dao.Dao;
 import org.jdal.dao.Page;
+import org.jdal.dao.PageCursor;
 
 import com.vaadin.data.Container;
 import com.vaadin.data.Container.Filter;
@@ -92,12 +95,26 @@ public class ContainerPersistentServiceAdapter<T, PK extends Serializable>
 		return new ArrayList(container.getItemIds());
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Cursor<T> scroll(Page<T> page, int fetchSize) {
+		return new PageCursor<T>(this, page, fetchSize);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public T initialize(T entity, int depth) {
 		return entity;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<T> initialize(Collection<T> entities, int depth) {
+		return entities;
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -135,6 +152,13 @@ public class ContainerPersistentServiceAdapter<T, PK extends Serializable>
 		return new ArrayList(container.getItemIds());
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<T> getAll(Collection<PK> ids) {
+		throw new UnsupportedOperationException();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -159,6 +183,26 @@ public class ContainerPersistentServiceAdapter<T, PK extends Serializable>
 	public void deleteById(Collection<PK> ids) {
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public int updateAll(org.jdal.dao.Filter filter, Map<String, Object> assignments) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int deleteAll(org.jdal.dao.Filter filter) {
+		if (filter != null)
+			throw new UnsupportedOperationException();
+		
+		int count = container.size();
+		container.removeAllItems();
+		
+		return count;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -195,6 +239,13 @@ public class ContainerPersistentServiceAdapter<T, PK extends Serializable>
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<PK> existing(Collection<PK> ids) {
+		throw new UnsupportedOperationException();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */